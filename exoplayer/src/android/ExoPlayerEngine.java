@@ -0,0 +1,569 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.OptIn;
+import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.PlaybackParameters;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.BaseDataSource;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSourceException;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.exoplayer.DefaultLoadControl;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.PlayerMessage;
+import androidx.media3.exoplayer.SeekParameters;
+import androidx.media3.exoplayer.source.MediaSource;
+import androidx.media3.exoplayer.source.ProgressiveMediaSource;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Playback engine backed by Media3 ExoPlayer.
+ *
+ * ExoPlayer must only be used from its application thread, so all calls are
+ * posted to the main thread, and position and duration are served from values
+ * cached on that thread.
+ *
+ * Whole-file loops use the repeat mode of the player. Loops of a region use a
+ * player message at the end of the region, delivered on the playback thread
+ * position, which seeks back to the start of the region.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class ExoPlayerEngine implements PlaybackEngine {
+
+    private static final int PROGRESS_INTERVAL = 250; // msec between buffering and position updates
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private ExoPlayer player;               // only accessed on the main thread
+    private Listener listener;
+    private MediaItem mediaItem;
+    private MediaSource mediaSource;        // for in-memory media, instead of mediaItem
+    private final int audioSessionId;       // generated up front, so other threads can read it
+
+    // Main thread state
+    private boolean preparedNotified = false;
+    private boolean buffering = false;
+    private boolean seeking = false;        // a seek is waiting for the player to be ready
+    private int bufferedPercent = -1;
+    private boolean looping = false;
+    private int loopStart = 0;
+    private int loopEnd = 0;                // 0 for the end of the file
+    private boolean loopSeeking = false;    // a loop seek is waiting for the player to be ready
+    private PlayerMessage loopMessage;
+
+    // Cached for other threads
+    private volatile long positionMs = 0;
+    private volatile long positionAt = 0;
+    private volatile boolean advancing = false;
+    private volatile float speed = 1.0f;
+    private volatile long durationMs = -1;
+
+    private final Runnable progress = new Runnable() {
+        public void run() {
+            if (player == null) {
+                return;
+            }
+            updatePosition();
+            int percent = player.getBufferedPercentage();
+            if (percent != bufferedPercent && preparedNotified) {
+                bufferedPercent = percent;
+                if (listener != null) {
+                    listener.onBufferingUpdate(ExoPlayerEngine.this, percent);
+                }
+            }
+            mainHandler.postDelayed(this, PROGRESS_INTERVAL);
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param context                           The application context
+     * @param minBufferMs                       Minimum buffered duration the player tries to keep
+     * @param maxBufferMs                       Maximum buffered duration
+     * @param bufferForPlaybackMs               Buffered duration required to start playback
+     * @param bufferForPlaybackAfterRebufferMs  Buffered duration required to resume after a stall
+     */
+    public ExoPlayerEngine(final Context context, final int minBufferMs, final int maxBufferMs,
+                           final int bufferForPlaybackMs, final int bufferForPlaybackAfterRebufferMs) {
+        this.audioSessionId = ((AudioManager) context.getSystemService(Context.AUDIO_SERVICE)).generateAudioSessionId();
+        run(new Runnable() {
+            public void run() {
+                DefaultLoadControl loadControl = new DefaultLoadControl.Builder()
+                        .setBufferDurationsMs(minBufferMs, maxBufferMs, bufferForPlaybackMs, bufferForPlaybackAfterRebufferMs)
+                        .build();
+                player = new ExoPlayer.Builder(context)
+                        .setLoadControl(loadControl)
+                        .setLooper(Looper.getMainLooper())
+                        .build();
+                player.setAudioSessionId(audioSessionId);
+                player.addListener(new Player.Listener() {
+                    @Override
+                    public void onPlaybackStateChanged(int state) {
+                        onStateChanged(state);
+                    }
+
+                    @Override
+                    public void onPositionDiscontinuity(Player.PositionInfo oldPosition,
+                                                        Player.PositionInfo newPosition, int reason) {
+                        if (reason == Player.DISCONTINUITY_REASON_SEEK && seeking
+                                && player.getPlaybackState() == Player.STATE_READY) {
+                            onSeekDone();
+                        } else if (reason == Player.DISCONTINUITY_REASON_SEEK && loopSeeking
+                                && player.getPlaybackState() == Player.STATE_READY) {
+                            loopSeeking = false;
+                        } else if (reason == Player.DISCONTINUITY_REASON_AUTO_TRANSITION && looping) {
+                            // the repeat mode wrapped around
+                            if (loopStart > 0) {
+                                loopSeeking = true;
+                                player.seekTo(loopStart);
+                            }
+                            onLooped();
+                        }
+                    }
+
+                    @Override
+                    public void onPlayerError(PlaybackException error) {
+                        onPlaybackError(error);
+                    }
+                });
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setDataSource(String file) throws IOException {
+        Uri uri;
+        if (file.contains("://")) {
+            // content:// URIs are read in place from the descriptor of their provider
+            uri = Uri.parse(file);
+        } else if (file.startsWith("/android_asset/")) {
+            uri = Uri.parse("asset:///" + file.substring(15));
+        } else {
+            File fp = new File(file);
+            if (!fp.exists()) {
+                throw new IOException("File not found: " + file);
+            }
+            uri = Uri.fromFile(fp);
+        }
+        this.mediaItem = MediaItem.fromUri(uri);
+        this.mediaSource = null;
+    }
+
+    public void setDataSource(final MediaBuffer buffer) throws IOException {
+        this.mediaItem = new MediaItem.Builder()
+                .setUri(BufferDataSource.URI)
+                .setMimeType(buffer.getMimeType())
+                .build();
+        this.mediaSource = new ProgressiveMediaSource.Factory(new DataSource.Factory() {
+            public DataSource createDataSource() {
+                return new BufferDataSource(buffer);
+            }
+        }).createMediaSource(this.mediaItem);
+    }
+
+    public boolean prepare() throws IOException {
+        // ExoPlayer always prepares asynchronously
+        prepareAsync();
+        return false;
+    }
+
+    public void prepareAsync() {
+        final MediaItem item = this.mediaItem;
+        final MediaSource source = this.mediaSource;
+        run(new Runnable() {
+            public void run() {
+                preparedNotified = false;
+                buffering = false;
+                bufferedPercent = -1;
+                durationMs = -1;
+                player.setPlayWhenReady(false);
+                if (source != null) {
+                    player.setMediaSource(source);
+                } else {
+                    player.setMediaItem(item);
+                }
+                applyLoop();
+                player.prepare();
+                mainHandler.removeCallbacks(progress);
+                mainHandler.post(progress);
+            }
+        });
+    }
+
+    public void start() {
+        setAdvancing(true);
+        run(new Runnable() {
+            public void run() {
+                if (player.getPlaybackState() == Player.STATE_ENDED) {
+                    player.seekTo(0);
+                }
+                player.setPlayWhenReady(true);
+            }
+        });
+    }
+
+    public void pause() {
+        setAdvancing(false);
+        run(new Runnable() {
+            public void run() {
+                player.setPlayWhenReady(false);
+                updatePosition();
+            }
+        });
+    }
+
+    public void stop() {
+        setAdvancing(false);
+        run(new Runnable() {
+            public void run() {
+                player.stop();
+            }
+        });
+    }
+
+    public void reset() {
+        setAdvancing(false);
+        this.positionMs = 0;
+        run(new Runnable() {
+            public void run() {
+                player.stop();
+                player.clearMediaItems();
+                cancelLoopMessage();
+                mainHandler.removeCallbacks(progress);
+            }
+        });
+    }
+
+    public void release() {
+        setAdvancing(false);
+        run(new Runnable() {
+            public void run() {
+                mainHandler.removeCallbacks(progress);
+                cancelLoopMessage();
+                if (player != null) {
+                    player.release();
+                    player = null;
+                }
+            }
+        });
+    }
+
+    public void seekTo(final int milliseconds, final boolean fast) {
+        synchronized (this) {
+            this.positionMs = milliseconds;
+            this.positionAt = SystemClock.elapsedRealtime();
+        }
+        run(new Runnable() {
+            public void run() {
+                seeking = true;
+                player.setSeekParameters(fast ? SeekParameters.CLOSEST_SYNC : SeekParameters.EXACT);
+                player.seekTo(milliseconds);
+            }
+        });
+    }
+
+    public void setVolume(final float volume) {
+        run(new Runnable() {
+            public void run() {
+                player.setVolume(volume);
+            }
+        });
+    }
+
+    public synchronized int getCurrentPosition() {
+        long position = this.positionMs;
+        if (this.advancing) {
+            position += (long) ((SystemClock.elapsedRealtime() - this.positionAt) * this.speed);
+        }
+        if (this.durationMs > 0) {
+            position = Math.min(position, this.durationMs);
+        }
+        return (int) position;
+    }
+
+    public int getDuration() {
+        return (int) this.durationMs;
+    }
+
+    public void setLoop(final boolean enabled, final int startMs, final int endMs) {
+        run(new Runnable() {
+            public void run() {
+                looping = enabled;
+                loopStart = Math.max(0, startMs);
+                loopEnd = Math.max(0, endMs);
+                applyLoop();
+            }
+        });
+    }
+
+    public int getAudioSessionId() {
+        return this.audioSessionId;
+    }
+
+    public boolean setPlaybackParams(final float speed, final float pitch) {
+        synchronized (this) {
+            this.positionMs = getCurrentPosition();
+            this.positionAt = SystemClock.elapsedRealtime();
+            this.speed = speed;
+        }
+        run(new Runnable() {
+            public void run() {
+                player.setPlaybackParameters(new PlaybackParameters(speed, pitch));
+            }
+        });
+        return true;
+    }
+
+    //--------------------------------------------------------------------------
+    // Main thread
+    //--------------------------------------------------------------------------
+
+    private void run(Runnable task) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            task.run();
+        } else {
+            this.mainHandler.post(task);
+        }
+    }
+
+    private synchronized void setAdvancing(boolean advancing) {
+        this.positionMs = getCurrentPosition();
+        this.positionAt = SystemClock.elapsedRealtime();
+        this.advancing = advancing;
+    }
+
+    private void updatePosition() {
+        long position = this.player.getCurrentPosition();
+        boolean playing = this.player.isPlaying();
+        synchronized (this) {
+            this.positionMs = position;
+            this.positionAt = SystemClock.elapsedRealtime();
+            this.advancing = playing;
+        }
+    }
+
+    private void applyLoop() {
+        cancelLoopMessage();
+        if (!this.looping) {
+            this.player.setRepeatMode(Player.REPEAT_MODE_OFF);
+            return;
+        }
+        if (this.loopEnd == 0) {
+            // the region ends at the end of the file, repeat it gaplessly
+            this.player.setRepeatMode(Player.REPEAT_MODE_ONE);
+            return;
+        }
+        this.player.setRepeatMode(Player.REPEAT_MODE_OFF);
+        this.loopMessage = this.player.createMessage(new PlayerMessage.Target() {
+                    public void handleMessage(int messageType, Object payload) {
+                        onRegionEnd();
+                    }
+                })
+                .setLooper(Looper.getMainLooper())
+                .setPosition(this.loopEnd)
+                .setDeleteAfterDelivery(false)
+                .send();
+    }
+
+    private void cancelLoopMessage() {
+        if (this.loopMessage != null) {
+            this.loopMessage.cancel();
+            this.loopMessage = null;
+        }
+    }
+
+    private void onRegionEnd() {
+        if (this.player == null || !this.looping) {
+            return;
+        }
+        this.loopSeeking = true;
+        this.player.seekTo(this.loopStart);
+        onLooped();
+    }
+
+    private void onLooped() {
+        updatePosition();
+        if (this.listener != null) {
+            this.listener.onLoop(this);
+        }
+    }
+
+    private void onStateChanged(int state) {
+        switch (state) {
+        case Player.STATE_READY:
+            long duration = this.player.getDuration();
+            this.durationMs = duration == C.TIME_UNSET ? -1 : duration;
+            if (!this.preparedNotified) {
+                this.preparedNotified = true;
+                if (this.listener != null) {
+                    this.listener.onPrepared(this);
+                }
+            } else if (this.seeking) {
+                onSeekDone();
+            } else if (this.loopSeeking) {
+                this.loopSeeking = false;
+            } else if (this.buffering) {
+                this.buffering = false;
+                if (this.listener != null) {
+                    this.listener.onInfo(this, MediaPlayer.MEDIA_INFO_BUFFERING_END, 0);
+                }
+            }
+            break;
+        case Player.STATE_BUFFERING:
+            // buffering after a seek is not a stall
+            if (this.preparedNotified && !this.buffering && !this.seeking && !this.loopSeeking) {
+                this.buffering = true;
+                if (this.listener != null) {
+                    this.listener.onInfo(this, MediaPlayer.MEDIA_INFO_BUFFERING_START, 0);
+                }
+            }
+            break;
+        case Player.STATE_ENDED:
+            this.player.setPlayWhenReady(false);
+            updatePosition();
+            if (this.listener != null) {
+                this.listener.onCompletion(this);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void onSeekDone() {
+        this.seeking = false;
+        this.loopSeeking = false;
+        if (this.buffering) {
+            this.buffering = false;
+            if (this.listener != null) {
+                this.listener.onInfo(this, MediaPlayer.MEDIA_INFO_BUFFERING_END, 0);
+            }
+        }
+        updatePosition();
+        if (this.listener != null) {
+            this.listener.onSeekComplete(this);
+        }
+    }
+
+    private void onPlaybackError(PlaybackException error) {
+        int extra;
+        switch (error.errorCode) {
+        case PlaybackException.ERROR_CODE_IO_NETWORK_CONNECTION_TIMEOUT:
+            extra = MediaPlayer.MEDIA_ERROR_TIMED_OUT;
+            break;
+        case PlaybackException.ERROR_CODE_DECODING_FAILED:
+        case PlaybackException.ERROR_CODE_PARSING_CONTAINER_MALFORMED:
+            extra = MediaPlayer.MEDIA_ERROR_MALFORMED;
+            break;
+        case PlaybackException.ERROR_CODE_DECODING_FORMAT_UNSUPPORTED:
+        case PlaybackException.ERROR_CODE_PARSING_CONTAINER_UNSUPPORTED:
+            extra = MediaPlayer.MEDIA_ERROR_UNSUPPORTED;
+            break;
+        default:
+            extra = (error.errorCode >= 2000 && error.errorCode < 3000) ? MediaPlayer.MEDIA_ERROR_IO : 0;
+            break;
+        }
+        setAdvancing(false);
+        if (this.listener != null) {
+            this.listener.onError(this, MediaPlayer.MEDIA_ERROR_UNKNOWN, extra);
+        }
+    }
+
+    /**
+     * Reads a MediaBuffer on the loading thread of the player.
+     */
+    private static class BufferDataSource extends BaseDataSource {
+        static final Uri URI = Uri.parse("buffer://media");
+
+        private final MediaBuffer buffer;
+        private long position;
+        private long remaining;
+        private boolean opened = false;
+
+        BufferDataSource(MediaBuffer buffer) {
+            super(false);
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            transferInitializing(dataSpec);
+            if (dataSpec.position > this.buffer.getSize()) {
+                throw new DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+            }
+            this.position = dataSpec.position;
+            this.remaining = this.buffer.getSize() - dataSpec.position;
+            if (dataSpec.length != C.LENGTH_UNSET) {
+                this.remaining = Math.min(this.remaining, dataSpec.length);
+            }
+            this.opened = true;
+            transferStarted(dataSpec);
+            return this.remaining;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (this.remaining == 0) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            int n = this.buffer.readAt(this.position, target, offset, (int) Math.min(length, this.remaining));
+            if (n < 0) {
+                return C.RESULT_END_OF_INPUT;   // released
+            }
+            this.position += n;
+            this.remaining -= n;
+            bytesTransferred(n);
+            return n;
+        }
+
+        @Override
+        public Uri getUri() {
+            return this.opened ? URI : null;
+        }
+
+        @Override
+        public void close() {
+            if (this.opened) {
+                this.opened = false;
+                transferEnded();
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * This class decodes the audio track of a media source to 16 bit PCM, in
+ * memory or buffer by buffer, with MediaExtractor and MediaCodec.
+ */
+public class AudioDecoder {
+
+    private static final long CODEC_TIMEOUT = 10000;    // usec to wait for a codec buffer
+
+    /**
+     * Decoded audio, interleaved samples.
+     */
+    public static class Pcm {
+        public final short[] samples;
+        public final int sampleRate;
+        public final int channels;
+
+        Pcm(short[] samples, int sampleRate, int channels) {
+            this.samples = samples;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+
+        /**
+         * Convert a time to a sample index, at the start of a frame.
+         *
+         * @param milliseconds  The time in msec
+         * @return              the index in samples, within the buffer
+         */
+        public int toSample(long milliseconds) {
+            long frame = milliseconds * this.sampleRate / 1000;
+            return (int) Math.max(0, Math.min(frame * this.channels, this.samples.length));
+        }
+
+        public long getBytes() {
+            return this.samples.length * 2L;
+        }
+    }
+
+    /**
+     * Receives decoded audio as it is produced.
+     */
+    public interface Sink {
+        /**
+         * Called before the first samples, and when the output format changes.
+         */
+        void onFormat(int sampleRate, int channels);
+
+        /**
+         * Called for each decoded buffer, interleaved samples.
+         *
+         * @param pcm           The samples, only valid during the call
+         * @return              false to stop decoding
+         */
+        boolean onSamples(ShortBuffer pcm);
+    }
+
+    /**
+     * Decode the first audio track of a source.
+     *
+     * @param context           The application context, to open assets
+     * @param source            A file path, an /android_asset/ path, a content:// URI or a URL
+     * @return                  the decoded audio
+     */
+    public static Pcm decode(Context context, String source) throws IOException {
+        final int[] format = new int[2];
+        final short[][] samples = { new short[0] };
+        final int[] count = { 0 };
+        decode(context, source, new Sink() {
+            public void onFormat(int sampleRate, int channels) {
+                format[0] = sampleRate;
+                format[1] = channels;
+                if (samples[0].length == 0) {
+                    samples[0] = new short[sampleRate * channels];
+                }
+            }
+
+            public boolean onSamples(ShortBuffer pcm) {
+                int n = pcm.remaining();
+                if (count[0] + n > samples[0].length) {
+                    samples[0] = Arrays.copyOf(samples[0], Math.max(samples[0].length * 2, count[0] + n));
+                }
+                pcm.get(samples[0], count[0], n);
+                count[0] += n;
+                return true;
+            }
+        });
+        return new Pcm(Arrays.copyOf(samples[0], count[0]), format[0], format[1]);
+    }
+
+    /**
+     * Decode the first audio track of a source, buffer by buffer, without
+     * holding the whole audio in memory.
+     *
+     * @param context           The application context, to open assets
+     * @param source            A file path, an /android_asset/ path, a content:// URI or a URL
+     * @param sink              Receives the decoded audio
+     */
+    public static void decode(Context context, String source, Sink sink) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            MediaFormat format = openAudioTrack(context, extractor, source);
+            sink.onFormat(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    int index = codec.dequeueInputBuffer(CODEC_TIMEOUT);
+                    if (index >= 0) {
+                        ByteBuffer input = codec.getInputBuffer(index);
+                        int size = extractor.readSampleData(input, 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                int index = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat output = codec.getOutputFormat();
+                    sink.onFormat(output.getInteger(MediaFormat.KEY_SAMPLE_RATE), output.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                } else if (index >= 0) {
+                    ByteBuffer output = codec.getOutputBuffer(index);
+                    output.position(info.offset);
+                    output.limit(info.offset + info.size);
+                    boolean more = sink.onSamples(output.order(ByteOrder.nativeOrder()).asShortBuffer());
+                    codec.releaseOutputBuffer(index, false);
+                    outputDone = !more || (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Failed to decode " + source, e);
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    /**
+     * Open a source and select its first audio track.
+     *
+     * @param context           The application context, to open assets and content
+     * @param extractor         A new extractor
+     * @param source            A file path, an /android_asset/ path, a content:// URI or a URL
+     * @return                  the format of the selected track
+     */
+    static MediaFormat openAudioTrack(Context context, MediaExtractor extractor, String source) throws IOException {
+        if (source.startsWith("/android_asset/")) {
+            AssetFileDescriptor fd = context.getAssets().openFd(source.substring(15));
+            try {
+                extractor.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
+            } finally {
+                fd.close();
+            }
+        } else if (FileHelper.isContentUri(source)) {
+            AssetFileDescriptor fd = FileHelper.openContent(context, source);
+            try {
+                if (fd.getLength() < 0) {
+                    extractor.setDataSource(fd.getFileDescriptor());
+                } else {
+                    extractor.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
+                }
+            } finally {
+                fd.close();
+            }
+        } else {
+            extractor.setDataSource(source);
+        }
+
+        MediaFormat format = null;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat candidate = extractor.getTrackFormat(i);
+            String mime = candidate.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                format = candidate;
+                break;
+            }
+        }
+        if (format == null) {
+            throw new IOException("No audio track in " + source);
+        }
+        return format;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFocusRequest;
+import android.media.AudioManager;
+import android.media.AudioManager.OnAudioFocusChangeListener;
+import android.os.Build;
+
+import org.apache.cordova.LOG;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * This class tracks the audio focus held by the plugin, so that the system
+ * is only asked for focus when the plugin does not hold it already, and
+ * focus is abandoned once nothing plays anymore.
+ */
+public class AudioFocusManager {
+
+    private static final String LOG_TAG = "AudioFocusManager";
+
+    private final AudioManager audioManager;
+    private final OnAudioFocusChangeListener listener;
+    private Object focusRequest = null;     // AudioFocusRequest on Android 8.0 and later
+
+    private boolean held = false;           // focus is granted, or only lost transiently
+    private boolean delayed = false;        // focus request was delayed by the system
+    private long requests = 0;              // number of focus requests sent to the system
+    private long abandons = 0;              // number of focus abandons sent to the system
+
+    /**
+     * Constructor.
+     *
+     * @param context           The application context
+     * @param listener          The listener notified of focus changes
+     */
+    public AudioFocusManager(Context context, OnAudioFocusChangeListener listener) {
+        this.audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        this.listener = listener;
+    }
+
+    /**
+     * Request the audio focus, unless it is already held or pending.
+     *
+     * @return                  AUDIOFOCUS_REQUEST_GRANTED, _DELAYED or _FAILED
+     */
+    public synchronized int request() {
+        if (this.held) {
+            return AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+        }
+        if (this.delayed) {
+            return AudioManager.AUDIOFOCUS_REQUEST_DELAYED;
+        }
+
+        int result;
+        this.requests++;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            result = this.audioManager.requestAudioFocus(getFocusRequest());
+        } else {
+            result = this.audioManager.requestAudioFocus(this.listener,
+                                                         AudioManager.STREAM_MUSIC,
+                                                         AudioManager.AUDIOFOCUS_GAIN);
+        }
+
+        if (result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+            this.held = true;
+        } else if (result == AudioManager.AUDIOFOCUS_REQUEST_DELAYED) {
+            this.delayed = true;
+        } else {
+            LOG.e(LOG_TAG, result + " instead of " + AudioManager.AUDIOFOCUS_REQUEST_GRANTED);
+        }
+        return result;
+    }
+
+    /**
+     * Abandon the audio focus, if it is held or pending.
+     */
+    public synchronized void abandon() {
+        if (!this.held && !this.delayed) {
+            return;
+        }
+        this.abandons++;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            this.audioManager.abandonAudioFocusRequest(getFocusRequest());
+        } else {
+            this.audioManager.abandonAudioFocus(this.listener);
+        }
+        this.held = false;
+        this.delayed = false;
+    }
+
+    /**
+     * Record a focus change reported to the listener. A permanent loss
+     * abandons the focus.
+     *
+     * @param focusChange       The focus change from OnAudioFocusChangeListener
+     */
+    public synchronized void onFocusChange(int focusChange) {
+        if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
+            this.held = true;
+            this.delayed = false;
+        } else if (focusChange == AudioManager.AUDIOFOCUS_LOSS) {
+            // the system won't give focus back without a new request, so
+            // drop this one and its listener
+            abandon();
+        }
+    }
+
+    /**
+     * Check if a focus request is waiting for a delayed gain.
+     *
+     * @return                  true if focus was delayed
+     */
+    public synchronized boolean isDelayed() {
+        return this.delayed;
+    }
+
+    /**
+     * Get the audio focus statistics.
+     *
+     * @return                  JSON object with focus state and IPC counters
+     */
+    public synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("held", this.held);
+        stats.put("delayed", this.delayed);
+        stats.put("requests", this.requests);
+        stats.put("abandons", this.abandons);
+        return stats;
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private AudioFocusRequest getFocusRequest() {
+        if (this.focusRequest == null) {
+            AudioAttributes attributes = new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                    .build();
+            // we duck ourselves, according to the focus policy of each player
+            this.focusRequest = new AudioFocusRequest.Builder(AudioManager.AUDIOFOCUS_GAIN)
+                    .setAudioAttributes(attributes)
+                    .setAcceptsDelayedFocusGain(true)
+                    .setWillPauseWhenDucked(true)
+                    .setOnAudioFocusChangeListener(this.listener)
+                    .build();
+        }
+        return (AudioFocusRequest) this.focusRequest;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class handles the frames of raw AMR-NB and AAC ADTS streams, the
+ * formats of the recordings: ADTS headers, and copies of whole frames that
+ * stop at a truncated frame.
+ *
+ * Only java.* is used, so that the frame handling can be tested off the
+ * device.
+ */
+public class AudioFrames {
+
+    static final byte[] AMR_HEADER = { '#', '!', 'A', 'M', 'R', '\n' };
+    // AMR-NB frame sizes without the header byte, by frame type
+    static final int[] AMR_FRAME_SIZES = { 12, 13, 15, 17, 19, 20, 26, 31, 5, -1, -1, -1, -1, -1, -1, 0 };
+
+    static final int ADTS_HEADER_SIZE = 7;
+    private static final int[] ADTS_SAMPLE_RATES = {
+        96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    /**
+     * Get the ADTS index of a sample rate.
+     *
+     * @param sampleRate        The sample rate in Hz
+     * @return                  the index, -1 if ADTS has none for the rate
+     */
+    static int adtsRateIndex(int sampleRate) {
+        for (int i = 0; i < ADTS_SAMPLE_RATES.length; i++) {
+            if (ADTS_SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write the 7 byte ADTS header of a frame without CRC.
+     *
+     * @param frame             The frame, the header goes at its start
+     * @param objectType        The MPEG-4 audio object type, 2 for AAC LC
+     * @param rateIndex         The ADTS index of the sample rate
+     * @param channels          The channel configuration
+     * @param length            The length of the frame, header included
+     */
+    static void writeAdtsHeader(byte[] frame, int objectType, int rateIndex, int channels, int length) {
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xF1;                 // MPEG-4, no CRC
+        frame[2] = (byte) (((objectType - 1) << 6) | (rateIndex << 2) | (channels >> 2));
+        frame[3] = (byte) (((channels & 3) << 6) | (length >> 11));
+        frame[4] = (byte) ((length >> 3) & 0xFF);
+        frame[5] = (byte) (((length & 7) << 5) | 0x1F);
+        frame[6] = (byte) 0xFC;
+    }
+
+    /**
+     * Copy the whole frames of a raw AMR-NB file, stopping at the first
+     * truncated or invalid frame. The header is written before the first
+     * frame, if asked for and if there is a frame.
+     */
+    static long copyAmrFrames(InputStream from, OutputStream to, boolean writeHeader) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(from));
+        byte[] header = new byte[AMR_HEADER.length];
+        byte[] frame = new byte[32];
+        long total = 0;
+        try {
+            in.readFully(header);
+        } catch (EOFException e) {
+            return 0;
+        }
+        while (true) {
+            int toc = in.read();
+            if (toc == -1) {
+                break;
+            }
+            int size = AMR_FRAME_SIZES[(toc >> 3) & 0x0F];
+            if (size < 0) {
+                break;
+            }
+            frame[0] = (byte) toc;
+            try {
+                in.readFully(frame, 1, size);
+            } catch (EOFException e) {
+                break;
+            }
+            if (writeHeader && total == 0) {
+                to.write(AMR_HEADER);
+                total += AMR_HEADER.length;
+            }
+            to.write(frame, 0, size + 1);
+            total += size + 1;
+        }
+        return total;
+    }
+
+    /**
+     * Copy the whole frames of an AAC ADTS file, stopping at the first
+     * truncated or invalid frame.
+     */
+    static long copyAdtsFrames(InputStream from, OutputStream to) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(from));
+        byte[] frame = new byte[8192];
+        long total = 0;
+        while (true) {
+            try {
+                in.readFully(frame, 0, ADTS_HEADER_SIZE);
+            } catch (EOFException e) {
+                break;
+            }
+            if ((frame[0] & 0xFF) != 0xFF || (frame[1] & 0xF0) != 0xF0) {
+                break;
+            }
+            int frameLength = ((frame[3] & 0x03) << 11) | ((frame[4] & 0xFF) << 3) | ((frame[5] & 0xE0) >> 5);
+            if (frameLength < ADTS_HEADER_SIZE) {
+                break;
+            }
+            try {
+                in.readFully(frame, ADTS_HEADER_SIZE, frameLength - ADTS_HEADER_SIZE);
+            } catch (EOFException e) {
+                break;
+            }
+            to.write(frame, 0, frameLength);
+            total += frameLength;
+        }
+        return total;
+    }
+}
@@ -24,6 +24,7 @@ import org.apache.cordova.CordovaResourceApi;
 import org.apache.cordova.PermissionHelper;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.Manifest;
@@ -34,9 +35,21 @@ import android.media.AudioManager;
 import android.media.AudioManager.OnAudioFocusChangeListener;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.util.Base64;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.Permission;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.apache.cordova.LOG;
 import org.apache.cordova.PluginResult;
@@ -45,6 +58,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class called by CordovaActivity to play and record audio.
@@ -57,12 +74,16 @@ import java.util.HashMap;
  * 		android_asset: 		file name must start with /android_asset/sound.mp3
  * 		sdcard:				file name is just sound.mp3
  */
-public class AudioHandler extends CordovaPlugin {
+public class AudioHandler extends CordovaPlugin implements ComponentCallbacks2, PlayerHost {
 
     public static String TAG = "AudioHandler";
-    HashMap<String, AudioPlayer> players;  // Audio player object
+    // In the cordova-plugin-media-exoplayer plugin, loaded on demand
+    private static final String EXOPLAYER_ENGINE = "org.apache.cordova.media.ExoPlayerEngine";
+    ConcurrentHashMap<String, AudioPlayer> players;  // Audio player object
     ArrayList<AudioPlayer> pausedForPhone; // Audio players that were paused when phone call came in
     ArrayList<AudioPlayer> pausedForFocus; // Audio players that were paused when focus was lost
+    ArrayList<AudioPlayer> duckedForFocus; // Audio players that were ducked when focus was lost
+    private final Object focusLock = new Object(); // Guards the lists above, never held while calling a player
     private int origVolumeStream = -1;
     private CallbackContext messageChannel;
 
@@ -71,17 +92,79 @@ public class AudioHandler extends CordovaPlugin {
     public static int WRITE_EXTERNAL_STORAGE = 1;
 
     public static final int PERMISSION_DENIED_ERROR = 20;
+    private static final int SPECTRUM_REQUEST = 2; // Permission request code of the spectrum analysis
 
-    private String recordId;
-    private String fileUriStr;
+    private final ArrayList<PendingRecording> pendingRecordings = new ArrayList<PendingRecording>(); // Waiting for permissions
+    private boolean permissionRequested = false; // A permission prompt is showing
+    private CaptureHub captureHub = new CaptureHub(); // Shared audio capture of the recordings
+    private final HashMap<String, JSONObject> pendingSpectrums = new HashMap<String, JSONObject>(); // Waiting for permission
+
+    private AudioScheduler scheduler;       // Fires scheduled starts and stops
+    private RecordingSweeper sweeper;       // Deletes orphaned temporary recordings
+    private PlayerReaper reaper;            // Releases native resources of idle players
+    private AudioFocusManager focusManager; // Tracks the audio focus held by the plugin
+    private ArrayList<MediaCache> caches = new ArrayList<MediaCache>(); // Dropped first on memory pressure
+    private int trimPriority;               // Paused players up to this priority are released on critical memory
+    private CallTracer tracer;              // Records executed actions, null unless enabled
+    private VirtualClock simulationClock;   // Drives the simulated engines, created on first use
+    private LoudnessAnalyzer loudnessAnalyzer; // Created on first use
+    private TranscodeQueue transcodeQueue;  // Created on first use
+    private VoiceLimiter<AudioPlayer> voiceLimiter; // Limits the players playing at once
+    private long bufferBudget;              // Bytes of in-memory media the players may hold
+    private long bufferBytes = 0;           // Bytes of in-memory media held by the players
+
+    private static final int BUFFER_MAP_THRESHOLD = 1024 * 1024; // Bytes from which in-memory media is mapped
 
     /**
      * Constructor.
      */
     public AudioHandler() {
-        this.players = new HashMap<String, AudioPlayer>();
+        this.players = new ConcurrentHashMap<String, AudioPlayer>();
         this.pausedForPhone = new ArrayList<AudioPlayer>();
         this.pausedForFocus = new ArrayList<AudioPlayer>();
+        this.duckedForFocus = new ArrayList<AudioPlayer>();
+    }
+
+    @Override
+    protected void pluginInitialize() {
+        this.scheduler = new AudioScheduler();
+        this.focusManager = new AudioFocusManager(cordova.getActivity().getApplicationContext(), focusChangeListener);
+        this.reaper = new PlayerReaper(this.players,
+                                       preferences.getInteger("MediaIdleTimeout", 120) * 1000L,
+                                       preferences.getInteger("MediaMaxPreparedPlayers", 16));
+        this.trimPriority = preferences.getInteger("MediaTrimPriority", 0);
+        this.bufferBudget = preferences.getInteger("MediaBufferBudget", 32) * 1024L * 1024L;
+        ArrayList<String> invalidLimits = new ArrayList<String>();
+        Map<String, Integer> voiceLimits = VoiceLimiter.parseLimits(preferences.getString("MediaVoiceLimits", null), invalidLimits);
+        for (String limit : invalidLimits) {
+            LOG.e(TAG, "Invalid voice limit " + limit);
+        }
+        String stealing = preferences.getString("MediaVoiceStealing", "oldest");
+        VoiceLimiter.POLICY policy = VoiceLimiter.parsePolicy(stealing);
+        if (policy == null) {
+            LOG.e(TAG, "Unknown voice stealing policy " + stealing);
+            policy = VoiceLimiter.POLICY.OLDEST;
+        }
+        this.voiceLimiter = new VoiceLimiter<AudioPlayer>(preferences.getInteger("MediaMaxVoices", 0), voiceLimits, policy);
+        cordova.getActivity().getApplicationContext().registerComponentCallbacks(this);
+
+        File[] legacyDirs = {
+            Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()) ? Environment.getExternalStorageDirectory() : null,
+            cordova.getActivity().getCacheDir()
+        };
+        this.sweeper = new RecordingSweeper(getRecordingDir(), legacyDirs,
+                                            preferences.getInteger("MediaRecordingOrphanAge", 24) * 3600000L,
+                                            preferences.getInteger("MediaRecordingQuota", 512) * 1024L * 1024L);
+        new Thread(this.sweeper, "MediaSweeper").start();
+
+        int traceSize = preferences.getInteger("MediaTraceSize", 0);
+        if (traceSize > 0) {
+            try {
+                this.tracer = new CallTracer(new File(cordova.getActivity().getCacheDir(), "media-trace.bin"), traceSize * 1024);
+            } catch (IOException e) {
+                LOG.e(TAG, "Failed to create the call trace", e);
+            }
+        }
     }
 
     protected void getWritePermission(int requestCode) {
@@ -94,27 +177,61 @@ public class AudioHandler extends CordovaPlugin {
 
     /**
      * Executes the request and returns PluginResult.
+     * With the MediaTraceSize preference, each call is recorded for replay.
      * @param action 		The action to execute.
      * @param args 			JSONArry of arguments for the plugin.
      * @param callbackContext		The callback context used when calling back into JavaScript.
      * @return 				A PluginResult object with a status and message.
      */
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+        if (this.tracer == null) {
+            return executeAction(action, args, callbackContext);
+        }
+        long start = System.nanoTime();
+        try {
+            return executeAction(action, args, callbackContext);
+        } finally {
+            this.tracer.record(start, System.nanoTime() - start, action, traceArgs(args).toString());
+        }
+    }
+
+    /**
+     * The arguments as recorded in the trace, with long strings summarized.
+     */
+    private static JSONArray traceArgs(JSONArray args) {
+        JSONArray traced = new JSONArray();
+        for (int i = 0; i < args.length(); i++) {
+            Object value = args.opt(i);
+            traced.put(value instanceof String ? CallTracer.summarize((String) value) : value);
+        }
+        return traced;
+    }
+
+    private boolean executeAction(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
         CordovaResourceApi resourceApi = webView.getResourceApi();
         PluginResult.Status status = PluginResult.Status.OK;
         String result = "";
 
         if (action.equals("startRecordingAudio")) {
-            recordId = args.getString(0);
             String target = args.getString(1);
+            String fileUriStr;
             try {
                 Uri targetUri = resourceApi.remapUri(Uri.parse(target));
                 fileUriStr = targetUri.toString();
             } catch (IllegalArgumentException e) {
                 fileUriStr = target;
             }
+            synchronized (this.pendingRecordings) {
+                this.pendingRecordings.add(new PendingRecording(args.getString(0), fileUriStr, args.optJSONObject(2)));
+            }
             promptForRecord();
         }
+        else if (action.equals("ackRecordingChunk")) {
+            AudioPlayer audio = this.players.get(args.getString(0));
+            if (audio != null) {
+                audio.ackChunk(args.getInt(1));
+            }
+        }
         else if (action.equals("stopRecordingAudio")) {
             this.stopRecordingAudio(args.getString(0), true);
         }
@@ -125,18 +242,22 @@ public class AudioHandler extends CordovaPlugin {
             this.resumeRecordingAudio(args.getString(0));
         }
         else if (action.equals("startPlayingAudio")) {
-            String target = args.getString(1);
-            String fileUriStr;
-            try {
-                Uri targetUri = resourceApi.remapUri(Uri.parse(target));
-                fileUriStr = targetUri.toString();
-            } catch (IllegalArgumentException e) {
-                fileUriStr = target;
-            }
-            this.startPlayingAudio(args.getString(0), FileHelper.stripFileProtocol(fileUriStr));
+            this.startPlayingAudio(args.getString(0), resolveSource(resourceApi, args.getString(1)), args.optJSONObject(2));
+        }
+        else if (action.equals("scheduleStart")) {
+            this.scheduleStart(args.getString(0), resolveSource(resourceApi, args.getString(1)), args.getDouble(2));
+        }
+        else if (action.equals("scheduleStop")) {
+            this.scheduleStop(args.getString(0), args.getDouble(1));
+        }
+        else if (action.equals("getAudioClock")) {
+            JSONObject clock = new JSONObject();
+            clock.put("time", this.scheduler.now());
+            callbackContext.sendPluginResult(new PluginResult(status, clock));
+            return true;
         }
         else if (action.equals("seekToAudio")) {
-            this.seekToAudio(args.getString(0), args.getInt(1));
+            this.seekToAudio(args.getString(0), args.getInt(1), args.optBoolean(2, false));
         }
         else if (action.equals("pausePlayingAudio")) {
             this.pausePlayingAudio(args.getString(0));
@@ -149,28 +270,226 @@ public class AudioHandler extends CordovaPlugin {
            } catch (NumberFormatException nfe) {
                //no-op
            }
+        } else if (action.equals("setRate")) {
+            this.setRate(args.getString(0), (float) args.getDouble(1));
+        } else if (action.equals("setPitch")) {
+            this.setPitch(args.getString(0), (float) args.getDouble(1));
+        } else if (action.equals("setLoop")) {
+            this.setLoop(args.getString(0), args.getBoolean(1), args.optInt(2, 0), args.optInt(3, 0), args.optInt(4, 0));
+        } else if (action.equals("playSprite")) {
+            AudioPlayer audio = this.players.get(args.getString(0));
+            if (audio != null && acquireVoice(audio)) {
+                JSONObject options = args.optJSONObject(2);
+                audio.playSprite(args.getString(1), options != null && options.optBoolean("overlap", false));
+            } else {
+                LOG.e(TAG, "AudioHandler.playSprite(): Error : Unknown Audio Player " + args.getString(0));
+            }
+        } else if (action.equals("stopSprite")) {
+            AudioPlayer audio = this.players.get(args.getString(0));
+            if (audio != null) {
+                audio.stopSprite(args.isNull(1) ? null : args.getString(1));
+            }
         } else if (action.equals("getCurrentPositionAudio")) {
             float f = this.getCurrentPositionAudio(args.getString(0));
             callbackContext.sendPluginResult(new PluginResult(status, f));
             return true;
         }
         else if (action.equals("getDurationAudio")) {
-            float f = this.getDurationAudio(args.getString(0), args.getString(1));
+            float f = this.getDurationAudio(args.getString(0), resolveSource(resourceApi, args.getString(1)));
             callbackContext.sendPluginResult(new PluginResult(status, f));
             return true;
         }
         else if (action.equals("create")) {
             String id = args.getString(0);
-            String src = FileHelper.stripFileProtocol(args.getString(1));
-            getOrCreatePlayer(id, src);
+            String src = resolveSource(resourceApi, args.getString(1));
+            AudioPlayer audio = getOrCreatePlayer(id, src);
+            JSONObject options = args.optJSONObject(2);
+            if (options != null) {
+                audio.setPriority(options.optInt("priority", 0));
+                if (options.has("engine")) {
+                    audio.setEngine(options.getString("engine"));
+                }
+                if (options.has("sprite")) {
+                    audio.setSprite(options.getJSONObject("sprite"));
+                }
+                if (options.has("normalize")) {
+                    audio.setNormalize(options.getBoolean("normalize"));
+                }
+                if (options.has("category")) {
+                    audio.setCategory(options.getString("category"));
+                }
+                if (options.has("focusPolicy")) {
+                    try {
+                        audio.setFocusPolicy(AudioPlayer.FOCUS.valueOf(options.getString("focusPolicy").toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        LOG.e(TAG, "Unknown focus policy " + options.getString("focusPolicy"));
+                    }
+                }
+            }
+        }
+        else if (action.equals("createFromBuffer")) {
+            String id = args.getString(0);
+            String mimeType = args.isNull(2) ? null : args.getString(2);
+            AudioPlayer audio = getOrCreatePlayer(id, AudioPlayer.BUFFER_SOURCE);
+            if (audio.getBuffer() != null) {
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, "Audio Player " + id + " already has a buffer"));
+                return true;
+            }
+            try {
+                audio.setBuffer(createBuffer(id, Base64.decode(args.getString(1), Base64.DEFAULT), mimeType));
+            } catch (IOException e) {
+                LOG.e(TAG, "Failed to keep the media of " + id + " in memory", e);
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, e.getMessage()));
+                return true;
+            }
+        }
+        else if (action.equals("startSpectrum")) {
+            String id = args.getString(0);
+            AudioPlayer audio = this.players.get(id);
+            if (audio == null) {
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, "Unknown Audio Player " + id));
+                return true;
+            }
+            JSONObject options = args.optJSONObject(1);
+            if (options == null) {
+                options = new JSONObject();
+            }
+            // the Visualizer captures the output, which requires the microphone permission
+            if (PermissionHelper.hasPermission(this, permissions[RECORD_AUDIO])) {
+                startSpectrum(audio, options);
+            } else {
+                boolean prompt;
+                synchronized (this.pendingSpectrums) {
+                    prompt = this.pendingSpectrums.isEmpty();
+                    this.pendingSpectrums.put(id, options);
+                }
+                if (prompt) {
+                    getMicPermission(SPECTRUM_REQUEST);
+                }
+            }
+        }
+        else if (action.equals("stopSpectrum")) {
+            String id = args.getString(0);
+            synchronized (this.pendingSpectrums) {
+                this.pendingSpectrums.remove(id);
+            }
+            AudioPlayer audio = this.players.get(id);
+            if (audio != null) {
+                audio.stopSpectrum();
+            }
         }
         else if (action.equals("release")) {
             boolean b = this.release(args.getString(0));
             callbackContext.sendPluginResult(new PluginResult(status, b));
             return true;
         }
+        else if (action.equals("getPlayerStats")) {
+            AudioPlayer audio = this.players.get(args.getString(0));
+            if (audio == null) {
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, "Unknown Audio Player " + args.getString(0)));
+                return true;
+            }
+            callbackContext.sendPluginResult(new PluginResult(status, audio.getStats()));
+            return true;
+        }
+        else if (action.equals("getAudioFocusStats")) {
+            callbackContext.sendPluginResult(new PluginResult(status, this.focusManager.getStats()));
+            return true;
+        }
+        else if (action.equals("getMemoryStats")) {
+            JSONObject stats = this.reaper.getStats();
+            stats.put("voices", this.voiceLimiter.getVoiceCount());
+            stats.put("maxVoices", this.voiceLimiter.getMaxVoices());
+            stats.put("voicesStolen", this.voiceLimiter.getStolen());
+            stats.put("voicesRefused", this.voiceLimiter.getRefused());
+            synchronized (this) {
+                stats.put("bufferBytes", this.bufferBytes);
+                stats.put("bufferBudget", this.bufferBudget);
+            }
+            callbackContext.sendPluginResult(new PluginResult(status, stats));
+            return true;
+        }
+        else if (action.equals("getSnapshot")) {
+            JSONArray snapshot = new JSONArray();
+            for (AudioPlayer audio : this.players.values()) {
+                snapshot.put(audio.getSnapshot());
+            }
+            callbackContext.sendPluginResult(new PluginResult(status, snapshot));
+            return true;
+        }
+        else if (action.equals("getTrace")) {
+            if (this.tracer == null) {
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, "Tracing is disabled"));
+                return true;
+            }
+            JSONObject trace = new JSONObject();
+            trace.put("file", this.tracer.flush().getAbsolutePath());
+            trace.put("records", this.tracer.getRecordCount());
+            callbackContext.sendPluginResult(new PluginResult(status, trace));
+            return true;
+        }
+        else if (action.equals("getStorageStats")) {
+            callbackContext.sendPluginResult(new PluginResult(status, this.sweeper.getStats()));
+            return true;
+        }
+        else if (action.equals("recoverRecordings")) {
+            final CallbackContext context = callbackContext;
+            cordova.getThreadPool().execute(new Runnable() {
+                public void run() {
+                    try {
+                        context.sendPluginResult(new PluginResult(PluginResult.Status.OK,
+                                RecordingJournal.recover(getRecordingDir())));
+                    } catch (JSONException e) {
+                        context.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+                    }
+                }
+            });
+            return true;
+        }
+        else if (action.equals("trimMedia")) {
+            ArrayList<MediaEditor.Segment> segments = new ArrayList<MediaEditor.Segment>();
+            segments.add(new MediaEditor.Segment(resolveSource(resourceApi, args.getString(0)),
+                                                 args.getLong(1), args.isNull(2) ? -1 : args.getLong(2)));
+            exportMedia(segments, resolveSource(resourceApi, args.getString(3)), args.optJSONObject(4), callbackContext);
+            return true;
+        }
+        else if (action.equals("concatMedia")) {
+            JSONArray sources = args.getJSONArray(0);
+            ArrayList<MediaEditor.Segment> segments = new ArrayList<MediaEditor.Segment>();
+            for (int i = 0; i < sources.length(); i++) {
+                segments.add(new MediaEditor.Segment(resolveSource(resourceApi, sources.getString(i)), 0, -1));
+            }
+            exportMedia(segments, resolveSource(resourceApi, args.getString(1)), args.optJSONObject(2), callbackContext);
+            return true;
+        }
+        else if (action.equals("transcode")) {
+            String target = resolveSource(resourceApi, args.getString(2));
+            JSONObject options = args.optJSONObject(3);
+            if (!target.startsWith("/")) {
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, "Invalid transcoding target " + target));
+                return true;
+            }
+            try {
+                getTranscodeQueue().enqueue(args.getString(0), resolveSource(resourceApi, args.getString(1)), target,
+                                            options != null ? options.optInt("bitRate", 0) : 0,
+                                            options != null ? options.optInt("priority", 0) : 0);
+            } catch (IOException e) {
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, e.getMessage()));
+                return true;
+            }
+        }
+        else if (action.equals("cancelTranscode")) {
+            callbackContext.sendPluginResult(new PluginResult(status, getTranscodeQueue().cancel(args.getString(0))));
+            return true;
+        }
+        else if (action.equals("getTranscodes")) {
+            callbackContext.sendPluginResult(new PluginResult(status, getTranscodeQueue().getJobs()));
+            return true;
+        }
         else if (action.equals("messageChannel")) {
             messageChannel = callbackContext;
+            // jobs left by a previous run report to the new channel
+            getTranscodeQueue().resume();
             return true;
         } else if (action.equals("getCurrentAmplitudeAudio")) {
             float f = this.getCurrentAmplitudeAudio(args.getString(0));
@@ -186,17 +505,99 @@ public class AudioHandler extends CordovaPlugin {
         return true;
     }
 
+    /**
+     * Resolve the src of a player: cdvfile:// and other plugin URLs are
+     * remapped, and file:// URLs become paths. content:// URIs are kept, the
+     * engines open them through the ContentResolver.
+     * @param resourceApi		The resource API of the webview
+     * @param target			The src given by JavaScript
+     * @return					the source to play
+     */
+    private static String resolveSource(CordovaResourceApi resourceApi, String target) {
+        String fileUriStr;
+        try {
+            Uri targetUri = resourceApi.remapUri(Uri.parse(target));
+            fileUriStr = targetUri.toString();
+        } catch (IllegalArgumentException e) {
+            fileUriStr = target;
+        }
+        return FileHelper.stripFileProtocol(fileUriStr);
+    }
+
+    /**
+     * Copy segments of media to a file without re-encoding, on a background
+     * thread. The callback receives { progress } results while the export
+     * runs, then { file, duration } once it is done.
+     * @param segments			The parts to copy, in order
+     * @param target			The file to write
+     * @param options			The export "format", or null
+     * @param callbackContext	The callback of the export
+     */
+    private void exportMedia(final List<MediaEditor.Segment> segments, final String target, JSONObject options,
+                             final CallbackContext callbackContext) {
+        final String format = options != null && !options.isNull("format") ? options.optString("format") : null;
+        final Context context = cordova.getActivity().getApplicationContext();
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                if (segments.isEmpty() || !target.startsWith("/")) {
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, "Invalid export of " + target));
+                    return;
+                }
+                try {
+                    long duration = MediaEditor.export(context, segments, target,
+                            MediaEditor.parseFormat(format, segments.get(0).source), new MediaEditor.Progress() {
+                        public void onProgress(float fraction) {
+                            JSONObject progress = new JSONObject();
+                            try {
+                                progress.put("progress", fraction);
+                            } catch (JSONException e) {
+                                return;
+                            }
+                            PluginResult result = new PluginResult(PluginResult.Status.OK, progress);
+                            result.setKeepCallback(true);
+                            callbackContext.sendPluginResult(result);
+                        }
+                    });
+                    JSONObject done = new JSONObject();
+                    done.put("file", target);
+                    done.put("duration", duration);
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, done));
+                } catch (IOException e) {
+                    LOG.e(TAG, "Failed to export " + target, e);
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, e.getMessage()));
+                } catch (JSONException e) {
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+                }
+            }
+        });
+    }
+
     /**
      * Stop all audio players and recorders.
      */
     public void onDestroy() {
-        if (!players.isEmpty()) {
-            onLastPlayerReleased();
+        cordova.getActivity().getApplicationContext().unregisterComponentCallbacks(this);
+        releaseAll();
+        if (this.scheduler != null) {
+            this.scheduler.shutdown();
+            this.scheduler = null;
         }
-        for (AudioPlayer audio : this.players.values()) {
-            audio.destroy();
+        if (this.reaper != null) {
+            this.reaper.shutdown();
+            this.reaper = null;
+        }
+        synchronized (this) {
+            this.simulationClock = null;
+            if (this.loudnessAnalyzer != null) {
+                this.loudnessAnalyzer.release();
+                this.unregisterCache(this.loudnessAnalyzer);
+                this.loudnessAnalyzer = null;
+            }
+            if (this.transcodeQueue != null) {
+                this.transcodeQueue.shutdown();
+                this.transcodeQueue = null;
+            }
         }
-        this.players.clear();
     }
 
     /**
@@ -204,7 +605,7 @@ public class AudioHandler extends CordovaPlugin {
      */
     @Override
     public void onReset() {
-        onDestroy();
+        releaseAll();
     }
 
     /**
@@ -224,7 +625,9 @@ public class AudioHandler extends CordovaPlugin {
                 // Get all audio players and pause them
                 for (AudioPlayer audio : this.players.values()) {
                     if (audio.getState() == AudioPlayer.STATE.MEDIA_RUNNING.ordinal()) {
-                        this.pausedForPhone.add(audio);
+                        synchronized (this.focusLock) {
+                            this.pausedForPhone.add(audio);
+                        }
                         audio.pausePlaying();
                     }
                 }
@@ -233,19 +636,473 @@ public class AudioHandler extends CordovaPlugin {
 
             // If phone idle, then resume playing those players we paused
             else if ("idle".equals(data)) {
-                for (AudioPlayer audio : this.pausedForPhone) {
-                    audio.startPlaying(null);
+                ArrayList<AudioPlayer> paused;
+                synchronized (this.focusLock) {
+                    paused = new ArrayList<AudioPlayer>(this.pausedForPhone);
+                    this.pausedForPhone.clear();
+                }
+                for (AudioPlayer audio : paused) {
+                    if (acquireVoice(audio)) {
+                        audio.startPlaying(null);
+                    }
                 }
-                this.pausedForPhone.clear();
             }
         }
         return null;
     }
 
+    /**
+     * Called when the system wants the application to trim its memory.
+     * Memory is released in tiers, each tier sending a "trim" event with
+     * the ids of the players that were released:
+     *      1: drop caches
+     *      2: release idle prepared players
+     *      3: release paused players up to the MediaTrimPriority priority
+     *
+     * @param level             The trim level from ComponentCallbacks2
+     */
+    public void onTrimMemory(int level) {
+        int tier;
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            tier = 3;
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW) {
+            tier = 2;
+        } else {
+            tier = 1;
+        }
+        trimMemory(level, tier);
+    }
+
+    /**
+     * Called when the whole system is running low on memory.
+     */
+    public void onLowMemory() {
+        trimMemory(TRIM_MEMORY_COMPLETE, 3);
+    }
+
     //--------------------------------------------------------------------------
     // LOCAL METHODS
     //--------------------------------------------------------------------------
 
+    /**
+     * Create a playback engine.
+     * @param type				"mediaplayer", "exoplayer" or "simulated", null for the MediaEngine preference
+     * @param audio				The player the engine is created for
+     * @return					a new engine
+     */
+    public PlaybackEngine createEngine(String type, AudioPlayer audio) {
+        if (type == null) {
+            type = preferences.getString("MediaEngine", "mediaplayer");
+        }
+        if (type.equalsIgnoreCase("simulated")) {
+            if (preferences.getBoolean("MediaSimulation", false)) {
+                SimulatedEngine engine = new SimulatedEngine(getSimulationClock());
+                engine.setFocusListener(new SimulatedFocus(audio));
+                return engine;
+            }
+            LOG.e(TAG, "The simulated engine is disabled, set the MediaSimulation preference to use it");
+        }
+        Context context = cordova.getActivity().getApplicationContext();
+        if (type.equalsIgnoreCase("exoplayer")) {
+            PlaybackEngine engine = createExoPlayerEngine(context);
+            if (engine != null) {
+                return engine;
+            }
+        }
+        return new MediaPlayerEngine(context);
+    }
+
+    /**
+     * Create an ExoPlayer engine. It comes with the cordova-plugin-media-exoplayer
+     * plugin, so that apps on the MediaPlayer engine don't need AndroidX and Media3.
+     * @param context			The application context
+     * @return					a new engine, null if the plugin is not installed
+     */
+    private PlaybackEngine createExoPlayerEngine(Context context) {
+        try {
+            Class<?> engine = Class.forName(EXOPLAYER_ENGINE);
+            return (PlaybackEngine) engine.getConstructor(Context.class, int.class, int.class, int.class, int.class)
+                    .newInstance(context,
+                                 preferences.getInteger("MediaExoMinBufferMs", 50000),
+                                 preferences.getInteger("MediaExoMaxBufferMs", 50000),
+                                 preferences.getInteger("MediaExoBufferForPlaybackMs", 2500),
+                                 preferences.getInteger("MediaExoBufferForPlaybackAfterRebufferMs", 5000));
+        } catch (ClassNotFoundException e) {
+            LOG.e(TAG, "The ExoPlayer engine needs the cordova-plugin-media-exoplayer plugin, using MediaPlayer");
+        } catch (Exception e) {
+            LOG.e(TAG, "Failed to create the ExoPlayer engine, using MediaPlayer", e);
+        }
+        return null;
+    }
+
+    /**
+     * Get the clock of the simulated engines, advanced on the main thread
+     * at MediaSimulationSpeed times the real time while events are pending.
+     * A clock without events is left alone until the next one is scheduled.
+     * @return					the clock
+     */
+    private synchronized VirtualClock getSimulationClock() {
+        if (this.simulationClock == null) {
+            final VirtualClock clock = new VirtualClock();
+            final float speed = Float.parseFloat(preferences.getString("MediaSimulationSpeed", "1"));
+            final Handler main = new Handler(Looper.getMainLooper());
+            final AtomicBoolean ticking = new AtomicBoolean(false);
+            final Runnable tick = new Runnable() {
+                long last = -1;                 // -1 after an idle period
+                double pending = 0;             // virtual msec not advanced yet
+                public void run() {
+                    if (getCurrentSimulationClock() != clock) {
+                        return;                 // the plugin was destroyed
+                    }
+                    long now = SystemClock.elapsedRealtime();
+                    if (last >= 0) {
+                        pending += (now - last) * speed;
+                    }
+                    last = now;
+                    clock.advance((long) pending);
+                    pending -= (long) pending;
+                    if (clock.getPendingCount() == 0) {
+                        // no engine is playing, preparing or seeking
+                        last = -1;
+                        ticking.set(false);
+                        if (clock.getPendingCount() == 0 || !ticking.compareAndSet(false, true)) {
+                            return;
+                        }
+                    }
+                    main.postDelayed(this, 10);
+                }
+            };
+            clock.setWakeUp(new Runnable() {
+                public void run() {
+                    if (ticking.compareAndSet(false, true)) {
+                        main.post(tick);
+                    }
+                }
+            });
+            this.simulationClock = clock;
+        }
+        return this.simulationClock;
+    }
+
+    private synchronized VirtualClock getCurrentSimulationClock() {
+        return this.simulationClock;
+    }
+
+    /**
+     * Applies the focus changes simulated by the engine of a player to that
+     * player only, following its focus policy. The system focus and the other
+     * players are left alone. Called on the main thread, which advances the
+     * simulation clock.
+     */
+    private class SimulatedFocus implements SimulatedEngine.FocusListener {
+        private final AudioPlayer audio;
+        private boolean paused = false;
+        private boolean ducked = false;
+
+        SimulatedFocus(AudioPlayer audio) {
+            this.audio = audio;
+        }
+
+        public void onFocusLoss(boolean canDuck) {
+            if (this.audio.getState() != AudioPlayer.STATE.MEDIA_RUNNING.ordinal()) {
+                return;
+            }
+            switch (this.audio.getFocusPolicy()) {
+            case IGNORE:
+                break;
+            case DUCK:
+                if (canDuck) {
+                    if (!this.ducked) {
+                        this.ducked = true;
+                        this.audio.duckVolume();
+                    }
+                    break;
+                }
+                // no ducking allowed, pause
+            case PAUSE:
+                this.paused = true;
+                this.audio.pausePlaying();
+                break;
+            }
+        }
+
+        public void onFocusGain() {
+            if (this.ducked) {
+                this.ducked = false;
+                this.audio.unduckVolume();
+            }
+            if (this.paused) {
+                this.paused = false;
+                // not if the player was released or started meanwhile
+                if (players.get(this.audio.getId()) == this.audio
+                        && this.audio.getState() == AudioPlayer.STATE.MEDIA_PAUSED.ordinal()
+                        && acquireVoice(this.audio)) {
+                    this.audio.startPlaying(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the application context.
+     * @return					the context
+     */
+    public Context getContext() {
+        return cordova.getActivity().getApplicationContext();
+    }
+
+    /**
+     * Get the directory of the temporary recording files.
+     * @return					the directory
+     */
+    public File getRecordingDir() {
+        Context context = cordova.getActivity().getApplicationContext();
+        File cache = null;
+        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            cache = context.getExternalCacheDir();
+        }
+        if (cache == null) {
+            cache = context.getCacheDir();
+        }
+        File dir = new File(cache, "recordings");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.e(TAG, "Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Check the temporary recording quota before a new segment is recorded.
+     * @return					the bytes left for the segment, or -1 without quota
+     */
+    public long reserveRecordingSpace() {
+        return this.sweeper.reserve();
+    }
+
+    /**
+     * Create the journal of a new recording.
+     * @param target			The absolute path of the recording
+     * @param format			RecordingJournal.FORMAT_AMR or FORMAT_ADTS
+     * @return					a new journal
+     */
+    public RecordingJournal createJournal(String target, String format) throws IOException {
+        return new RecordingJournal(getRecordingDir(), target, format,
+                                    preferences.getInteger("MediaRecordingSyncInterval", 5000));
+    }
+
+    /**
+     * Get the hub sharing the audio capture between recordings.
+     * @return					the hub
+     */
+    public CaptureHub getCaptureHub() {
+        return this.captureHub;
+    }
+
+    /**
+     * Check whether all recordings go through the capture hub, so that
+     * several players can record the microphone at the same time.
+     * @return					the MediaSharedCapture preference
+     */
+    public boolean isSharedCapture() {
+        return preferences.getBoolean("MediaSharedCapture", false);
+    }
+
+    /**
+     * Check whether players normalize their loudness by default.
+     * @return					the MediaLoudnessNormalization preference
+     */
+    public boolean getLoudnessNormalization() {
+        return preferences.getBoolean("MediaLoudnessNormalization", false);
+    }
+
+    /**
+     * Get the loudness analyzer shared by the players.
+     * @return					the analyzer
+     */
+    public synchronized LoudnessAnalyzer getLoudnessAnalyzer() {
+        if (this.loudnessAnalyzer == null) {
+            Context context = cordova.getActivity().getApplicationContext();
+            this.loudnessAnalyzer = new LoudnessAnalyzer(context,
+                                                         new File(context.getCacheDir(), "media-loudness.properties"),
+                                                         preferences.getDouble("MediaLoudnessTarget", -16));
+            registerCache(this.loudnessAnalyzer);
+        }
+        return this.loudnessAnalyzer;
+    }
+
+    /**
+     * Get the queue of transcoding jobs, which runs MediaTranscodeParallelism
+     * jobs at once and reports them as "transcode" events.
+     * @return					the queue
+     */
+    synchronized TranscodeQueue getTranscodeQueue() {
+        if (this.transcodeQueue == null) {
+            Context context = cordova.getActivity().getApplicationContext();
+            this.transcodeQueue = new TranscodeQueue(context, new File(context.getFilesDir(), "media-transcodes.json"),
+                                                     preferences.getInteger("MediaTranscodeParallelism", 1),
+                                                     new TranscodeQueue.Listener() {
+                public void onTranscode(JSONObject event) {
+                    sendEventMessage("transcode", event);
+                }
+            });
+        }
+        return this.transcodeQueue;
+    }
+
+    /**
+     * Copy in-memory media out of the Java heap, within the MediaBufferBudget
+     * preference. Media of BUFFER_MAP_THRESHOLD bytes or more is mapped from
+     * anonymous shared memory, so that it doesn't weigh on the native heap.
+     * @param id				The id of the audio player
+     * @param data				The encoded media
+     * @param mimeType			The MIME type of the media, or null
+     * @return					the buffer, to release with releaseBuffer
+     */
+    private MediaBuffer createBuffer(String id, byte[] data, String mimeType) throws IOException {
+        synchronized (this) {
+            if (this.bufferBytes + data.length > this.bufferBudget) {
+                throw new IOException("In-memory media budget exceeded: " + (this.bufferBytes + data.length)
+                                      + " > " + this.bufferBudget + " bytes");
+            }
+            this.bufferBytes += data.length;
+        }
+        MediaBuffer buffer = null;
+        try {
+            if (data.length >= BUFFER_MAP_THRESHOLD && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                final SharedMemory memory = SharedMemory.create("media-" + id, data.length);
+                final ByteBuffer mapped;
+                try {
+                    mapped = memory.mapReadWrite();
+                } catch (ErrnoException e) {
+                    memory.close();
+                    throw e;
+                }
+                mapped.put(data);
+                mapped.flip();
+                buffer = new MediaBuffer(mapped, mimeType, new Closeable() {
+                    public void close() {
+                        SharedMemory.unmap(mapped);
+                        memory.close();
+                    }
+                });
+            } else {
+                ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+                direct.put(data);
+                direct.flip();
+                buffer = new MediaBuffer(direct, mimeType, null);
+            }
+            return buffer;
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to map " + data.length + " bytes", e);
+        } finally {
+            if (buffer == null) {
+                synchronized (this) {
+                    this.bufferBytes -= data.length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Free in-memory media and give its bytes back to the budget.
+     * @param buffer			The buffer, may be null
+     */
+    private void releaseBuffer(MediaBuffer buffer) {
+        if (buffer != null && buffer.release()) {
+            synchronized (this) {
+                this.bufferBytes -= buffer.getSize();
+            }
+        }
+    }
+
+    /**
+     * Register a cache that is dropped when memory runs low.
+     * @param cache				The cache
+     */
+    public void registerCache(MediaCache cache) {
+        synchronized (this.caches) {
+            this.caches.add(cache);
+        }
+    }
+
+    /**
+     * Unregister a cache that was released.
+     * @param cache				The cache
+     */
+    public void unregisterCache(MediaCache cache) {
+        synchronized (this.caches) {
+            this.caches.remove(cache);
+        }
+    }
+
+    private void trimMemory(int level, int tier) {
+        LOG.d(TAG, "Trimming memory, level " + level + " tier " + tier);
+
+        long bytes = 0;
+        synchronized (this.caches) {
+            for (MediaCache cache : this.caches) {
+                bytes += cache.trim();
+            }
+        }
+        sendTrimEvent(level, 1, new ArrayList<String>(), bytes);
+
+        if (tier >= 2 && this.reaper != null) {
+            sendTrimEvent(level, 2, this.reaper.reclaimAllIdle(), 0);
+        }
+
+        if (tier >= 3) {
+            ArrayList<String> ids = new ArrayList<String>();
+            for (Map.Entry<String, AudioPlayer> entry : this.players.entrySet()) {
+                AudioPlayer audio = entry.getValue();
+                if (audio.getPriority() <= this.trimPriority && audio.releaseIfPaused()) {
+                    ids.add(entry.getKey());
+                }
+            }
+            sendTrimEvent(level, 3, ids, 0);
+        }
+    }
+
+    private void sendTrimEvent(int level, int tier, ArrayList<String> ids, long bytes) {
+        JSONObject trim = new JSONObject();
+        try {
+            trim.put("level", level);
+            trim.put("tier", tier);
+            trim.put("ids", new JSONArray(ids));
+            trim.put("bytes", bytes);
+        } catch (JSONException e) {
+            LOG.e(TAG, "Failed to create trim event", e);
+        }
+        sendEventMessage("trim", trim);
+    }
+
+    /**
+     * Cancel scheduled work and destroy all audio players.
+     */
+    private void releaseAll() {
+        if (this.scheduler != null) {
+            this.scheduler.cancelAll();
+        }
+        if (!players.isEmpty()) {
+            onLastPlayerReleased();
+        }
+        for (AudioPlayer audio : this.players.values()) {
+            audio.destroy();
+            releaseBuffer(audio.setBuffer(null));
+        }
+        this.players.clear();
+        if (this.voiceLimiter != null) {
+            this.voiceLimiter.clear();
+        }
+        synchronized (this.focusLock) {
+            this.pausedForPhone.clear();
+            this.pausedForFocus.clear();
+            this.duckedForFocus.clear();
+        }
+        if (this.focusManager != null) {
+            this.focusManager.abandon();
+        }
+    }
+
     private AudioPlayer getOrCreatePlayer(String id, String file) {
         AudioPlayer ret = players.get(id);
         if (ret == null) {
@@ -267,10 +1124,21 @@ public class AudioHandler extends CordovaPlugin {
         if (audio == null) {
             return false;
         }
+        if (this.scheduler != null) {
+            this.scheduler.cancel(id);
+        }
         if (players.isEmpty()) {
             onLastPlayerReleased();
         }
         audio.destroy();
+        releaseBuffer(audio.setBuffer(null));
+        this.voiceLimiter.release(audio);
+        synchronized (this.focusLock) {
+            this.pausedForPhone.remove(audio);
+            this.pausedForFocus.remove(audio);
+            this.duckedForFocus.remove(audio);
+        }
+        abandonFocusIfIdle();
         return true;
     }
 
@@ -278,10 +1146,11 @@ public class AudioHandler extends CordovaPlugin {
      * Start recording and save the specified file.
      * @param id				The id of the audio player
      * @param file				The name of the file
+     * @param options			The chunk streaming options, or null
      */
-    public void startRecordingAudio(String id, String file) {
+    public void startRecordingAudio(String id, String file, JSONObject options) {
         AudioPlayer audio = getOrCreatePlayer(id, file);
-        audio.startRecording(file);
+        audio.startRecording(file, options);
     }
 
     /**
@@ -311,22 +1180,120 @@ public class AudioHandler extends CordovaPlugin {
      * Start or resume playing audio file.
      * @param id				The id of the audio player
      * @param file				The name of the audio file.
+     * @param options			Playback options, may be null
      */
-    public void startPlayingAudio(String id, String file) {
+    public void startPlayingAudio(String id, String file, JSONObject options) {
         AudioPlayer audio = getOrCreatePlayer(id, file);
-        audio.startPlaying(file);
-        getAudioFocus();
+        applyPrebuffer(audio, options);
+        startWithFocus(audio, file);
+        this.reaper.requestSweep();
+    }
+
+    /**
+     * Start playing audio file at the given audio clock time.
+     * The player takes its voice and the focus, and is prepared, right away,
+     * so that the scheduler thread only starts the native player once the
+     * time has come. A player whose focus request is delayed starts when the
+     * focus is granted instead.
+     * @param id				The id of the audio player
+     * @param file				The name of the audio file.
+     * @param atTimeMs			Audio clock time to start at, in msec
+     */
+    public void scheduleStart(final String id, final String file, double atTimeMs) {
+        final AudioPlayer audio = getOrCreatePlayer(id, file);
+        applyPrebuffer(audio, null);
+        if (acquireVoiceAndFocus(audio, file) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+            audio.prepareScheduled(file);
+            this.scheduler.scheduleStart(id, atTimeMs, new Runnable() {
+                public void run() {
+                    audio.startScheduled();
+                }
+            });
+        }
+        this.reaper.requestSweep();
+    }
+
+    /**
+     * Set the prebuffering of a player from the preferences and its options.
+     * @param audio				The audio player
+     * @param options			Playback options, may be null
+     */
+    private void applyPrebuffer(AudioPlayer audio, JSONObject options) {
+        int prebuffer = preferences.getInteger("MediaPrebufferMs", 0);
+        long prebufferTimeout = preferences.getInteger("MediaPrebufferTimeout", 10000);
+        if (options != null) {
+            prebuffer = options.optInt("prebufferMs", prebuffer);
+            prebufferTimeout = options.optLong("prebufferTimeout", prebufferTimeout);
+        }
+        audio.setPrebuffer(prebuffer, prebufferTimeout);
+    }
+
+    /**
+     * Start a player once it has a voice and the audio focus.
+     * @param audio				The audio player
+     * @param file				The name of the audio file.
+     */
+    private void startWithFocus(AudioPlayer audio, String file) {
+        if (acquireVoiceAndFocus(audio, file) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+            audio.startPlaying(file);
+        }
+    }
+
+    /**
+     * Take a voice and the audio focus for a player about to start. A player
+     * whose focus request is delayed is prepared, and starts when the focus is
+     * granted. A player refused the focus gives back its voice.
+     * @param audio				The audio player
+     * @param file				The name of the audio file.
+     * @return					The focus request result, AUDIOFOCUS_REQUEST_FAILED if the player was refused a voice
+     */
+    private int acquireVoiceAndFocus(AudioPlayer audio, String file) {
+        if (!acquireVoice(audio)) {
+            return AudioManager.AUDIOFOCUS_REQUEST_FAILED;
+        }
+        int focus;
+        synchronized (this.focusLock) {
+            focus = getAudioFocus();
+            if (focus == AudioManager.AUDIOFOCUS_REQUEST_DELAYED && !this.pausedForFocus.contains(audio)) {
+                this.pausedForFocus.add(audio);
+            }
+        }
+        if (focus == AudioManager.AUDIOFOCUS_REQUEST_DELAYED) {
+            // start once the system grants the focus
+            audio.preparePlaying(file);
+        } else if (focus != AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+            this.voiceLimiter.release(audio);
+            audio.refuseFocus();
+        }
+        return focus;
+    }
+
+    /**
+     * Stop playing audio file at the given audio clock time.
+     * @param id				The id of the audio player
+     * @param atTimeMs			Audio clock time to stop at, in msec
+     */
+    public void scheduleStop(String id, double atTimeMs) {
+        final AudioPlayer audio = this.players.get(id);
+        if (audio != null) {
+            this.scheduler.scheduleStop(id, atTimeMs, new Runnable() {
+                public void run() {
+                    audio.stopPlaying();
+                }
+            });
+        }
     }
 
     /**
      * Seek to a location.
      * @param id				The id of the audio player
      * @param milliseconds		int: number of milliseconds to skip 1000 = 1 second
+     * @param fast				seek to the closest sync frame, e.g. while scrubbing
      */
-    public void seekToAudio(String id, int milliseconds) {
+    public void seekToAudio(String id, int milliseconds, boolean fast) {
         AudioPlayer audio = this.players.get(id);
         if (audio != null) {
-            audio.seekToPlaying(milliseconds);
+            audio.seekToPlaying(milliseconds, fast);
         }
     }
 
@@ -397,20 +1364,85 @@ public class AudioHandler extends CordovaPlugin {
         }
     }
 
-    public void pauseAllLostFocus() {
+    /**
+     * Pause or duck the playing audio players according to their focus policy.
+     * @param canDuck			true if the focus loss allows ducking
+     */
+    public void pauseAllLostFocus(boolean canDuck) {
         for (AudioPlayer audio : this.players.values()) {
-            if (audio.getState() == AudioPlayer.STATE.MEDIA_RUNNING.ordinal()) {
-                this.pausedForFocus.add(audio);
+            if (audio.getState() != AudioPlayer.STATE.MEDIA_RUNNING.ordinal()) {
+                continue;
+            }
+            switch (audio.getFocusPolicy()) {
+            case IGNORE:
+                break;
+            case DUCK:
+                if (canDuck) {
+                    boolean duck;
+                    synchronized (this.focusLock) {
+                        duck = !this.duckedForFocus.contains(audio);
+                        if (duck) {
+                            this.duckedForFocus.add(audio);
+                        }
+                    }
+                    if (duck) {
+                        audio.duckVolume();
+                    }
+                    break;
+                }
+                // no ducking allowed, pause
+            case PAUSE:
+                synchronized (this.focusLock) {
+                    if (!this.pausedForFocus.contains(audio)) {
+                        this.pausedForFocus.add(audio);
+                    }
+                }
+                audio.pausePlaying();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Pause the playing audio players for good, after another app took the
+     * focus permanently. Nothing resumes them on a later gain, and the players
+     * waiting for a delayed gain are dropped; the app has to start them again.
+     */
+    public void pauseAllLostFocusPermanently() {
+        ArrayList<AudioPlayer> ducked;
+        synchronized (this.focusLock) {
+            ducked = new ArrayList<AudioPlayer>(this.duckedForFocus);
+            this.duckedForFocus.clear();
+            this.pausedForFocus.clear();
+        }
+        for (AudioPlayer audio : ducked) {
+            audio.unduckVolume();
+        }
+        for (AudioPlayer audio : this.players.values()) {
+            if (audio.getState() == AudioPlayer.STATE.MEDIA_RUNNING.ordinal()
+                    && audio.getFocusPolicy() != AudioPlayer.FOCUS.IGNORE) {
                 audio.pausePlaying();
             }
         }
     }
 
     public void resumeAllGainedFocus() {
-        for (AudioPlayer audio : this.pausedForFocus) {
-            audio.startPlaying(null);
+        ArrayList<AudioPlayer> ducked;
+        ArrayList<AudioPlayer> paused;
+        synchronized (this.focusLock) {
+            ducked = new ArrayList<AudioPlayer>(this.duckedForFocus);
+            this.duckedForFocus.clear();
+            paused = new ArrayList<AudioPlayer>(this.pausedForFocus);
+            this.pausedForFocus.clear();
+        }
+        for (AudioPlayer audio : ducked) {
+            audio.unduckVolume();
+        }
+        for (AudioPlayer audio : paused) {
+            if (acquireVoice(audio)) {
+                audio.startPlaying(null);
+            }
         }
-        this.pausedForFocus.clear();
     }
 
     /**
@@ -418,11 +1450,17 @@ public class AudioHandler extends CordovaPlugin {
      */
     private OnAudioFocusChangeListener focusChangeListener = new OnAudioFocusChangeListener() {
             public void onAudioFocusChange(int focusChange) {
+                focusManager.onFocusChange(focusChange);
                 switch (focusChange) {
                 case (AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK) :
+                    pauseAllLostFocus(true);
+                    break;
                 case (AudioManager.AUDIOFOCUS_LOSS_TRANSIENT) :
+                    pauseAllLostFocus(false);
+                    break;
                 case (AudioManager.AUDIOFOCUS_LOSS) :
-                    pauseAllLostFocus();
+                    // the focus manager abandoned the focus already
+                    pauseAllLostFocusPermanently();
                     break;
                 case (AudioManager.AUDIOFOCUS_GAIN):
                     resumeAllGainedFocus();
@@ -433,18 +1471,72 @@ public class AudioHandler extends CordovaPlugin {
             }
         };
 
-    public void getAudioFocus() {
-        String TAG2 = "AudioHandler.getAudioFocus(): Error : ";
+    /**
+     * Get the audio focus. The system is only asked when the focus is not held already.
+     * @return					AUDIOFOCUS_REQUEST_GRANTED, _DELAYED or _FAILED
+     */
+    public int getAudioFocus() {
+        return this.focusManager.request();
+    }
 
-        AudioManager am = (AudioManager) this.cordova.getActivity().getSystemService(Context.AUDIO_SERVICE);
-        int result = am.requestAudioFocus(focusChangeListener,
-                                          AudioManager.STREAM_MUSIC,
-                                          AudioManager.AUDIOFOCUS_GAIN);
+    /**
+     * Called by audio players when their state changes.
+     * @param audio				The audio player
+     * @param state				The new state
+     */
+    public void onPlayerStateChanged(AudioPlayer audio, AudioPlayer.STATE state) {
+        if (state != AudioPlayer.STATE.MEDIA_RUNNING && state != AudioPlayer.STATE.MEDIA_STARTING) {
+            this.voiceLimiter.release(audio);
+        }
+        if (state == AudioPlayer.STATE.MEDIA_STOPPED) {
+            abandonFocusIfIdle();
+        } else if (state == AudioPlayer.STATE.MEDIA_RUNNING && this.focusManager != null) {
+            // e.g. scheduled or resumed players, no system call if focus is held
+            this.focusManager.request();
+        }
+    }
 
-        if (result != AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
-            LOG.e(TAG2,result + " instead of " + AudioManager.AUDIOFOCUS_REQUEST_GRANTED);
+    /**
+     * Take a voice for a player about to start, stealing the voices of other
+     * players if needed.
+     * @param audio				The player
+     * @return					false if the player was refused a voice
+     */
+    private boolean acquireVoice(AudioPlayer audio) {
+        if (!this.voiceLimiter.isEnabled()) {
+            return true;
+        }
+        List<AudioPlayer> victims = this.voiceLimiter.acquire(audio);
+        if (victims == null) {
+            LOG.d(TAG, "No voice for player " + audio.getId() + ", all voices have a higher priority");
+            audio.refuseVoice();
+            return false;
         }
+        for (AudioPlayer victim : victims) {
+            victim.stealVoice();
+        }
+        return true;
+    }
 
+    /**
+     * Abandon the audio focus once no player is playing or waiting for focus.
+     */
+    private void abandonFocusIfIdle() {
+        if (this.focusManager == null) {
+            return;
+        }
+        // held while abandoning, so that no player is queued for a delayed gain meanwhile
+        synchronized (this.focusLock) {
+            if (!this.pausedForFocus.isEmpty()) {
+                return;
+            }
+            for (AudioPlayer audio : this.players.values()) {
+                if (audio.getState() == AudioPlayer.STATE.MEDIA_RUNNING.ordinal()) {
+                    return;
+                }
+            }
+            this.focusManager.abandon();
+        }
     }
 
 
@@ -484,6 +1576,54 @@ public class AudioHandler extends CordovaPlugin {
         }
     }
 
+    /**
+     * Set the playback rate for an audio player
+     *
+     * @param id				The id of the audio player
+     * @param rate              Playback speed, 1.0f is normal speed
+     */
+    public void setRate(String id, float rate) {
+        AudioPlayer audio = this.players.get(id);
+        if (audio != null) {
+            audio.setRate(rate);
+        } else {
+            LOG.e(TAG, "AudioHandler.setRate(): Error : Unknown Audio Player " + id);
+        }
+    }
+
+    /**
+     * Set the playback pitch for an audio player
+     *
+     * @param id				The id of the audio player
+     * @param pitch             Playback pitch, 1.0f is normal pitch
+     */
+    public void setPitch(String id, float pitch) {
+        AudioPlayer audio = this.players.get(id);
+        if (audio != null) {
+            audio.setPitch(pitch);
+        } else {
+            LOG.e(TAG, "AudioHandler.setPitch(): Error : Unknown Audio Player " + id);
+        }
+    }
+
+    /**
+     * Loop a region of an audio player
+     *
+     * @param id				The id of the audio player
+     * @param enabled           Whether to loop
+     * @param startMs           Start of the region in msec
+     * @param endMs             End of the region in msec, 0 for the end of the file
+     * @param count             Number of loops, 0 for forever
+     */
+    public void setLoop(String id, boolean enabled, int startMs, int endMs, int count) {
+        AudioPlayer audio = this.players.get(id);
+        if (audio != null) {
+            audio.setLoop(enabled, startMs, endMs, count);
+        } else {
+            LOG.e(TAG, "AudioHandler.setLoop(): Error : Unknown Audio Player " + id);
+        }
+    }
+
     private void onFirstPlayerCreated() {
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
@@ -499,7 +1639,15 @@ public class AudioHandler extends CordovaPlugin {
         }
     }
 
-    void sendEventMessage(String action, JSONObject actionData) {
+    public void sendEventMessage(String action, JSONObject actionData) {
+        sendEventMessage(action, actionData, null);
+    }
+
+    /**
+     * Send an event with a binary payload, which JavaScript receives as an
+     * ArrayBuffer in the second argument of the message channel callback.
+     */
+    public void sendEventMessage(String action, JSONObject actionData, byte[] payload) {
         JSONObject message = new JSONObject();
         try {
             message.put("action", action);
@@ -510,7 +1658,14 @@ public class AudioHandler extends CordovaPlugin {
             LOG.e(TAG, "Failed to create event message", e);
         }
 
-        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, message);
+        PluginResult pluginResult;
+        if (payload != null) {
+            pluginResult = new PluginResult(PluginResult.Status.OK, Arrays.asList(
+                    new PluginResult(PluginResult.Status.OK, message),
+                    new PluginResult(PluginResult.Status.OK, payload)));
+        } else {
+            pluginResult = new PluginResult(PluginResult.Status.OK, message);
+        }
         pluginResult.setKeepCallback(true);
         if (messageChannel != null) {
             messageChannel.sendPluginResult(pluginResult);
@@ -519,8 +1674,19 @@ public class AudioHandler extends CordovaPlugin {
 
     public void onRequestPermissionResult(int requestCode, String[] permissions,
                                           int[] grantResults) throws JSONException {
+        if (requestCode == SPECTRUM_REQUEST) {
+            onSpectrumPermissionResult(grantResults);
+            return;
+        }
+        synchronized (this.pendingRecordings) {
+            this.permissionRequested = false;
+        }
         for(int r:grantResults) {
             if(r == PackageManager.PERMISSION_DENIED) {
+                // the prompt was for all the recordings waiting for it
+                synchronized (this.pendingRecordings) {
+                    this.pendingRecordings.clear();
+                }
                 this.messageChannel.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, PERMISSION_DENIED_ERROR));
                 return;
             }
@@ -529,16 +1695,66 @@ public class AudioHandler extends CordovaPlugin {
         promptForRecord();
     }
 
+    private void onSpectrumPermissionResult(int[] grantResults) {
+        HashMap<String, JSONObject> waiting;
+        synchronized (this.pendingSpectrums) {
+            waiting = new HashMap<String, JSONObject>(this.pendingSpectrums);
+            this.pendingSpectrums.clear();
+        }
+        boolean granted = true;
+        for (int r : grantResults) {
+            if (r == PackageManager.PERMISSION_DENIED) {
+                granted = false;
+            }
+        }
+        for (Map.Entry<String, JSONObject> entry : waiting.entrySet()) {
+            AudioPlayer audio = this.players.get(entry.getKey());
+            if (audio == null) {
+                continue;
+            }
+            if (granted) {
+                startSpectrum(audio, entry.getValue());
+            } else {
+                // an error result would close the message channel
+                audio.refuseSpectrum();
+            }
+        }
+    }
+
+    /**
+     * Start the spectrum analysis of a player.
+     * @param audio				The player
+     * @param options			The number of "bins" and the "rate" in spectrums per second
+     */
+    private void startSpectrum(AudioPlayer audio, JSONObject options) {
+        audio.startSpectrum(options.optInt("bins", 256), options.optDouble("rate", 20));
+    }
+
     /*
      * This little utility method catch-all work great for multi-permission stuff.
-     *
+     * Recordings requested while a prompt is showing wait for its result,
+     * then all start.
      */
     private void promptForRecord() {
         if(PermissionHelper.hasPermission(this, permissions[WRITE_EXTERNAL_STORAGE])  &&
                 PermissionHelper.hasPermission(this, permissions[RECORD_AUDIO])) {
-            this.startRecordingAudio(recordId, FileHelper.stripFileProtocol(fileUriStr));
+            ArrayList<PendingRecording> ready;
+            synchronized (this.pendingRecordings) {
+                ready = new ArrayList<PendingRecording>(this.pendingRecordings);
+                this.pendingRecordings.clear();
+            }
+            for (PendingRecording recording : ready) {
+                this.startRecordingAudio(recording.id, FileHelper.stripFileProtocol(recording.file), recording.options);
+            }
+            return;
+        }
+        synchronized (this.pendingRecordings) {
+            if (this.permissionRequested) {
+                return;
+            }
+            this.permissionRequested = true;
         }
-        else if(PermissionHelper.hasPermission(this, permissions[RECORD_AUDIO])) {
+        if(PermissionHelper.hasPermission(this, permissions[RECORD_AUDIO])) {
             getWritePermission(WRITE_EXTERNAL_STORAGE);
         }
         else {
@@ -546,6 +1762,21 @@ public class AudioHandler extends CordovaPlugin {
         }
     }
 
+    /**
+     * A recording waiting for the permission prompt.
+     */
+    private static class PendingRecording {
+        final String id;
+        final String file;
+        final JSONObject options;
+
+        PendingRecording(String id, String file, JSONObject options) {
+            this.id = id;
+            this.file = file;
+            this.options = options;
+        }
+    }
+
     /**
      * Get current amplitude of recording.
      * @param id				The id of the audio player
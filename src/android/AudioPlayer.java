@@ -18,25 +18,25 @@
 */
 package org.apache.cordova.media;
 
-import android.media.AudioManager;
 import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnCompletionListener;
-import android.media.MediaPlayer.OnErrorListener;
-import android.media.MediaPlayer.OnPreparedListener;
 import android.media.MediaRecorder;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 
 import org.apache.cordova.LOG;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 /**
@@ -48,11 +48,15 @@ import java.util.LinkedList;
  *      android_asset:      file name must start with /android_asset/sound.mp3
  *      sdcard:             file name is just sound.mp3
  */
-public class AudioPlayer implements OnCompletionListener, OnPreparedListener, OnErrorListener {
+public class AudioPlayer implements PlaybackEngine.Listener, SpriteMixer.Listener, LoudnessAnalyzer.Callback,
+        SpectrumAnalyzer.Listener, VoiceLimiter.Voice {
 
     // AudioPlayer modes
     public enum MODE { NONE, PLAY, RECORD };
 
+    // AudioPlayer reactions to a loss of audio focus
+    public enum FOCUS { PAUSE, DUCK, IGNORE };
+
     // AudioPlayer states
     public enum STATE { MEDIA_NONE,
                         MEDIA_STARTING,
@@ -64,45 +68,155 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
 
     private static final String LOG_TAG = "AudioPlayer";
 
+    // Source of the players created from a buffer
+    public static final String BUFFER_SOURCE = "buffer:";
+
     // AudioPlayer message ids
     private static int MEDIA_STATE = 1;
     private static int MEDIA_DURATION = 2;
     private static int MEDIA_POSITION = 3;
+    private static int MEDIA_BUFFERING = 4;
+    private static int MEDIA_STALL_START = 5;
+    private static int MEDIA_STALL_END = 6;
+    private static int MEDIA_LOOP = 7;
+    private static int MEDIA_STOLEN = 8;
     private static int MEDIA_ERROR = 9;
 
     // Media error codes
     private static int MEDIA_ERR_NONE_ACTIVE    = 0;
     private static int MEDIA_ERR_ABORTED        = 1;
-//    private static int MEDIA_ERR_NETWORK        = 2;
+    private static int MEDIA_ERR_NETWORK        = 2;
 //    private static int MEDIA_ERR_DECODE         = 3;
-//    private static int MEDIA_ERR_NONE_SUPPORTED = 4;
+    private static int MEDIA_ERR_NONE_SUPPORTED = 4;
 
-    private AudioHandler handler;           // The AudioHandler object
+    private PlayerHost handler;             // The AudioHandler, or another host
     private String id;                      // The id of this player (used to identify Media object in JavaScript)
-    private MODE mode = MODE.NONE;          // Playback or Recording mode
-    private STATE state = STATE.MEDIA_NONE; // State of recording or playback
+    // volatile fields are also read by getSnapshot without the lock
+    private volatile MODE mode = MODE.NONE; // Playback or Recording mode
+    private volatile STATE state = STATE.MEDIA_NONE; // State of recording or playback
 
     private String audioFile = null;        // File name to play or record to
-    private float duration = -1;            // Duration of audio
+    private MediaBuffer buffer = null;      // In-memory media, played for BUFFER_SOURCE
+    private volatile float duration = -1;   // Duration of audio
 
     private MediaRecorder recorder = null;  // Audio recording object
+    private VoiceRecorder voiceRecorder = null; // Recorder that skips silence, used instead of recorder
+    private JSONArray timeline = null;      // Kept segments of a recording without silence
+    private long timelineRecorded = 0;      // msec recorded by previous voice recorders
+    private long timelineKept = 0;          // msec kept by previous voice recorders
     private LinkedList<String> tempFiles = null; // Temporary recording file name
     private String tempFile = null;
-
-    private MediaPlayer player = null;      // Audio player object
+    private boolean recordAdts = false;     // recording in AAC ADTS format instead of AMR
+    private RecordingStreamer streamer = null; // Chunked output of a streamed recording
+    private ParcelFileDescriptor recordPipe = null; // Recorder side of the streamer pipe
+    private RecordingStreamer.ChannelSink channelSink = null; // Sink acknowledged by JavaScript
+    private JSONObject recordOptions = null; // Streaming options, kept for resume
+    private RecordingJournal journal = null; // On-disk manifest of the recorded segments
+    private boolean recordFailed = false;   // a segment is incomplete, the recording isn't saved
+
+    private volatile PlaybackEngine player = null; // Audio player object
+    private String engine = null;           // Playback engine type, null for the default
     private boolean prepareOnly = true;     // playback after file prepare flag
+    private boolean prepared = false;       // player is prepared and could be released while idle
+    private volatile long lastUsed = SystemClock.elapsedRealtime(); // time of last state change or playback request
+    private boolean pinned = false;         // prepared for a scheduled start, never released meanwhile
     private int seekOnPrepared = 0;     // seek to this location once media is prepared
 
-    private float volume;
+    // Seek coalescing
+    private static final long SEEK_TIMEOUT = 1000; // msec after which a seek without completion is forgotten
+    private boolean seekInFlight = false;   // a seek was sent to the engine and hasn't completed
+    private long seekStartedAt = 0;         // time the seek in flight was sent
+    private int seekTarget = 0;             // position of the seek in flight
+    private int pendingSeek = -1;           // latest position requested while a seek is in flight
+    private boolean pendingSeekFast = false;
+    private int seekCount = 0;              // number of seeks sent to the engine
+    private int seeksMerged = 0;            // number of requested seeks replaced by a later one
+
+    private volatile float volume;
     private float origVolume;
 
+    // Loudness normalization
+    private Boolean normalize = null;       // normalize the loudness, null for the MediaLoudnessNormalization preference
+    private float loudnessGain = 1.0f;      // gain applied on top of the volume
+    private float pendingLoudnessGain = -1; // gain measured during playback, applied once it stops
+    private String loudnessSource = null;   // file whose gain is applied or awaited
+    private LoudnessAnalyzer.Request loudnessRequest = null;
+
+    // Spectrum analysis
+    private int spectrumBins = 0;           // bins requested, 0 when not analyzing
+    private double spectrumRate = 0;        // spectrums per second requested
+    private SpectrumAnalyzer spectrum = null; // attached to the audio session of the engine
+    private int spectrumSeq = 0;            // sequence number of the last spectrum, on the capture thread
+
+    private int priority = 0;               // Higher priority players are kept longer under memory pressure and keep their voice
+    private String category = null;         // Voice limit category, null for none
+    private FOCUS focusPolicy = FOCUS.PAUSE; // Reaction to a loss of audio focus
+
+    // Streaming
+    private int prebufferMs = 0;            // msec of audio buffered ahead required before a stream starts
+    private long prebufferTimeout = 10000;  // maximum time to wait for the prebuffer in msec
+    private boolean waitingForBuffer = false; // prepared stream waits for the prebuffer to start
+    private int bufferedPercent = 0;        // last reported buffered percentage
+    private long loadStartedAt = -1;        // time the stream started loading
+    private long timeToFirstAudio = -1;     // time from load to playback start in msec
+    private long stallStartedAt = -1;       // time the current stall started
+    private int stallCount = 0;             // number of stalls since the stream was loaded
+    private long stallTime = 0;             // total stall time in msec
+    private Handler timeoutHandler = new Handler(Looper.getMainLooper());
+    private Runnable scheduledStartTask = new Runnable() {
+        public void run() {
+            synchronized (AudioPlayer.this) {
+                if (state == STATE.MEDIA_RUNNING) {
+                    // startScheduled() only set the state
+                    sendStatusChange(MEDIA_STATE, null, (float)state.ordinal());
+                    lastUsed = SystemClock.elapsedRealtime();
+                    handler.onPlayerStateChanged(AudioPlayer.this, state);
+                    onFirstAudio();
+                }
+            }
+        }
+    };
+    private Runnable prebufferTimeoutTask = new Runnable() {
+        public void run() {
+            synchronized (AudioPlayer.this) {
+                if (waitingForBuffer) {
+                    LOG.d(LOG_TAG, "Prebuffer timeout, starting at " + bufferedPercent + "%");
+                    startBuffered();
+                }
+            }
+        }
+    };
+
+    private float rate = 1.0f;              // Playback speed
+    private float pitch = 1.0f;             // Playback pitch
+    private boolean playbackParamsSet = false; // rate or pitch were ever changed
+
+    // Looping
+    private boolean loopEnabled = false;
+    private int loopStart = 0;              // start of the looped region in msec
+    private int loopEnd = 0;                // end of the looped region in msec, 0 for the end of the file
+    private int loopCount = 0;              // number of loops before playback continues, 0 for forever
+    private int loops = 0;                  // number of loops since looping was enabled
+
+    // Audio sprite
+    private HashMap<String, int[]> sprite = null; // region name to { start, duration } in msec
+    private String spriteName = null;       // region played by the engine
+    private int spriteEnd = 0;              // end of that region in msec
+    private SpriteMixer spriteMixer = null; // plays overlapping regions from decoded PCM
+
+    private final Runnable spriteStop = new Runnable() {
+        public void run() {
+            onSpriteTimer();
+        }
+    };
+
     /**
      * Constructor.
      *
-     * @param handler           The audio handler object
+     * @param handler           The host of the player, the AudioHandler in the plugin
      * @param id                The id of this audio player
      */
-    public AudioPlayer(AudioHandler handler, String id, String file) {
+    public AudioPlayer(PlayerHost handler, String id, String file) {
         this.handler = handler;
         this.id = id;
         this.audioFile = file;
@@ -111,33 +225,54 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
     }
 
     private String generateTempFile() {
-      String tempFileName = null;
-      if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-          tempFileName = Environment.getExternalStorageDirectory().getAbsolutePath() + "/tmprecording-" + System.currentTimeMillis() + ".3gp";
-      } else {
-          tempFileName = "/data/data/" + handler.cordova.getActivity().getPackageName() + "/cache/tmprecording-" + System.currentTimeMillis() + ".3gp";
-      }
-      return tempFileName;
+      String extension = this.recordAdts ? ".aac" : ".3gp";
+      return new File(handler.getRecordingDir(), "tmprecording-" + System.currentTimeMillis() + extension).getAbsolutePath();
+    }
+
+    private String resolveRecordingTarget(String file) {
+        if (!file.startsWith("/")) {
+            if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+                file = Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator + file;
+            } else {
+                file = "/data/data/" + handler.getContext().getPackageName() + "/cache/" + file;
+            }
+        }
+        return file;
     }
 
     /**
      * Destroy player and stop audio playing or recording.
      */
-    public void destroy() {
+    public synchronized void destroy() {
+        this.cancelPrebuffer();
+        this.pinned = false;
+        this.timeoutHandler.removeCallbacks(this.scheduledStartTask);
         // Stop any play or record
         if (this.player != null) {
             if ((this.state == STATE.MEDIA_RUNNING) || (this.state == STATE.MEDIA_PAUSED)) {
                 this.player.stop();
                 this.setState(STATE.MEDIA_STOPPED);
             }
+            this.detachSpectrum();
             this.player.release();
             this.player = null;
+            this.prepared = false;
         }
-        if (this.recorder != null) {
+        if (this.recorder != null || this.voiceRecorder != null) {
             this.stopRecording(true);
-            this.recorder.release();
-            this.recorder = null;
+            this.releaseRecorder();
+        }
+        if (this.streamer != null) {
+            this.streamer.abort();
+            this.streamer = null;
+        }
+        this.timeoutHandler.removeCallbacks(this.spriteStop);
+        if (this.spriteMixer != null) {
+            this.spriteMixer.release();
+            this.handler.unregisterCache(this.spriteMixer);
+            this.spriteMixer = null;
         }
+        this.cancelLoudness();
     }
 
     /**
@@ -146,6 +281,21 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * @param file              The name of the file
      */
     public void startRecording(String file) {
+        this.startRecording(file, null);
+    }
+
+    /**
+     * Start recording the specified file. With a chunkDuration option the
+     * recording is AAC ADTS, and is also streamed in chunks while recording.
+     * With the silenceTrim option the recording is AAC ADTS without silence.
+     * With a source option, or the MediaSharedCapture preference, the audio
+     * is captured by the CaptureHub of the handler, so other players can
+     * record the same source at the same time, also to AAC ADTS.
+     *
+     * @param file              The name of the file
+     * @param options           The source, streaming and silence trimming options, or null
+     */
+    public void startRecording(String file, JSONObject options) {
         switch (this.mode) {
         case PLAY:
             LOG.d(LOG_TAG, "AudioPlayer Error: Can't record in play mode.");
@@ -153,15 +303,87 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
             break;
         case NONE:
             this.audioFile = file;
-            this.recorder = new MediaRecorder();
-            this.recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            this.recorder.setOutputFormat(MediaRecorder.OutputFormat.RAW_AMR); // THREE_GPP);
-            this.recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB); //AMR_NB);
+            this.recordOptions = options;
+            if (options != null && options.optInt("chunkDuration", 0) > 0) {
+                this.streamer = createStreamer(options);
+            }
+            boolean trimSilence = options != null && options.optBoolean("silenceTrim", false);
+            String source = options != null ? options.optString("source", null) : null;
+            boolean shared = trimSilence || source != null || this.handler.isSharedCapture();
+            int sampleRate = options != null ? options.optInt("sampleRate", 16000) : 16000;
+            int bitRate = options != null ? options.optInt("bitRate", 32000) : 32000;
+            this.recordAdts = this.streamer != null || shared;
+            if (this.journal == null) {
+                // new recording
+                this.recordFailed = false;
+                this.timeline = trimSilence ? new JSONArray() : null;
+                this.timelineRecorded = 0;
+                this.timelineKept = 0;
+            }
+            if (trimSilence) {
+                this.voiceRecorder = new VoiceRecorder(this.handler.getCaptureHub(), getAudioSource(source), sampleRate, bitRate,
+                        (float) options.optDouble("silenceThreshold", -45),
+                        options.optInt("hangover", 300),
+                        options.optInt("preroll", 200));
+            } else if (shared) {
+                this.voiceRecorder = new VoiceRecorder(this.handler.getCaptureHub(), getAudioSource(source), sampleRate, bitRate,
+                        Float.NEGATIVE_INFINITY, 0, 0);
+            }
+            if (this.voiceRecorder != null) {
+                this.listenToVoiceRecorder();
+            } else {
+                this.recorder = new MediaRecorder();
+                this.recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+                if (this.recordAdts) {
+                    this.recorder.setOutputFormat(MediaRecorder.OutputFormat.AAC_ADTS);
+                    this.recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+                    this.recorder.setAudioSamplingRate(sampleRate);
+                    this.recorder.setAudioEncodingBitRate(bitRate);
+                } else {
+                    this.recorder.setOutputFormat(MediaRecorder.OutputFormat.RAW_AMR); // THREE_GPP);
+                    this.recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB); //AMR_NB);
+                }
+            }
             this.tempFile = generateTempFile();
-            this.recorder.setOutputFile(this.tempFile);
+            long spaceLeft = handler.reserveRecordingSpace();
+            if (spaceLeft == 0) {
+                LOG.d(LOG_TAG, "AudioPlayer Error: Recording quota exceeded.");
+                this.releaseRecorder();
+                if (this.streamer != null) {
+                    this.streamer.abort();
+                    this.streamer = null;
+                }
+                sendErrorStatus(MEDIA_ERR_ABORTED);
+                break;
+            }
+            if (spaceLeft > 0) {
+                this.setMaxRecordingSize(spaceLeft);
+            }
             try {
-                this.recorder.prepare();
-                this.recorder.start();
+                if (this.journal == null) {
+                    this.journal = handler.createJournal(resolveRecordingTarget(file),
+                            this.recordAdts ? RecordingJournal.FORMAT_ADTS : RecordingJournal.FORMAT_AMR);
+                }
+                this.journal.addSegment(this.tempFile);
+                if (this.streamer != null) {
+                    this.recordPipe = this.streamer.openSegment(this.tempFile);
+                }
+                if (this.voiceRecorder != null) {
+                    if (this.recordPipe != null) {
+                        this.voiceRecorder.setOutputFile(this.recordPipe);
+                    } else {
+                        this.voiceRecorder.setOutputFile(this.tempFile);
+                    }
+                    this.voiceRecorder.start();
+                } else {
+                    if (this.recordPipe != null) {
+                        this.recorder.setOutputFile(this.recordPipe.getFileDescriptor());
+                    } else {
+                        this.recorder.setOutputFile(this.tempFile);
+                    }
+                    this.recorder.prepare();
+                    this.recorder.start();
+                }
                 this.setState(STATE.MEDIA_RUNNING);
                 return;
             } catch (IllegalStateException e) {
@@ -170,6 +392,8 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
                 e.printStackTrace();
             }
 
+            this.releaseRecorder();
+            this.closeRecordPipe();
             sendErrorStatus(MEDIA_ERR_ABORTED);
             break;
         case RECORD:
@@ -178,101 +402,266 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
         }
     }
 
+    /**
+     * Get the MediaRecorder.AudioSource of a source option.
+     *
+     * @param source            e.g. "mic", "voice_communication" or "voice_call", null for the microphone
+     */
+    private static int getAudioSource(String source) {
+        if (source == null || source.equalsIgnoreCase("mic")) {
+            return MediaRecorder.AudioSource.MIC;
+        } else if (source.equalsIgnoreCase("camcorder")) {
+            return MediaRecorder.AudioSource.CAMCORDER;
+        } else if (source.equalsIgnoreCase("voice_recognition")) {
+            return MediaRecorder.AudioSource.VOICE_RECOGNITION;
+        } else if (source.equalsIgnoreCase("voice_communication")) {
+            return MediaRecorder.AudioSource.VOICE_COMMUNICATION;
+        } else if (source.equalsIgnoreCase("voice_call")) {
+            return MediaRecorder.AudioSource.VOICE_CALL;
+        } else if (source.equalsIgnoreCase("voice_uplink")) {
+            return MediaRecorder.AudioSource.VOICE_UPLINK;
+        } else if (source.equalsIgnoreCase("voice_downlink")) {
+            return MediaRecorder.AudioSource.VOICE_DOWNLINK;
+        } else if (source.equalsIgnoreCase("unprocessed")) {
+            return MediaRecorder.AudioSource.UNPROCESSED;
+        }
+        LOG.d(LOG_TAG, "Unknown audio source " + source + ", recording the microphone");
+        return MediaRecorder.AudioSource.MIC;
+    }
+
+    private void releaseRecorder() {
+        if (this.recorder != null) {
+            this.recorder.release();
+            this.recorder = null;
+        }
+        if (this.voiceRecorder != null) {
+            this.voiceRecorder.release();
+            this.voiceRecorder = null;
+        }
+    }
+
+    private void listenToVoiceRecorder() {
+        final VoiceRecorder recorder = this.voiceRecorder;
+        recorder.setListener(new VoiceRecorder.Listener() {
+            public void onMaxFileSizeReached() {
+                // called on the capture thread, which stopRecording waits for
+                timeoutHandler.post(new Runnable() {
+                    public void run() {
+                        LOG.d(LOG_TAG, "Recording quota reached, stopping");
+                        stopRecording(true);
+                    }
+                });
+            }
+
+            public void onRecordingFailed() {
+                timeoutHandler.post(new Runnable() {
+                    public void run() {
+                        // a paused recording already noted the failure
+                        if (voiceRecorder == recorder) {
+                            LOG.d(LOG_TAG, "Recording failed, stopping");
+                            stopRecording(true);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void setMaxRecordingSize(long bytes) {
+        if (this.voiceRecorder != null) {
+            this.voiceRecorder.setMaxFileSize(bytes);
+        } else {
+            this.recorder.setMaxFileSize(bytes);
+            this.recorder.setOnInfoListener(new MediaRecorder.OnInfoListener() {
+                public void onInfo(MediaRecorder mr, int what, int extra) {
+                    if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+                        LOG.d(LOG_TAG, "Recording quota reached, stopping");
+                        stopRecording(true);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop the voice recorder, and add its kept segments to the timeline.
+     */
+    private void stopVoiceRecorder() {
+        this.voiceRecorder.release();
+        if (this.voiceRecorder.hasFailed()) {
+            this.recordFailed = true;
+        }
+        JSONArray segments = this.timeline != null ? this.voiceRecorder.getTimeline() : new JSONArray();
+        try {
+            for (int i = 0; i < segments.length(); i++) {
+                JSONObject segment = segments.getJSONObject(i);
+                segment.put("start", segment.getLong("start") + this.timelineRecorded);
+                segment.put("end", segment.getLong("end") + this.timelineRecorded);
+                segment.put("offset", segment.getLong("offset") + this.timelineKept);
+                this.timeline.put(segment);
+            }
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Failed to create timeline", e);
+        }
+        this.timelineRecorded += this.voiceRecorder.getRecordedTime();
+        this.timelineKept += this.voiceRecorder.getKeptTime();
+        this.voiceRecorder = null;
+    }
+
+    private void sendTimeline() {
+        JSONObject details = new JSONObject();
+        try {
+            details.put("id", this.id);
+            details.put("segments", this.timeline);
+            details.put("recorded", this.timelineRecorded);
+            details.put("kept", this.timelineKept);
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Failed to create timeline", e);
+        }
+        this.handler.sendEventMessage("timeline", details);
+    }
+
+    private RecordingStreamer createStreamer(JSONObject options) {
+        if (this.streamer != null) {
+            // resumed recording, keep streaming with the same sequence
+            return this.streamer;
+        }
+        RecordingStreamer.Sink sink;
+        String type = options.optString("sink", "channel");
+        if (type.equals("file")) {
+            sink = new RecordingStreamer.FileSink(FileHelper.stripFileProtocol(options.optString("path")));
+        } else if (type.equals("socket")) {
+            sink = new RecordingStreamer.SocketSink(options.optString("socket"));
+        } else {
+            this.channelSink = new RecordingStreamer.ChannelSink(this.handler, this.id, options.optInt("window", 8));
+            sink = this.channelSink;
+        }
+        return new RecordingStreamer(sink, options.optInt("chunkDuration"),
+                options.optLong("maxQueuedBytes", 1024 * 1024), new RecordingStreamer.Listener() {
+            public void onStreamError(IOException e) {
+                sendErrorStatus(MEDIA_ERR_ABORTED);
+            }
+        });
+    }
+
+    private void closeRecordPipe() {
+        if (this.streamer != null) {
+            this.streamer.closeSegment();
+        }
+        this.recordPipe = null;
+    }
+
+    /**
+     * Acknowledge the chunks of a streamed recording up to a sequence number,
+     * so that further chunks are sent over the message channel.
+     *
+     * @param seq               The sequence number of the last processed chunk
+     */
+    public void ackChunk(int seq) {
+        if (this.channelSink != null) {
+            this.channelSink.ack(seq);
+        }
+    }
+
     /**
      * Save temporary recorded file to specified name
      *
      * @param file
+     * @return                  false if the recording could not be saved
      */
-    public void moveFile(String file) {
+    public boolean moveFile(String file) {
         /* this is a hack to save the file as the specified name */
 
-        if (!file.startsWith("/")) {
-            if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-                file = Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator + file;
-            } else {
-                file = "/data/data/" + handler.cordova.getActivity().getPackageName() + "/cache/" + file;
-            }
-        }
+        file = resolveRecordingTarget(file);
+        boolean saved = true;
 
         int size = this.tempFiles.size();
         LOG.d(LOG_TAG, "size = " + size);
 
         // only one file so just copy it
         if (size == 1) {
-            String logMsg = "renaming " + this.tempFile + " to " + file;
+            String logMsg = "moving " + this.tempFile + " to " + file;
             LOG.d(LOG_TAG, logMsg);
-            File f = new File(this.tempFile);
-            if (!f.renameTo(new File(file))) LOG.e(LOG_TAG, "FAILED " + logMsg);
+            try {
+                FileHelper.moveFile(new File(this.tempFile), new File(file));
+            } catch (IOException e) {
+                // the segment is kept for the journal
+                LOG.e(LOG_TAG, "FAILED " + logMsg, e);
+                saved = false;
+            }
         }
         // more than one file so the user must have pause recording. We'll need to concat files.
         else {
-          FileOutputStream outputStream = null;
-          try {
-              outputStream = new FileOutputStream(new File(file));
-              FileInputStream inputStream = null;
-              File inputFile = null;
-              for (int i = 0; i < size; i++) {
-                  try {
-                      inputFile = new File(this.tempFiles.get(i));
-                      inputStream = new FileInputStream(inputFile);
-                      copy(inputStream, outputStream, (i>0));
-                  } catch(Exception e) {
-                      LOG.e(LOG_TAG, e.getLocalizedMessage(), e);
-                  } finally {
-                      if (inputStream != null) try {
-                          inputStream.close();
-                          inputFile.delete();
-                          inputFile = null;
-                      } catch (Exception e) {
-                          LOG.e(LOG_TAG, e.getLocalizedMessage(), e);
-                      }
-                  }
-              }
-          } catch(Exception e) {
-              e.printStackTrace();
-          } finally {
-              if (outputStream != null) try {
-                  outputStream.close();
-              } catch (Exception e) {
-                  LOG.e(LOG_TAG, e.getLocalizedMessage(), e);
-              }
-          }
-        }
-    }
-
-    private static long copy(InputStream from, OutputStream to, boolean skipHeader)
-                throws IOException {
-        byte[] buf = new byte[8096];
-        long total = 0;
-        if (skipHeader) {
-            from.skip(6);
-        }
-        while (true) {
-            int r = from.read(buf);
-            if (r == -1) {
-                break;
+            ArrayList<MediaEditor.Segment> segments = new ArrayList<MediaEditor.Segment>();
+            for (String tempFile : this.tempFiles) {
+                // a segment stopped right after it started may hold no frame
+                if (new File(tempFile).length() > (this.recordAdts ? 0 : 6)) {
+                    segments.add(new MediaEditor.Segment(tempFile, 0, -1));
+                }
+            }
+            try {
+                MediaEditor.export(this.handler.getContext(), segments, file,
+                                   this.recordAdts ? MediaEditor.FORMAT.ADTS : MediaEditor.FORMAT.AMR, null);
+                for (String tempFile : this.tempFiles) {
+                    new File(tempFile).delete();
+                }
+            } catch (IOException e) {
+                // the segments are kept for the journal
+                LOG.e(LOG_TAG, "Failed to join the recorded segments to " + file, e);
+                saved = false;
             }
-            to.write(buf, 0, r);
-            total += r;
         }
-        return total;
+        return saved;
     }
 
     /**
      * Stop/Pause recording and save to the file specified when recording started.
      */
     public void stopRecording(boolean stop) {
-        if (this.recorder != null) {
+        if (this.recorder != null || this.voiceRecorder != null || this.journal != null) {
             try{
-                if (this.state == STATE.MEDIA_RUNNING) {
-                    this.recorder.stop();
+                if (this.voiceRecorder != null) {
+                    this.stopVoiceRecorder();
+                } else if (this.recorder != null) {
+                    if (this.state == STATE.MEDIA_RUNNING) {
+                        this.recorder.stop();
+                    }
+                    this.recorder.reset();
+                }
+                this.closeRecordPipe();
+                if (this.journal != null) {
+                    this.journal.closeSegment();
+                }
+                if (!this.tempFiles.contains(this.tempFile)) {
+                    this.tempFiles.add(this.tempFile);
                 }
-                this.recorder.reset();
-                this.tempFiles.add(this.tempFile);
                 if (stop) {
                     LOG.d(LOG_TAG, "stopping recording");
+                    if (this.streamer != null) {
+                        this.streamer.finish();
+                        this.streamer = null;
+                    }
+                    // keep the journal for recovery if the recording could not be saved
+                    boolean saved = !this.recordFailed && this.moveFile(this.audioFile);
+                    this.recordFailed = false;
+                    if (this.journal != null) {
+                        if (saved) {
+                            this.journal.markSaved();
+                            this.journal.delete();
+                        } else {
+                            this.journal.release();
+                        }
+                    }
+                    this.journal = null;
+                    if (!saved) {
+                        sendErrorStatus(MEDIA_ERR_ABORTED);
+                    }
                     this.setState(STATE.MEDIA_STOPPED);
-                    this.moveFile(this.audioFile);
+                    this.tempFiles.clear();
+                    if (this.timeline != null) {
+                        this.sendTimeline();
+                        this.timeline = null;
+                    }
                 } else {
                     LOG.d(LOG_TAG, "pause recording");
                 }
@@ -287,7 +676,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * Resume recording and save to the file specified when recording started.
      */
     public void resumeRecording() {
-        startRecording(this.audioFile);
+        startRecording(this.audioFile, this.recordOptions);
     }
 
     //==========================================================================
@@ -299,36 +688,166 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      *
      * @param file              The name of the audio file.
      */
-    public void startPlaying(String file) {
+    public synchronized void startPlaying(String file) {
+        this.lastUsed = SystemClock.elapsedRealtime();
+        this.pinned = false;
+        if (file == null) {
+            file = this.audioFile; // resuming a player that may have been released
+        }
         if (this.readyPlayer(file) && this.player != null) {
+            this.cancelPrebuffer();
             this.player.start();
             this.setState(STATE.MEDIA_RUNNING);
+            this.onFirstAudio();
             this.seekOnPrepared = 0; //insures this is always reset
         } else {
             this.prepareOnly = false;
         }
     }
 
+    /**
+     * Prepare the audio file for a start at a scheduled time, and keep the
+     * native player until then.
+     *
+     * @param file              The name of the audio file.
+     */
+    public synchronized void prepareScheduled(String file) {
+        this.lastUsed = SystemClock.elapsedRealtime();
+        if (this.state == STATE.MEDIA_NONE || this.state == STATE.MEDIA_STOPPED) {
+            this.prepareOnly = true;
+            this.readyPlayer(file);
+        }
+        this.pinned = true;
+    }
+
+    /**
+     * Start a player prepared with prepareScheduled(). Called on the
+     * scheduler thread at the due time: only the native player is started
+     * here, JavaScript and the handler are notified from the main thread.
+     * A player still preparing starts once prepared.
+     */
+    public synchronized void startScheduled() {
+        if (!this.pinned) {
+            return;                     // started, stopped or destroyed meanwhile
+        }
+        this.pinned = false;
+        if (this.player == null || !this.prepared || this.state == STATE.MEDIA_NONE) {
+            this.prepareOnly = false;
+            return;
+        }
+        if (this.state == STATE.MEDIA_RUNNING) {
+            return;
+        }
+        this.player.start();
+        this.state = STATE.MEDIA_RUNNING;
+        this.seekOnPrepared = 0;
+        this.timeoutHandler.post(this.scheduledStartTask);
+    }
+
+    /**
+     * Set the prebuffering of streams started with startPlaying().
+     *
+     * @param ms                msec of audio buffered ahead to wait for, 0 disables
+     * @param timeout           maximum time to wait in msec
+     */
+    public synchronized void setPrebuffer(int ms, long timeout) {
+        this.prebufferMs = ms;
+        this.prebufferTimeout = timeout;
+    }
+
+    /**
+     * Prepare the audio file without starting playback, so that a later
+     * startPlaying() only has to start the already prepared player.
+     *
+     * @param file              The name of the audio file.
+     */
+    public synchronized void preparePlaying(String file) {
+        if (this.state == STATE.MEDIA_NONE) {
+            this.prepareOnly = true;
+            this.readyPlayer(file);
+        }
+    }
+
+    /**
+     * Seek or jump to a new time in the track.
+     */
+    public synchronized void seekToPlaying(int milliseconds) {
+        this.seekToPlaying(milliseconds, false);
+    }
+
     /**
      * Seek or jump to a new time in the track.
+     * While a seek is in flight only the latest requested position is kept,
+     * and the position is sent to JavaScript once the last seek completed.
+     *
+     * @param milliseconds      The position to seek to
+     * @param fast              Seek to the closest sync frame, e.g. while scrubbing
      */
-    public void seekToPlaying(int milliseconds) {
+    public synchronized void seekToPlaying(int milliseconds, boolean fast) {
         if (this.readyPlayer(this.audioFile)) {
-            if (milliseconds > 0) {
-                this.player.seekTo(milliseconds);
+            if (milliseconds <= 0) {
+                LOG.d(LOG_TAG, "Send a onStatus update for the new seek");
+                sendStatusChange(MEDIA_POSITION, null, (milliseconds / 1000.0f));
+                return;
+            }
+            if (this.seekInFlight && SystemClock.elapsedRealtime() - this.seekStartedAt > SEEK_TIMEOUT) {
+                LOG.d(LOG_TAG, "Seek to " + this.seekTarget + " did not complete");
+                this.seekInFlight = false;
+            }
+            if (this.seekInFlight) {
+                if (this.pendingSeek >= 0) {
+                    this.seeksMerged++;
+                }
+                this.pendingSeek = milliseconds;
+                this.pendingSeekFast = fast;
+            } else {
+                this.sendSeek(milliseconds, fast);
             }
-            LOG.d(LOG_TAG, "Send a onStatus update for the new seek");
-            sendStatusChange(MEDIA_POSITION, null, (milliseconds / 1000.0f));
         }
         else {
             this.seekOnPrepared = milliseconds;
         }
     }
 
+    /**
+     * Callback to be invoked when a seek operation has completed.
+     *
+     * @param player           The engine that completed the seek
+     */
+    public synchronized void onSeekComplete(PlaybackEngine player) {
+        if (player != this.player || !this.seekInFlight) {
+            return;
+        }
+        this.seekInFlight = false;
+        if (this.pendingSeek >= 0) {
+            int next = this.pendingSeek;
+            this.pendingSeek = -1;
+            this.sendSeek(next, this.pendingSeekFast);
+        } else {
+            LOG.d(LOG_TAG, "Send a onStatus update for the new seek");
+            sendStatusChange(MEDIA_POSITION, null, (this.seekTarget / 1000.0f));
+        }
+    }
+
+    private void sendSeek(int milliseconds, boolean fast) {
+        this.seekInFlight = true;
+        this.seekStartedAt = SystemClock.elapsedRealtime();
+        this.seekTarget = milliseconds;
+        this.seekCount++;
+        this.player.seekTo(milliseconds, fast);
+    }
+
+    private void cancelSeeks() {
+        this.seekInFlight = false;
+        this.pendingSeek = -1;
+    }
+
     /**
      * Pause playing.
      */
-    public void pausePlaying() {
+    public synchronized void pausePlaying() {
+        this.cancelPrebuffer();
+        this.pinned = false;
 
         // If playing, then pause
         if (this.state == STATE.MEDIA_RUNNING && this.player != null) {
@@ -344,13 +863,22 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
     /**
      * Stop playing the audio file.
      */
-    public void stopPlaying() {
+    public synchronized void stopPlaying() {
+        this.cancelPrebuffer();
         if ((this.state == STATE.MEDIA_RUNNING) || (this.state == STATE.MEDIA_PAUSED)) {
             this.player.pause();
-            this.player.seekTo(0);
+            this.cancelSeeks();
+            this.player.seekTo(0, false);
             LOG.d(LOG_TAG, "stopPlaying is calling stopped");
             this.setState(STATE.MEDIA_STOPPED);
         }
+        else if (this.pinned) {
+            // the scheduled start won't happen, give back the voice
+            this.pinned = false;
+            if (this.prepared) {
+                this.setState(STATE.MEDIA_STOPPED);
+            }
+        }
         else {
             LOG.d(LOG_TAG, "AudioPlayer Error: stopPlaying() called during invalid state: " + this.state.ordinal());
             sendErrorStatus(MEDIA_ERR_NONE_ACTIVE);
@@ -360,9 +888,12 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
     /**
      * Callback to be invoked when playback of a media source has completed.
      *
-     * @param player           The MediaPlayer that reached the end of the file
+     * @param player           The engine that reached the end of the file
      */
-    public void onCompletion(MediaPlayer player) {
+    public synchronized void onCompletion(PlaybackEngine player) {
+        if (player != this.player) {
+            return;
+        }
         LOG.d(LOG_TAG, "on completion is calling stopped");
         this.setState(STATE.MEDIA_STOPPED);
     }
@@ -372,7 +903,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      *
      * @return                  position in msec or -1 if not playing
      */
-    public long getCurrentPosition() {
+    public synchronized long getCurrentPosition() {
         if ((this.state == STATE.MEDIA_RUNNING) || (this.state == STATE.MEDIA_PAUSED)) {
             int curPos = this.player.getCurrentPosition();
             sendStatusChange(MEDIA_POSITION, null, (curPos / 1000.0f));
@@ -383,6 +914,35 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
         }
     }
 
+    /**
+     * Get the state of this player without side effects: nothing is
+     * prepared, no status is sent and the player lock isn't taken, so that
+     * it can be polled cheaply.
+     *
+     * @return                  JSON object with id, mode, state, position and duration in seconds, and volume
+     */
+    public JSONObject getSnapshot() throws JSONException {
+        STATE state = this.state;
+        PlaybackEngine player = this.player;
+        float position = -1;
+        if ((state == STATE.MEDIA_RUNNING || state == STATE.MEDIA_PAUSED) && player != null) {
+            try {
+                position = player.getCurrentPosition() / 1000.0f;
+            } catch (IllegalStateException e) {
+                // released by the reaper since it was read, the position is unknown
+            }
+        }
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("id", this.id);
+        snapshot.put("mode", this.mode.ordinal());
+        // cordova js is not aware of MEDIA_LOADING
+        snapshot.put("state", (state == STATE.MEDIA_LOADING ? STATE.MEDIA_STARTING : state).ordinal());
+        snapshot.put("position", position);
+        snapshot.put("duration", this.duration);
+        snapshot.put("volume", this.volume);
+        return snapshot;
+    }
+
     /**
      * Determine if playback file is streaming or local.
      * It is streaming if file name starts with "http://"
@@ -420,9 +980,9 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
       *                             -1=can't be determined
       *                             -2=not allowed
       */
-    public float getDuration(String file) {
+    public synchronized float getDuration(String file) {
         // Can't get duration of recording
-        if (this.recorder != null) {
+        if (this.recorder != null || this.voiceRecorder != null) {
             return (-2); // not allowed
         }
 
@@ -445,17 +1005,25 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
     /**
      * Callback to be invoked when the media source is ready for playback.
      *
-     * @param player           The MediaPlayer that is ready for playback
+     * @param player           The engine that is ready for playback
      */
-    public void onPrepared(MediaPlayer player) {
-        // Listen for playback completion
-        this.player.setOnCompletionListener(this);
+    public synchronized void onPrepared(PlaybackEngine player) {
+        if (player != this.player) {
+            return;
+        }
+        this.prepared = true;
         // seek to any location received while not prepared
         this.seekToPlaying(this.seekOnPrepared);
         // If start playing after prepared
-        if (!this.prepareOnly) {
+        if (!this.prepareOnly && this.needsPrebuffer()) {
+            // wait for enough data before starting the stream
+            this.waitingForBuffer = true;
+            this.timeoutHandler.postDelayed(this.prebufferTimeoutTask, this.prebufferTimeout);
+            this.setState(STATE.MEDIA_STARTING);
+        } else if (!this.prepareOnly) {
             this.player.start();
             this.setState(STATE.MEDIA_RUNNING);
+            this.onFirstAudio();
             this.seekOnPrepared = 0; //reset only when played
         } else {
             this.setState(STATE.MEDIA_STARTING);
@@ -469,6 +1037,112 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
         sendStatusChange(MEDIA_DURATION, null, this.duration);
     }
 
+    /**
+     * Callback to be invoked when the buffering status of a stream changes.
+     *
+     * @param player           The engine the update pertains to
+     * @param percent          The percentage of the content buffered
+     */
+    public synchronized void onBufferingUpdate(PlaybackEngine player, int percent) {
+        if (player != this.player || percent == this.bufferedPercent) {
+            return;
+        }
+        this.bufferedPercent = percent;
+        sendStatusChange(MEDIA_BUFFERING, null, (float) percent);
+        if (this.waitingForBuffer && !this.needsPrebuffer()) {
+            this.startBuffered();
+        }
+    }
+
+    /**
+     * Callback to be invoked to report info or warnings, used to detect stalls.
+     *
+     * @param player           The engine the info pertains to
+     * @param what             The type of info
+     * @param extra            An extra code, specific to the info
+     */
+    public synchronized boolean onInfo(PlaybackEngine player, int what, int extra) {
+        if (player != this.player) {
+            return false;
+        }
+        if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START && this.stallStartedAt < 0) {
+            this.stallStartedAt = SystemClock.elapsedRealtime();
+            this.stallCount++;
+            sendStatusChange(MEDIA_STALL_START, null, (float) this.stallCount);
+        } else if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END && this.stallStartedAt >= 0) {
+            long stall = SystemClock.elapsedRealtime() - this.stallStartedAt;
+            this.stallStartedAt = -1;
+            this.stallTime += stall;
+            sendStatusChange(MEDIA_STALL_END, null, stall / 1000.0f);
+        }
+        return false;
+    }
+
+    /**
+     * Get the streaming statistics of this player.
+     *
+     * @return                  JSON object with buffering and stall metrics
+     */
+    public synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("buffered", this.bufferedPercent);
+        stats.put("stalls", this.stallCount);
+        stats.put("stallTime", this.stallTime);
+        stats.put("timeToFirstAudio", this.timeToFirstAudio);
+        stats.put("seeks", this.seekCount);
+        stats.put("seeksMerged", this.seeksMerged);
+        stats.put("loops", this.loops);
+        stats.put("loudnessGain", this.loudnessGain);
+        if (this.streamer != null) {
+            stats.put("recording", this.streamer.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Check if a stream has less audio buffered ahead than the prebuffer.
+     * Streams of unknown duration, e.g. live streams, do not wait, since
+     * their buffered percentage tells nothing.
+     */
+    private boolean needsPrebuffer() {
+        if (this.prebufferMs <= 0 || this.player == null || !this.isStreaming(this.audioFile)) {
+            return false;
+        }
+        int durationMs = this.player.getDuration();
+        if (durationMs <= 0) {
+            return false;
+        }
+        long bufferedMs = (long) this.bufferedPercent * durationMs / 100 - this.seekOnPrepared;
+        return bufferedMs < this.prebufferMs;
+    }
+
+    /**
+     * Start a stream that was waiting for the prebuffer.
+     */
+    private void startBuffered() {
+        this.cancelPrebuffer();
+        if (this.player != null && this.state == STATE.MEDIA_STARTING) {
+            this.player.start();
+            this.setState(STATE.MEDIA_RUNNING);
+            this.onFirstAudio();
+            this.seekOnPrepared = 0;
+        }
+    }
+
+    private void cancelPrebuffer() {
+        if (this.waitingForBuffer) {
+            this.waitingForBuffer = false;
+            this.timeoutHandler.removeCallbacks(this.prebufferTimeoutTask);
+        }
+    }
+
+    private void onFirstAudio() {
+        if (this.loadStartedAt >= 0) {
+            this.timeToFirstAudio = SystemClock.elapsedRealtime() - this.loadStartedAt;
+            this.loadStartedAt = -1;
+        }
+    }
+
     /**
      * By default Android returns the length of audio in mills but we want seconds
      *
@@ -482,19 +1156,27 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * Callback to be invoked when there has been an error during an asynchronous operation
      *  (other errors will throw exceptions at method call time).
      *
-     * @param player           the MediaPlayer the error pertains to
+     * @param player           the engine the error pertains to
      * @param arg1              the type of error that has occurred: (MEDIA_ERROR_UNKNOWN, MEDIA_ERROR_SERVER_DIED)
      * @param arg2              an extra code, specific to the error.
      */
-    public boolean onError(MediaPlayer player, int arg1, int arg2) {
+    public synchronized boolean onError(PlaybackEngine player, int arg1, int arg2) {
+        if (player != this.player) {
+            return false;
+        }
         LOG.d(LOG_TAG, "AudioPlayer.onError(" + arg1 + ", " + arg2 + ")");
 
         // we don't want to send success callback
         // so we don't call setState() here
         this.state = STATE.MEDIA_STOPPED;
+        boolean streaming = this.audioFile != null && this.isStreaming(this.audioFile);
         this.destroy();
         // Send error notification to JavaScript
-        sendErrorStatus(arg1);
+        if (streaming && (arg2 == MediaPlayer.MEDIA_ERROR_IO || arg2 == MediaPlayer.MEDIA_ERROR_TIMED_OUT)) {
+            sendErrorStatus(MEDIA_ERR_NETWORK);
+        } else {
+            sendErrorStatus(arg1);
+        }
 
         return false;
     }
@@ -509,6 +1191,11 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
             sendStatusChange(MEDIA_STATE, null, (float)state.ordinal());
         }
         this.state = state;
+        this.lastUsed = SystemClock.elapsedRealtime();
+        if (this.pendingLoudnessGain >= 0 && state != STATE.MEDIA_RUNNING) {
+            this.applyLoudnessGain(this.pendingLoudnessGain);
+        }
+        this.handler.onPlayerStateChanged(this, state);
     }
 
     /**
@@ -524,6 +1211,207 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
         this.mode = mode;
     }
 
+    /**
+     * Release the native player if it has been idle in the stopped or
+     * starting state for at least the given time. The player is prepared
+     * again on its next use, without notifying JavaScript.
+     *
+     * @param idleMillis        minimum idle time in msec
+     * @return                  true if the native player was released
+     */
+    public synchronized boolean releaseIfIdle(long idleMillis) {
+        if (this.player == null || !this.prepared || this.recorder != null || this.voiceRecorder != null || this.mode != MODE.PLAY) {
+            return false;
+        }
+        if (this.state != STATE.MEDIA_STOPPED && this.state != STATE.MEDIA_STARTING) {
+            return false;
+        }
+        // a stream waiting for its prebuffer, or about to start, is not idle
+        if (this.waitingForBuffer || !this.prepareOnly || this.pinned) {
+            return false;
+        }
+        if (SystemClock.elapsedRealtime() - this.lastUsed < idleMillis) {
+            return false;
+        }
+        LOG.d(LOG_TAG, "Releasing idle player " + this.id);
+        this.cancelSeeks();
+        this.detachSpectrum();
+        this.player.release();
+        this.player = null;
+        this.prepared = false;
+        this.prepareOnly = true;
+        // we don't want to notify JavaScript, the player is prepared again on demand
+        this.state = STATE.MEDIA_NONE;
+        return true;
+    }
+
+    /**
+     * Release the native player if playback is paused. The position is kept
+     * and playback resumes from it on the next startPlaying().
+     *
+     * @return                  true if the native player was released
+     */
+    public synchronized boolean releaseIfPaused() {
+        if (this.player == null || this.state != STATE.MEDIA_PAUSED || this.mode != MODE.PLAY) {
+            return false;
+        }
+        LOG.d(LOG_TAG, "Releasing paused player " + this.id);
+        this.seekOnPrepared = this.pendingSeek >= 0 ? this.pendingSeek
+                : (this.seekInFlight ? this.seekTarget : this.player.getCurrentPosition());
+        this.cancelSeeks();
+        this.detachSpectrum();
+        this.player.release();
+        this.player = null;
+        this.prepared = false;
+        this.prepareOnly = true;
+        // we don't want to notify JavaScript, the player is prepared again on demand
+        this.state = STATE.MEDIA_NONE;
+        return true;
+    }
+
+    /**
+     * Check if the player currently holds a native media player.
+     *
+     * @return                  true if a native player is allocated
+     */
+    public boolean isMaterialized() {
+        return this.player != null;
+    }
+
+    /**
+     * Get the time the player was last used.
+     *
+     * @return                  elapsed realtime in msec
+     */
+    public long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    /**
+     * Set the priority of this player.
+     *
+     * @param priority          higher values are released last
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Get the priority of this player.
+     *
+     * @return int
+     */
+    public int getPriority() {
+        return this.priority;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * Set the category of this player, for the voice limits.
+     *
+     * @param category          The category, null for none
+     */
+    public void setCategory(String category) {
+        this.category = category;
+    }
+
+    public String getCategory() {
+        return this.category;
+    }
+
+    /**
+     * Set the in-memory media played for the BUFFER_SOURCE file. The buffer
+     * stays owned by the caller, which frees it once the player is destroyed.
+     *
+     * @param buffer            The media, null for none
+     * @return                  the media set before, null for none
+     */
+    public synchronized MediaBuffer setBuffer(MediaBuffer buffer) {
+        MediaBuffer previous = this.buffer;
+        this.buffer = buffer;
+        return previous;
+    }
+
+    public synchronized MediaBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * Stop playback because a higher or equal priority player took the
+     * voice, and release the native player so its decoder can be reused.
+     * The position is reset, like stopPlaying().
+     */
+    public synchronized void stealVoice() {
+        boolean scheduled = this.pinned;
+        this.pinned = false;
+        if (!scheduled && this.state != STATE.MEDIA_RUNNING && this.state != STATE.MEDIA_STARTING) {
+            return;
+        }
+        LOG.d(LOG_TAG, "Voice of player " + this.id + " stolen");
+        this.cancelPrebuffer();
+        this.timeoutHandler.removeCallbacks(this.spriteStop);
+        this.spriteName = null;
+        if (this.spriteMixer != null) {
+            this.spriteMixer.stop(null);
+        }
+        sendStatusChange(MEDIA_STOLEN, null, 0f);
+        if (this.state == STATE.MEDIA_RUNNING) {
+            this.player.pause();
+            this.cancelSeeks();
+            this.player.seekTo(0, false);
+            this.setState(STATE.MEDIA_STOPPED);
+        } else {
+            // still loading, don't start once prepared
+            this.prepareOnly = true;
+        }
+        this.releaseIfIdle(0);
+    }
+
+    /**
+     * Report that the player could not start because every voice is taken
+     * by a player of higher priority.
+     */
+    public void refuseVoice() {
+        sendStatusChange(MEDIA_STOLEN, null, 1f);
+    }
+
+    /**
+     * Report that the player could not start because the system refused the
+     * audio focus, e.g. during a phone call.
+     */
+    public void refuseFocus() {
+        sendErrorStatus(MEDIA_ERR_ABORTED);
+    }
+
+    /**
+     * Report that the spectrum can't be analyzed because the user denied
+     * the microphone permission.
+     */
+    public void refuseSpectrum() {
+        sendErrorStatus(MEDIA_ERR_ABORTED);
+    }
+
+    /**
+     * Set how this player reacts to a loss of audio focus.
+     *
+     * @param focusPolicy       pause, duck or ignore
+     */
+    public void setFocusPolicy(FOCUS focusPolicy) {
+        this.focusPolicy = focusPolicy;
+    }
+
+    /**
+     * Get how this player reacts to a loss of audio focus.
+     *
+     * @return FOCUS
+     */
+    public FOCUS getFocusPolicy() {
+        return this.focusPolicy;
+    }
+
     /**
      * Get the audio state.
      *
@@ -538,16 +1426,402 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      *
      * @param volume
      */
-    public void setVolume(float volume) {
+    public synchronized void setVolume(float volume) {
         this.volume = volume;
+        if (this.spriteMixer != null) {
+            this.spriteMixer.setVolume(this.getOutputVolume());
+        }
         if (this.player != null) {
-            this.player.setVolume(volume, volume);
+            this.player.setVolume(this.getOutputVolume());
+        } else if (this.mode == MODE.PLAY && this.state == STATE.MEDIA_NONE) {
+            LOG.d(LOG_TAG, "Volume will be applied when the released player is prepared again.");
         } else {
             LOG.d(LOG_TAG, "AudioPlayer Error: Cannot set volume until the audio file is initialized.");
             sendErrorStatus(MEDIA_ERR_NONE_ACTIVE);
         }
     }
 
+    /**
+     * Set the playback rate for audio player.
+     * The position reported by getCurrentPosition stays in media time.
+     *
+     * @param rate              1.0 is normal speed
+     */
+    public synchronized void setRate(float rate) {
+        this.rate = rate;
+        this.playbackParamsSet = true;
+        this.applyPlaybackParams();
+    }
+
+    /**
+     * Set the playback pitch for audio player.
+     *
+     * @param pitch             1.0 is normal pitch
+     */
+    public synchronized void setPitch(float pitch) {
+        this.pitch = pitch;
+        this.playbackParamsSet = true;
+        this.applyPlaybackParams();
+    }
+
+    /**
+     * Apply rate and pitch to the playback engine.
+     * The engine keeps them across pause and start.
+     */
+    private void applyPlaybackParams() {
+        if (!this.playbackParamsSet || this.player == null) {
+            return;
+        }
+        if (!this.player.setPlaybackParams(this.rate, this.pitch)) {
+            LOG.d(LOG_TAG, "AudioPlayer Error: Cannot set rate " + this.rate + " and pitch " + this.pitch);
+            sendErrorStatus(MEDIA_ERR_NONE_SUPPORTED);
+        }
+    }
+
+    /**
+     * Loop a region of the audio natively, without a round trip through
+     * JavaScript at the end of each pass.
+     *
+     * @param enabled           Whether to loop
+     * @param startMs           Start of the region in msec
+     * @param endMs             End of the region in msec, 0 for the end of the file
+     * @param count             Number of loops before playback continues past the region, 0 for forever
+     */
+    public synchronized void setLoop(boolean enabled, int startMs, int endMs, int count) {
+        if (enabled && endMs > 0 && endMs <= startMs) {
+            LOG.d(LOG_TAG, "AudioPlayer Error: Invalid loop region " + startMs + " - " + endMs);
+            sendErrorStatus(MEDIA_ERR_ABORTED);
+            return;
+        }
+        this.loopEnabled = enabled;
+        this.loopStart = Math.max(0, startMs);
+        this.loopEnd = Math.max(0, endMs);
+        this.loopCount = Math.max(0, count);
+        this.loops = 0;
+        if (this.player != null) {
+            this.player.setLoop(enabled, this.loopStart, this.loopEnd);
+        }
+    }
+
+    /**
+     * Callback to be invoked when playback jumped back to the start of the
+     * looped region.
+     *
+     * @param player           The engine that looped
+     */
+    public synchronized void onLoop(PlaybackEngine player) {
+        if (player != this.player || !this.loopEnabled) {
+            return;
+        }
+        this.loops++;
+        sendStatusChange(MEDIA_LOOP, null, (float) this.loops);
+        if (this.loopCount > 0 && this.loops >= this.loopCount) {
+            // play on past the region
+            this.loopEnabled = false;
+            this.player.setLoop(false, this.loopStart, this.loopEnd);
+        }
+    }
+
+    /**
+     * Set the regions of the audio sprite.
+     *
+     * @param map               JSON object of region names to { start, duration } in msec
+     */
+    public synchronized void setSprite(JSONObject map) throws JSONException {
+        this.sprite = new HashMap<String, int[]>();
+        for (Iterator<String> it = map.keys(); it.hasNext(); ) {
+            String name = it.next();
+            JSONObject region = map.getJSONObject(name);
+            this.sprite.put(name, new int[] { region.getInt("start"), region.getInt("duration") });
+        }
+    }
+
+    /**
+     * Play a region of the audio sprite. The region is played by the prepared
+     * engine, which is stopped at the end of the region. While the engine is
+     * busy with another region, or when asked to overlap, the region is mixed
+     * from the decoded audio instead.
+     *
+     * @param name              The name of the region
+     * @param overlap           Always mix the region, on top of other regions
+     */
+    public synchronized void playSprite(String name, boolean overlap) {
+        int[] region = this.sprite != null ? this.sprite.get(name) : null;
+        if (region == null) {
+            LOG.d(LOG_TAG, "AudioPlayer Error: Unknown sprite region " + name);
+            sendErrorStatus(MEDIA_ERR_ABORTED);
+            return;
+        }
+        this.lastUsed = SystemClock.elapsedRealtime();
+        if (overlap || (this.spriteName != null && this.state == STATE.MEDIA_RUNNING)) {
+            if (this.spriteMixer == null) {
+                this.spriteMixer = new SpriteMixer(this.handler.getContext(),
+                                                   this.audioFile, this);
+                this.spriteMixer.setVolume(this.getOutputVolume());
+                this.handler.registerCache(this.spriteMixer);
+            }
+            this.spriteMixer.play(name, region[0], region[1]);
+            return;
+        }
+
+        this.spriteName = name;
+        this.spriteEnd = region[0] + region[1];
+        if (this.readyPlayer(this.audioFile) && this.player != null) {
+            this.cancelPrebuffer();
+            this.cancelSeeks();
+            this.player.seekTo(region[0], false);
+            this.player.start();
+            this.setState(STATE.MEDIA_RUNNING);
+            this.onFirstAudio();
+        } else {
+            // started by onPrepared
+            this.seekOnPrepared = region[0];
+            this.prepareOnly = false;
+        }
+        sendSpriteEvent(name, "start");
+        this.timeoutHandler.removeCallbacks(this.spriteStop);
+        this.timeoutHandler.postDelayed(this.spriteStop, (long) (region[1] / this.rate));
+    }
+
+    /**
+     * Stop the regions of the audio sprite with a name, or all regions.
+     *
+     * @param name              The name of the region, null for all
+     */
+    public synchronized void stopSprite(String name) {
+        if (this.spriteMixer != null) {
+            this.spriteMixer.stop(name);
+        }
+        if (this.spriteName != null && (name == null || name.equals(this.spriteName))) {
+            endSprite();
+        }
+    }
+
+    /**
+     * Stop the engine at the end of its region. The timer is checked against
+     * the position, so that a late start or a rate change is accounted for.
+     */
+    private synchronized void onSpriteTimer() {
+        if (this.spriteName == null) {
+            return;
+        }
+        switch (this.state) {
+        case MEDIA_RUNNING:
+            int remaining = this.spriteEnd - this.player.getCurrentPosition();
+            if (remaining > 5) {
+                this.timeoutHandler.postDelayed(this.spriteStop, (long) (remaining / this.rate));
+            } else {
+                endSprite();
+            }
+            break;
+        case MEDIA_LOADING:
+        case MEDIA_STARTING:
+        case MEDIA_PAUSED:
+            this.timeoutHandler.postDelayed(this.spriteStop, 20);
+            break;
+        default:
+            this.spriteName = null;
+            break;
+        }
+    }
+
+    private void endSprite() {
+        String name = this.spriteName;
+        this.spriteName = null;
+        this.timeoutHandler.removeCallbacks(this.spriteStop);
+        if (this.state == STATE.MEDIA_RUNNING || this.state == STATE.MEDIA_PAUSED) {
+            this.player.pause();
+            this.setState(STATE.MEDIA_STOPPED);
+        } else if (this.state == STATE.MEDIA_LOADING) {
+            this.prepareOnly = true;
+        }
+        sendSpriteEvent(name, "end");
+    }
+
+    public void onSpriteStart(String name) {
+        sendSpriteEvent(name, "start");
+    }
+
+    public void onSpriteEnd(String name) {
+        sendSpriteEvent(name, "end");
+    }
+
+    public void onSpriteError(String name) {
+        sendSpriteEvent(name, "error");
+        sendErrorStatus(MEDIA_ERR_NONE_SUPPORTED);
+    }
+
+    private void sendSpriteEvent(String name, String event) {
+        JSONObject details = new JSONObject();
+        try {
+            details.put("id", this.id);
+            details.put("name", name);
+            details.put("event", event);
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Failed to create sprite event", e);
+        }
+        this.handler.sendEventMessage("sprite", details);
+    }
+
+    /**
+     * Enable or disable loudness normalization, from the next file loaded.
+     *
+     * @param normalize         Apply the gain measured by the loudness analyzer
+     */
+    public synchronized void setNormalize(boolean normalize) {
+        this.normalize = normalize;
+    }
+
+    /**
+     * Look up the loudness gain of a local file, or have it analyzed. Playback
+     * never waits for the analysis: the gain is applied once known.
+     *
+     * @param file              The file being loaded
+     */
+    private void requestLoudness(String file) {
+        if (file.equals(this.loudnessSource)) {
+            return;
+        }
+        this.cancelLoudness();
+        this.loudnessGain = 1.0f;
+        boolean enabled = this.normalize != null ? this.normalize : this.handler.getLoudnessNormalization();
+        if (!enabled || !LoudnessAnalyzer.canAnalyze(file)) {
+            return;
+        }
+        LoudnessAnalyzer analyzer = this.handler.getLoudnessAnalyzer();
+        this.loudnessSource = file;
+        float gain = analyzer.getGain(file);
+        if (!Float.isNaN(gain)) {
+            this.loudnessGain = gain;
+        } else {
+            this.loudnessRequest = analyzer.analyze(file, this);
+        }
+        if (this.player != null) {
+            this.player.setVolume(this.getOutputVolume());
+        }
+    }
+
+    private void cancelLoudness() {
+        if (this.loudnessRequest != null) {
+            this.loudnessRequest.cancel();
+            this.loudnessRequest = null;
+        }
+        this.loudnessSource = null;
+        this.pendingLoudnessGain = -1;
+    }
+
+    public synchronized void onLoudnessGain(String source, float gain) {
+        if (!source.equals(this.loudnessSource) || this.loudnessRequest == null) {
+            return;
+        }
+        this.loudnessRequest = null;
+        if (this.state == STATE.MEDIA_RUNNING) {
+            // don't jump in volume while playing
+            this.pendingLoudnessGain = gain;
+        } else {
+            this.applyLoudnessGain(gain);
+        }
+    }
+
+    /**
+     * Start sending the spectrum of the playback to JavaScript. The analysis
+     * follows the player when its engine is released and created again.
+     *
+     * @param bins              The number of frequency bins, a power of two
+     * @param rate              The number of spectrums per second
+     */
+    public synchronized void startSpectrum(int bins, double rate) {
+        this.detachSpectrum();
+        this.spectrumBins = bins;
+        this.spectrumRate = rate;
+        if (this.player != null) {
+            this.attachSpectrum();
+        }
+    }
+
+    public synchronized void stopSpectrum() {
+        this.spectrumBins = 0;
+        this.detachSpectrum();
+    }
+
+    private void attachSpectrum() {
+        if (this.spectrumBins <= 0 || this.spectrum != null) {
+            return;
+        }
+        int session = this.player.getAudioSessionId();
+        try {
+            if (session == 0) {
+                throw new UnsupportedOperationException("No audio session");
+            }
+            this.spectrum = new SpectrumAnalyzer(session, this.spectrumBins, this.spectrumRate, this);
+        } catch (RuntimeException e) {
+            LOG.e(LOG_TAG, "Failed to analyze the spectrum of player " + this.id, e);
+            this.spectrumBins = 0;
+            sendErrorStatus(MEDIA_ERR_NONE_SUPPORTED);
+        }
+    }
+
+    private void detachSpectrum() {
+        if (this.spectrum != null) {
+            this.spectrum.release();
+            this.spectrum = null;
+        }
+    }
+
+    public void onSpectrum(byte[] bins, int sampleRate) {
+        JSONObject spectrum = new JSONObject();
+        try {
+            spectrum.put("id", this.id);
+            spectrum.put("seq", ++this.spectrumSeq);
+            spectrum.put("sampleRate", sampleRate);
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Failed to create spectrum event", e);
+        }
+        this.handler.sendEventMessage("spectrum", spectrum, bins);
+    }
+
+    private void applyLoudnessGain(float gain) {
+        this.pendingLoudnessGain = -1;
+        this.loudnessGain = gain;
+        if (this.spriteMixer != null) {
+            this.spriteMixer.setVolume(this.getOutputVolume());
+        }
+        if (this.player != null) {
+            this.player.setVolume(this.getOutputVolume());
+        }
+    }
+
+    /**
+     * Get the volume sent to the engine: the volume set by JavaScript with
+     * the loudness gain, which can't go over full scale.
+     */
+    public float getOutputVolume() {
+        return Math.min(1.0f, this.volume * this.loudnessGain);
+    }
+
+    /**
+     * Set the playback engine used when the player is next created.
+     *
+     * @param engine            engine type, null for the default engine
+     */
+    public synchronized void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Create the playback engine.
+     */
+    private void createEngine() {
+        this.player = this.handler.createEngine(this.engine, this);
+        this.player.setListener(this);
+        this.player.setVolume(this.getOutputVolume());
+        this.applyPlaybackParams();
+        if (this.loopEnabled) {
+            this.player.setLoop(true, this.loopStart, this.loopEnd);
+        }
+        this.attachSpectrum();
+    }
+
     /**
      * attempts to put the player in play mode
      * @return true if in playmode, false otherwise
@@ -577,8 +1851,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
             switch (this.state) {
                 case MEDIA_NONE:
                     if (this.player == null) {
-                        this.player = new MediaPlayer();
-                        this.player.setOnErrorListener(this);
+                        this.createEngine();
                     }
                     try {
                         this.loadAudioFile(file);
@@ -600,8 +1873,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
                     if (this.audioFile.compareTo(file) == 0) {
                         //maybe it was recording?
                         if(this.recorder!=null && player==null) {
-                            this.player = new MediaPlayer();
-                            this.player.setOnErrorListener(this);
+                            this.createEngine();
                             this.prepareOnly = false;
 
                             try {
@@ -614,7 +1886,8 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
                         }
                         else {
                            //reset the audio file
-                            player.seekTo(0);
+                            this.cancelSeeks();
+                            player.seekTo(0, false);
                             player.pause();
                             return true;
                         }
@@ -645,41 +1918,49 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * @throws IllegalArgumentException
      */
     private void loadAudioFile(String file) throws IllegalArgumentException, SecurityException, IllegalStateException, IOException {
-        if (this.isStreaming(file)) {
+        this.prepared = false;
+        this.cancelSeeks();
+        if (file.equals(BUFFER_SOURCE)) {
+            if (this.buffer == null) {
+                throw new IOException("No media buffer for player " + this.id);
+            }
+            this.player.setDataSource(this.buffer);
+            this.setState(STATE.MEDIA_STARTING);
+            this.prepared = this.player.prepare();
+            if (this.prepared) {
+                this.duration = getDurationInSeconds();
+            }
+        }
+        else if (this.isStreaming(file)) {
             this.player.setDataSource(file);
-            this.player.setAudioStreamType(AudioManager.STREAM_MUSIC);
             //if it's a streaming file, play mode is implied
             this.setMode(MODE.PLAY);
             this.setState(STATE.MEDIA_STARTING);
-            this.player.setOnPreparedListener(this);
-            this.player.setOnErrorListener(this);
+            this.bufferedPercent = 0;
+            this.stallStartedAt = -1;
+            this.stallCount = 0;
+            this.stallTime = 0;
+            this.timeToFirstAudio = -1;
+            this.loadStartedAt = SystemClock.elapsedRealtime();
             this.player.prepareAsync();
         }
         else {
-            if (file.startsWith("/android_asset/")) {
-                String f = file.substring(15);
-                android.content.res.AssetFileDescriptor fd = this.handler.cordova.getActivity().getAssets().openFd(f);
-                this.player.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
+            if (file.startsWith("/android_asset/") || FileHelper.isContentUri(file) || new File(file).exists()) {
+                this.player.setDataSource(file);
             }
             else {
-                File fp = new File(file);
-                if (fp.exists()) {
-                    FileInputStream fileInputStream = new FileInputStream(file);
-                    this.player.setDataSource(fileInputStream.getFD());
-                    fileInputStream.close();
-                }
-                else {
-                    this.player.setDataSource(Environment.getExternalStorageDirectory().getPath() + "/" + file);
-                }
+                file = Environment.getExternalStorageDirectory().getPath() + "/" + file;
+                this.player.setDataSource(file);
             }
-                this.setState(STATE.MEDIA_STARTING);
-                this.player.setOnPreparedListener(this);
-                this.player.setOnErrorListener(this);
-                this.player.prepare();
+            this.requestLoudness(file);
+            this.setState(STATE.MEDIA_STARTING);
+            this.prepared = this.player.prepare();
 
-                // Get duration
+            // Get duration
+            if (this.prepared) {
                 this.duration = getDurationInSeconds();
             }
+        }
     }
 
     private void sendErrorStatus(int errorCode) {
@@ -717,6 +1998,9 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * @return amplitude or 0 if not recording
      */
     public float getCurrentAmplitude() {
+        if (this.voiceRecorder != null) {
+            return (float) this.voiceRecorder.getMaxAmplitude() / 32762;
+        }
         if (this.recorder != null) {
             try{
                 if (this.state == STATE.MEDIA_RUNNING) {
@@ -0,0 +1,165 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.apache.cordova.LOG;
+
+import java.util.HashMap;
+
+/**
+ * This class holds scheduled starts and stops of audio players and fires them
+ * against a monotonic audio clock.
+ *
+ * The clock is expressed in milliseconds since the scheduler was created. Tasks
+ * are posted to a dedicated high priority thread slightly ahead of their due
+ * time and then spin until the exact due time, which keeps the firing jitter
+ * well below a millisecond on an idle device.
+ */
+public class AudioScheduler {
+
+    private static final String LOG_TAG = "AudioScheduler";
+
+    // How long before the due time a task is woken up to spin on the clock
+    private static final long SPIN_WINDOW_NANOS = 2000000L;
+
+    private final long originNanos;             // Clock origin
+    private final HandlerThread thread;         // Thread firing scheduled tasks
+    private final Handler handler;
+
+    // Pending tasks per player, keyed by "start:" or "stop:" plus the player id
+    private final HashMap<String, Runnable> pending = new HashMap<String, Runnable>();
+
+    /**
+     * Constructor.
+     */
+    public AudioScheduler() {
+        this.originNanos = System.nanoTime();
+        this.thread = new HandlerThread("MediaScheduler", Process.THREAD_PRIORITY_URGENT_AUDIO);
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+    }
+
+    /**
+     * Get the audio clock.
+     *
+     * @return                  milliseconds since the scheduler was created
+     */
+    public double now() {
+        return (System.nanoTime() - this.originNanos) / 1000000.0;
+    }
+
+    /**
+     * Schedule a start of the given player.
+     *
+     * @param id                The id of the audio player
+     * @param atTimeMs          Audio clock time to start at
+     * @param task              The task starting the player
+     */
+    public void scheduleStart(String id, double atTimeMs, Runnable task) {
+        schedule("start:" + id, atTimeMs, task);
+    }
+
+    /**
+     * Schedule a stop of the given player.
+     *
+     * @param id                The id of the audio player
+     * @param atTimeMs          Audio clock time to stop at
+     * @param task              The task stopping the player
+     */
+    public void scheduleStop(String id, double atTimeMs, Runnable task) {
+        schedule("stop:" + id, atTimeMs, task);
+    }
+
+    /**
+     * Cancel any pending start or stop of the given player.
+     *
+     * @param id                The id of the audio player
+     */
+    public void cancel(String id) {
+        synchronized (this.pending) {
+            Runnable start = this.pending.remove("start:" + id);
+            Runnable stop = this.pending.remove("stop:" + id);
+            if (start != null) this.handler.removeCallbacks(start);
+            if (stop != null) this.handler.removeCallbacks(stop);
+        }
+    }
+
+    /**
+     * Cancel all pending tasks.
+     */
+    public void cancelAll() {
+        synchronized (this.pending) {
+            this.pending.clear();
+            this.handler.removeCallbacksAndMessages(null);
+        }
+    }
+
+    /**
+     * Cancel all pending tasks and stop the scheduler thread.
+     */
+    public void shutdown() {
+        cancelAll();
+        this.thread.quit();
+    }
+
+    private void schedule(final String key, double atTimeMs, final Runnable task) {
+        final long dueNanos = this.originNanos + (long) (atTimeMs * 1000000.0);
+        Runnable fire = new Runnable() {
+            public void run() {
+                synchronized (pending) {
+                    if (pending.get(key) != this) {
+                        return; // cancelled or replaced
+                    }
+                    pending.remove(key);
+                }
+                // spin for the last part of the wait
+                while (System.nanoTime() < dueNanos) {
+                    // busy wait
+                }
+                long lateNanos = System.nanoTime() - dueNanos;
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LOG.e(LOG_TAG, "Scheduled task " + key + " failed", e);
+                }
+                if (lateNanos > 1000000L) {
+                    LOG.d(LOG_TAG, "Scheduled task " + key + " fired " + (lateNanos / 1000) + "us late");
+                }
+            }
+        };
+
+        synchronized (this.pending) {
+            Runnable previous = this.pending.put(key, fire);
+            if (previous != null) {
+                this.handler.removeCallbacks(previous);
+            }
+            long delayNanos = dueNanos - System.nanoTime() - SPIN_WINDOW_NANOS;
+            if (delayNanos <= 0) {
+                this.handler.post(fire);
+            } else {
+                this.handler.postAtTime(fire, SystemClock.uptimeMillis() + delayNanos / 1000000L);
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class records the actions executed by the plugin to a binary ring
+ * file, so that production load patterns can be replayed offline.
+ *
+ * The file is memory mapped: recording a call is a copy into the mapping,
+ * without a system call, and the kernel writes the pages back even if the
+ * process dies. The ring is made of fixed size blocks; when the current block
+ * is full, the oldest block is cleared and reused, so records never wrap.
+ *
+ * Layout, big endian:
+ *   header    magic, version, block size, block count (int), wall clock ms, nanoTime base (long)
+ *   block     sequence (int, 0 for empty), used bytes (int), records
+ *   record    length (short), start nanos since base (long), duration usec (int),
+ *             flags (byte), action length (byte), action, args JSON (UTF-8)
+ *
+ * Only java.* is used, so that the replay tool can read traces on any JVM.
+ */
+public class CallTracer {
+
+    public static final int MAGIC = 0x4D545243;     // "MTRC"
+    public static final int VERSION = 1;
+    public static final int FLAG_TRUNCATED = 1;     // the args were cut to MAX_ARGS bytes
+
+    private static final int HEADER_SIZE = 32;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int BLOCK_HEADER = 8;
+    private static final int RECORD_HEADER = 16;
+    private static final int MAX_ARGS = 4096;
+    private static final int MAX_VALUE = 256;       // longer string args are summarized
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A recorded call.
+     */
+    public static class Record {
+        public final long start;            // nsec since the start of the trace
+        public final long duration;         // nsec spent in execute
+        public final String action;
+        public final String args;
+        public final boolean truncated;
+
+        Record(long start, long duration, String action, String args, boolean truncated) {
+            this.start = start;
+            this.duration = duration;
+            this.action = action;
+            this.args = args;
+            this.truncated = truncated;
+        }
+    }
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int blocks;
+    private final long baseNanos;
+    private int block = 0;                  // block being written
+    private int sequence = 1;               // sequence of that block
+    private int used = 0;                   // bytes of records in that block
+    private long records = 0;
+
+    /**
+     * Constructor. A trace left by the previous run is kept with a .1 suffix.
+     *
+     * @param file              The trace file
+     * @param size              The size of the ring in bytes, rounded to 64 KB blocks
+     */
+    public CallTracer(File file, int size) throws IOException {
+        this.file = file;
+        this.blocks = Math.max(2, size / BLOCK_SIZE);
+        if (file.exists() && !file.renameTo(new File(file.getPath() + ".1"))) {
+            file.delete();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = HEADER_SIZE + (long) this.blocks * BLOCK_SIZE;
+            raf.setLength(length);
+            // the mapping stays valid once the file is closed
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+        this.baseNanos = System.nanoTime();
+        this.buffer.putInt(0, MAGIC);
+        this.buffer.putInt(4, VERSION);
+        this.buffer.putInt(8, BLOCK_SIZE);
+        this.buffer.putInt(12, this.blocks);
+        this.buffer.putLong(16, System.currentTimeMillis());
+        this.buffer.putLong(24, this.baseNanos);
+        openBlock(0, 1);
+    }
+
+    /**
+     * Summarize a long string argument, such as the base64 audio passed to
+     * createFromBuffer, by its length and hash. Serializing it whole would
+     * copy megabytes on every call, only for the record to be truncated.
+     *
+     * @param value             The argument
+     * @return                  the argument, or its summary if it is long
+     */
+    public static String summarize(String value) {
+        if (value.length() <= MAX_VALUE) {
+            return value;
+        }
+        return String.format("<%d chars, hash %08x>", value.length(), value.hashCode());
+    }
+
+    /**
+     * Record a call.
+     *
+     * @param start             System.nanoTime() at the start of the call
+     * @param duration          Duration of the call in nsec
+     * @param action            The action
+     * @param args              The arguments, as JSON
+     */
+    public void record(long start, long duration, String action, String args) {
+        byte[] name = action.getBytes(UTF8);
+        byte[] data = args.getBytes(UTF8);
+        int flags = 0;
+        int argsLength = data.length;
+        if (argsLength > MAX_ARGS) {
+            argsLength = MAX_ARGS;
+            flags |= FLAG_TRUNCATED;
+        }
+        int nameLength = Math.min(name.length, 255);
+        int length = RECORD_HEADER + nameLength + argsLength;
+
+        synchronized (this) {
+            if (this.used + length > BLOCK_SIZE - BLOCK_HEADER) {
+                openBlock((this.block + 1) % this.blocks, this.sequence + 1);
+            }
+            int offset = blockOffset(this.block) + BLOCK_HEADER + this.used;
+            this.buffer.putShort(offset, (short) length);
+            this.buffer.putLong(offset + 2, start - this.baseNanos);
+            this.buffer.putInt(offset + 10, (int) Math.min(Integer.MAX_VALUE, duration / 1000));
+            this.buffer.put(offset + 14, (byte) flags);
+            this.buffer.put(offset + 15, (byte) nameLength);
+            ByteBuffer target = this.buffer.duplicate();
+            target.position(offset + RECORD_HEADER);
+            target.put(name, 0, nameLength);
+            target.put(data, 0, argsLength);
+            // commit the record
+            this.used += length;
+            this.buffer.putInt(blockOffset(this.block) + 4, this.used);
+            this.records++;
+        }
+    }
+
+    /**
+     * Write the mapped pages to the file, e.g. before it is uploaded.
+     *
+     * @return                  the trace file
+     */
+    public synchronized File flush() {
+        this.buffer.force();
+        return this.file;
+    }
+
+    public synchronized long getRecordCount() {
+        return this.records;
+    }
+
+    private void openBlock(int block, int sequence) {
+        int offset = blockOffset(block);
+        this.buffer.putInt(offset + 4, 0);
+        this.buffer.putInt(offset, sequence);
+        this.block = block;
+        this.sequence = sequence;
+        this.used = 0;
+    }
+
+    private int blockOffset(int block) {
+        return HEADER_SIZE + block * BLOCK_SIZE;
+    }
+
+    //--------------------------------------------------------------------------
+    // Reading
+    //--------------------------------------------------------------------------
+
+    /**
+     * Read the calls of a trace file, oldest first.
+     *
+     * @param file              The trace file
+     * @return                  the recorded calls
+     */
+    public static List<Record> read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        final ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE || in.getInt(0) != MAGIC) {
+            throw new IOException("Not a media trace: " + file);
+        }
+        if (in.getInt(4) != VERSION) {
+            throw new IOException("Unsupported trace version " + in.getInt(4));
+        }
+        final int blockSize = in.getInt(8);
+        int blockCount = in.getInt(12);
+
+        Integer[] order = new Integer[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int sa = in.getInt(HEADER_SIZE + a * blockSize);
+                int sb = in.getInt(HEADER_SIZE + b * blockSize);
+                return sa < sb ? -1 : (sa == sb ? 0 : 1);
+            }
+        });
+
+        List<Record> records = new ArrayList<Record>();
+        for (int block : order) {
+            int offset = HEADER_SIZE + block * blockSize;
+            if (in.getInt(offset) == 0) {
+                continue;
+            }
+            int end = offset + BLOCK_HEADER + Math.min(in.getInt(offset + 4), blockSize - BLOCK_HEADER);
+            int position = offset + BLOCK_HEADER;
+            while (position + RECORD_HEADER <= end) {
+                int length = in.getShort(position) & 0xFFFF;
+                int nameLength = in.get(position + 15) & 0xFF;
+                if (length < RECORD_HEADER + nameLength || position + length > end) {
+                    break;
+                }
+                records.add(new Record(in.getLong(position + 2),
+                        (in.getInt(position + 10) & 0xFFFFFFFFL) * 1000,
+                        new String(bytes, position + RECORD_HEADER, nameLength, UTF8),
+                        new String(bytes, position + RECORD_HEADER + nameLength, length - RECORD_HEADER - nameLength, UTF8),
+                        (in.get(position + 14) & FLAG_TRUNCATED) != 0));
+                position += length;
+            }
+        }
+        // blocks are in order, calls from other threads may not be
+        Collections.sort(records, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+            }
+        });
+        return records;
+    }
+}
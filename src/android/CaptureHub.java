@@ -0,0 +1,203 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.os.Process;
+
+import org.apache.cordova.LOG;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class shares audio capture between recording sessions. There is one
+ * AudioRecord and one capture thread per audio source and sample rate,
+ * whatever the number of sessions recording from it: most devices refuse a
+ * second client on the same source.
+ *
+ * Every 20 msec frame is given to each session on the capture thread, where
+ * the session encodes it to its own output.
+ */
+public class CaptureHub {
+
+    private static final String LOG_TAG = "CaptureHub";
+    public static final int FRAME_MSEC = 20;
+
+    /**
+     * Receives the captured audio.
+     */
+    public interface Consumer {
+        /**
+         * Called on the capture thread for each frame.
+         *
+         * @param frame         Mono 16 bit PCM, shared by the consumers and never modified
+         * @param count         The number of samples in the frame
+         */
+        void onFrame(short[] frame, int count);
+
+        /**
+         * Called on the capture thread if the capture failed. No frame
+         * follows, and the consumer should unsubscribe.
+         *
+         * @param error         The AudioRecord error code
+         */
+        void onCaptureError(int error);
+    }
+
+    private class Capture implements Runnable {
+        final String key;
+        final int sampleRate;
+        final AudioRecord record;
+        final CopyOnWriteArrayList<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+        final Object delivery = new Object();   // held while a frame is delivered
+        volatile boolean running = true;
+        Thread thread;
+
+        Capture(String key, int sampleRate, AudioRecord record) {
+            this.key = key;
+            this.sampleRate = sampleRate;
+            this.record = record;
+        }
+
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            int frameSamples = this.sampleRate * FRAME_MSEC / 1000;
+            int error = 0;
+            try {
+                while (this.running) {
+                    short[] frame = new short[frameSamples];
+                    int n = this.record.read(frame, 0, frameSamples);
+                    if (n < 0) {
+                        // e.g. ERROR_DEAD_OBJECT, every later read fails too
+                        LOG.e(LOG_TAG, "Capture of " + this.key + " failed: " + n);
+                        error = n;
+                        break;
+                    }
+                    if (n == 0) {
+                        continue;
+                    }
+                    synchronized (this.delivery) {
+                        for (Consumer consumer : this.consumers) {
+                            consumer.onFrame(frame, n);
+                        }
+                    }
+                }
+                this.record.stop();
+            } catch (IllegalStateException e) {
+                LOG.e(LOG_TAG, "Capture failed", e);
+                error = AudioRecord.ERROR;
+            } finally {
+                this.record.release();
+            }
+            if (error != 0) {
+                // the next subscriber starts a new capture
+                this.running = false;
+                synchronized (this.delivery) {
+                    for (Consumer consumer : this.consumers) {
+                        consumer.onCaptureError(error);
+                    }
+                }
+            }
+        }
+    }
+
+    private final HashMap<String, Capture> captures = new HashMap<String, Capture>();
+
+    /**
+     * Start receiving the audio of a source, starting its capture if needed.
+     *
+     * @param source            The MediaRecorder.AudioSource
+     * @param sampleRate        The sample rate in Hz
+     * @param consumer          The session receiving the frames
+     */
+    public synchronized void subscribe(int source, int sampleRate, Consumer consumer) throws IOException {
+        String key = source + ":" + sampleRate;
+        Capture capture = this.captures.get(key);
+        if (capture == null || !capture.running) {
+            int frameBytes = sampleRate * FRAME_MSEC / 1000 * 2;
+            int bufferSize = Math.max(AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO,
+                                                                   AudioFormat.ENCODING_PCM_16BIT), frameBytes * 4);
+            AudioRecord record = new AudioRecord(source, sampleRate, AudioFormat.CHANNEL_IN_MONO,
+                                                 AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                record.release();
+                throw new IOException("Failed to initialize AudioRecord for source " + source);
+            }
+            try {
+                record.startRecording();
+            } catch (IllegalStateException e) {
+                record.release();
+                throw new IOException("Failed to start capturing source " + source, e);
+            }
+            capture = new Capture(key, sampleRate, record);
+            capture.thread = new Thread(capture, "MediaCapture-" + key);
+            capture.thread.start();
+            this.captures.put(key, capture);
+        }
+        capture.consumers.add(consumer);
+    }
+
+    /**
+     * Stop receiving the audio of a source, and stop its capture once no
+     * session is left. When this returns, the consumer is not called anymore.
+     *
+     * @param source            The MediaRecorder.AudioSource
+     * @param sampleRate        The sample rate in Hz
+     * @param consumer          The session receiving the frames
+     */
+    public void unsubscribe(int source, int sampleRate, Consumer consumer) {
+        Capture capture;
+        boolean last;
+        synchronized (this) {
+            capture = this.captures.get(source + ":" + sampleRate);
+            if (capture == null || !capture.consumers.remove(consumer)) {
+                return;
+            }
+            last = capture.consumers.isEmpty();
+            if (last) {
+                capture.running = false;
+                this.captures.remove(capture.key);
+            }
+        }
+        if (Thread.currentThread() == capture.thread) {
+            return;                     // called by the consumer itself
+        }
+        if (last) {
+            try {
+                capture.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            // wait for the frame being delivered, if any
+            synchronized (capture.delivery) {
+            }
+        }
+    }
+
+    /**
+     * Get the number of sources being captured.
+     */
+    public synchronized int getCaptureCount() {
+        return this.captures.size();
+    }
+}
@@ -16,8 +16,17 @@
  */
 package org.apache.cordova.media;
 
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
 public class FileHelper {
 
     /**
@@ -33,4 +42,75 @@ public class FileHelper {
         }
         return uriString;
     }
+
+    /**
+     * Check whether a source is a content:// URI, played from a file
+     * descriptor of its provider rather than from a path.
+     *
+     * @param source the source to check
+     * @return true for a content:// URI
+     */
+    public static boolean isContentUri(String source) {
+        return source.startsWith("content://");
+    }
+
+    /**
+     * Open a content:// URI for reading. The media is then read in place,
+     * from the range of the descriptor, without being copied.
+     *
+     * @param context the application context
+     * @param source the content:// URI
+     * @return the descriptor, to close once given to the player
+     */
+    public static AssetFileDescriptor openContent(Context context, String source) throws IOException {
+        AssetFileDescriptor fd;
+        try {
+            fd = context.getContentResolver().openAssetFileDescriptor(Uri.parse(source), "r");
+        } catch (SecurityException e) {
+            throw new IOException("No permission to read " + source, e);
+        }
+        if (fd == null) {
+            throw new FileNotFoundException("No content for " + source);
+        }
+        return fd;
+    }
+
+    /**
+     * Move a file, replacing any file at the target. A rename can't cross
+     * file systems, e.g. from the app cache to shared storage, so the file
+     * is then copied next to the target, renamed over it, and deleted.
+     *
+     * @param from the file to move
+     * @param to the target
+     */
+    public static void moveFile(File from, File to) throws IOException {
+        if (from.renameTo(to)) {
+            return;
+        }
+        File temp = new File(to.getPath() + ".part");
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                FileChannel source = in.getChannel();
+                long size = source.size();
+                long done = 0;
+                while (done < size) {
+                    done += source.transferTo(done, size - done, out.getChannel());
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        MediaEditor.replace(temp, to.getPath());
+        if (!from.delete()) {
+            from.deleteOnExit();
+        }
+    }
 }
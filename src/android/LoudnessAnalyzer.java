@@ -0,0 +1,387 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Process;
+
+import org.apache.cordova.LOG;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class measures the loudness of local media files in the background,
+ * and derives the gain that brings them to a target loudness.
+ *
+ * Files are decoded and measured buffer by buffer on a single thread of
+ * background priority, so an analysis never competes with playback, and
+ * stops at the next buffer once cancelled. The loudness and peak of each
+ * file are kept on disk, keyed by path, size and modification time, so a
+ * file is only analyzed once.
+ */
+public class LoudnessAnalyzer implements MediaCache {
+
+    private static final String LOG_TAG = "LoudnessAnalyzer";
+    private static final int MAX_ENTRIES = 2000;        // files kept in the cache
+    private static final int ENTRY_BYTES = 200;         // estimated memory per entry
+    private static final double MAX_BOOST = 12.0;       // dB
+
+    /**
+     * Receives the gain of an analyzed file, on the analyzer thread.
+     */
+    public interface Callback {
+        void onLoudnessGain(String source, float gain);
+    }
+
+    /**
+     * A pending analysis, that can be cancelled.
+     */
+    public class Request {
+        private final Task task;
+        private final Callback callback;
+
+        Request(Task task, Callback callback) {
+            this.task = task;
+            this.callback = callback;
+        }
+
+        /**
+         * Stop waiting for the gain. The analysis is stopped when no other
+         * player waits for it.
+         */
+        public void cancel() {
+            synchronized (LoudnessAnalyzer.this) {
+                this.task.callbacks.remove(this.callback);
+                if (this.task.callbacks.isEmpty() && tasks.get(this.task.key) == this.task) {
+                    tasks.remove(this.task.key);
+                    this.task.cancelled = true;
+                    if (this.task.future != null) {
+                        this.task.future.cancel(false);
+                    }
+                }
+            }
+        }
+    }
+
+    private class Task implements Runnable {
+        final String key;
+        final String source;
+        final ArrayList<Callback> callbacks = new ArrayList<Callback>();
+        volatile boolean cancelled = false;
+        Future<?> future;
+
+        Task(String key, String source) {
+            this.key = key;
+            this.source = source;
+        }
+
+        public void run() {
+            ensureLoaded();
+            double[] measure;
+            synchronized (LoudnessAnalyzer.this) {
+                measure = entries.get(this.key);
+            }
+            if (measure == null) {
+                measure = measure();
+                if (measure == null) {
+                    synchronized (LoudnessAnalyzer.this) {
+                        if (tasks.get(this.key) == this) {
+                            tasks.remove(this.key);
+                        }
+                    }
+                    return;
+                }
+                synchronized (LoudnessAnalyzer.this) {
+                    entries.put(this.key, measure);
+                }
+                save();
+            }
+            ArrayList<Callback> waiting;
+            synchronized (LoudnessAnalyzer.this) {
+                if (tasks.get(this.key) == this) {
+                    tasks.remove(this.key);
+                }
+                waiting = new ArrayList<Callback>(this.callbacks);
+            }
+            float gain = toGain(measure);
+            for (Callback callback : waiting) {
+                callback.onLoudnessGain(this.source, gain);
+            }
+        }
+
+        /**
+         * Decode and measure the file.
+         *
+         * @return              loudness in LUFS and peak in dBFS, null if cancelled or failed
+         */
+        private double[] measure() {
+            final LoudnessMeter[] meter = new LoudnessMeter[1];
+            final short[][] buffer = { new short[0] };
+            try {
+                AudioDecoder.decode(context, this.source, new AudioDecoder.Sink() {
+                    public void onFormat(int sampleRate, int channels) {
+                        // the decoder may correct the format before the first samples
+                        if (meter[0] == null || meter[0].getDuration() == 0) {
+                            meter[0] = new LoudnessMeter(sampleRate, channels);
+                        }
+                    }
+
+                    public boolean onSamples(ShortBuffer pcm) {
+                        if (cancelled) {
+                            return false;
+                        }
+                        int n = pcm.remaining();
+                        if (buffer[0].length < n) {
+                            buffer[0] = new short[n];
+                        }
+                        pcm.get(buffer[0], 0, n);
+                        meter[0].process(buffer[0], 0, n);
+                        return true;
+                    }
+                });
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, "Failed to analyze " + this.source, e);
+                return null;
+            }
+            if (this.cancelled || meter[0] == null) {
+                return null;
+            }
+            return new double[] { meter[0].getIntegratedLoudness(), meter[0].getPeak() };
+        }
+    }
+
+    private final Context context;
+    private final File cacheFile;
+    private final double target;            // LUFS
+    private final long appUpdateTime;       // assets change with the app
+    private final ThreadPoolExecutor executor;
+    private final LinkedHashMap<String, double[]> entries = new LinkedHashMap<String, double[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final HashMap<String, Task> tasks = new HashMap<String, Task>();
+    private boolean loaded = false;         // entries were read from the disk
+
+    /**
+     * Constructor.
+     *
+     * @param context           The application context
+     * @param cacheFile         The file keeping the measures
+     * @param target            The target loudness in LUFS
+     */
+    public LoudnessAnalyzer(Context context, File cacheFile, double target) {
+        this.context = context;
+        this.cacheFile = cacheFile;
+        this.target = target;
+        long updateTime = 0;
+        try {
+            updateTime = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // keys of assets are then kept across updates
+        }
+        this.appUpdateTime = updateTime;
+        this.executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "MediaLoudness");
+                }
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+        // read the cache first, before any analysis is queued
+        this.executor.execute(new Runnable() {
+            public void run() {
+                ensureLoaded();
+            }
+        });
+    }
+
+    /**
+     * Get the gain of an analyzed file, without any I/O but a file stat.
+     *
+     * @param source            A file path or an /android_asset/ path
+     * @return                  the gain, NaN if the file was not analyzed yet
+     */
+    public synchronized float getGain(String source) {
+        double[] measure = this.entries.get(getKey(source));
+        return measure == null ? Float.NaN : toGain(measure);
+    }
+
+    /**
+     * Analyze a file in the background, unless it was already analyzed.
+     *
+     * @param source            A file path or an /android_asset/ path
+     * @param callback          Receives the gain, not called if the analysis fails
+     * @return                  the request, to cancel it
+     */
+    public synchronized Request analyze(String source, Callback callback) {
+        String key = getKey(source);
+        Task task = this.tasks.get(key);
+        if (task == null) {
+            task = new Task(key, source);
+            this.tasks.put(key, task);
+            task.future = this.executor.submit(task);
+        }
+        task.callbacks.add(callback);
+        return new Request(task, callback);
+    }
+
+    /**
+     * Check whether a source can be analyzed: remote files would be
+     * downloaded twice.
+     */
+    public static boolean canAnalyze(String source) {
+        return source.startsWith("/android_asset/") || (source.startsWith("/") && new File(source).isFile());
+    }
+
+    /**
+     * Cancel all analyses and stop the thread.
+     */
+    public synchronized void release() {
+        for (Task task : this.tasks.values()) {
+            task.cancelled = true;
+        }
+        this.tasks.clear();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Drop the measures from memory. They are read from the disk again
+     * by the next analysis.
+     */
+    public synchronized long trim() {
+        if (!this.tasks.isEmpty()) {
+            return 0;                       // a running analysis may save the cache
+        }
+        long bytes = (long) this.entries.size() * ENTRY_BYTES;
+        this.entries.clear();
+        this.loaded = false;
+        return bytes;
+    }
+
+    private String getKey(String source) {
+        if (source.startsWith("/android_asset/")) {
+            return source + "|" + this.appUpdateTime;
+        }
+        File file = new File(source);
+        return source + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    private float toGain(double[] measure) {
+        if (Double.isInfinite(measure[0])) {
+            return 1.0f;                    // silence
+        }
+        // never boost over full scale, nor by more than MAX_BOOST
+        double gain = Math.min(this.target - measure[0], Math.min(MAX_BOOST, -measure[1]));
+        return (float) Math.pow(10, gain / 20);
+    }
+
+    private void ensureLoaded() {
+        synchronized (this) {
+            if (this.loaded) {
+                return;
+            }
+        }
+        Properties properties = new Properties();
+        if (this.cacheFile.exists()) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(this.cacheFile);
+                properties.load(in);
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, "Failed to read the loudness cache", e);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+        synchronized (this) {
+            for (String key : properties.stringPropertyNames()) {
+                String[] values = properties.getProperty(key).split(",");
+                try {
+                    if (values.length == 2 && !this.entries.containsKey(key)) {
+                        this.entries.put(key, new double[] { Double.parseDouble(values[0]), Double.parseDouble(values[1]) });
+                    }
+                } catch (NumberFormatException e) {
+                    // skip the entry
+                }
+            }
+            this.loaded = true;
+        }
+    }
+
+    private void save() {
+        Properties properties = new Properties();
+        synchronized (this) {
+            Iterator<Map.Entry<String, double[]>> it = this.entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, double[]> entry = it.next();
+                properties.setProperty(entry.getKey(), entry.getValue()[0] + "," + entry.getValue()[1]);
+            }
+        }
+        File temp = new File(this.cacheFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            properties.store(out, null);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!temp.renameTo(this.cacheFile)) {
+                LOG.e(LOG_TAG, "Failed to replace the loudness cache");
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Failed to write the loudness cache", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+}
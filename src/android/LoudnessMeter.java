@@ -0,0 +1,205 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.util.Arrays;
+
+/**
+ * Measures the integrated loudness of 16 bit PCM, as specified by EBU R128
+ * and ITU-R BS.1770: K-weighting, mean square over 400 msec blocks overlapping
+ * by 75%, then an absolute gate at -70 LUFS and a relative gate at -10 LU.
+ *
+ * Samples are fed incrementally, so audio of any length is measured in
+ * constant memory, apart from one double per 100 msec for the gating.
+ */
+public class LoudnessMeter {
+
+    private static final double ABSOLUTE_GATE = -70.0;     // LUFS
+    private static final double RELATIVE_GATE = -10.0;     // LU below the absolute-gated loudness
+
+    private final int channels;
+    private final double[] weights;
+    private final int stepFrames;           // frames per 100 msec step
+
+    // K-weighting: a high shelf, then a high pass, per channel
+    private final double sb0, sb1, sb2, sa1, sa2;
+    private final double hb0, hb1, hb2, ha1, ha2;
+    private final double[] z;               // 4 filter states per channel
+
+    private final double[] stepSum;         // sum of squares of the current step, per channel
+    private int stepFill = 0;               // frames in the current step
+    private final double[] lastSteps = new double[4]; // weighted mean squares of the last 4 steps
+    private int steps = 0;
+    private double[] blocks = new double[256]; // weighted mean square of each 400 msec block
+    private int blockCount = 0;
+    private double totalEnergy = 0;         // for audio shorter than a block
+    private int peak = 0;                   // absolute sample peak
+
+    /**
+     * Constructor.
+     *
+     * @param sampleRate        The sample rate in Hz
+     * @param channels          The number of interleaved channels
+     */
+    public LoudnessMeter(int sampleRate, int channels) {
+        this.channels = channels;
+        this.weights = new double[channels];
+        for (int c = 0; c < channels; c++) {
+            // 5.1: L R C LFE Ls Rs, the LFE is ignored and the surrounds weighted
+            if (channels == 6 && c == 3) {
+                this.weights[c] = 0;
+            } else if (channels >= 5 && c >= channels - 2) {
+                this.weights[c] = 1.41;
+            } else {
+                this.weights[c] = 1.0;
+            }
+        }
+        this.stepFrames = Math.max(1, sampleRate / 10);
+        this.z = new double[channels * 4];
+        this.stepSum = new double[channels];
+
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double q = 0.7071752369554196;
+        double a0 = 1 + k / q + k * k;
+        this.sb0 = (vh + vb * k / q + k * k) / a0;
+        this.sb1 = 2 * (k * k - vh) / a0;
+        this.sb2 = (vh - vb * k / q + k * k) / a0;
+        this.sa1 = 2 * (k * k - 1) / a0;
+        this.sa2 = (1 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        this.hb0 = 1;
+        this.hb1 = -2;
+        this.hb2 = 1;
+        this.ha1 = 2 * (k * k - 1) / a0;
+        this.ha2 = (1 - k / q + k * k) / a0;
+    }
+
+    /**
+     * Measure samples.
+     *
+     * @param samples           Interleaved samples
+     * @param offset            Index of the first sample, at the start of a frame
+     * @param count             Number of samples, a multiple of the channel count
+     */
+    public void process(short[] samples, int offset, int count) {
+        int end = offset + count - count % this.channels;
+        for (int i = offset; i < end; i += this.channels) {
+            for (int c = 0; c < this.channels; c++) {
+                int sample = samples[i + c];
+                int magnitude = sample < 0 ? -sample : sample;
+                if (magnitude > this.peak) {
+                    this.peak = magnitude;
+                }
+                double x = sample / 32768.0;
+                int s = c * 4;
+                // transposed direct form II
+                double y = this.sb0 * x + this.z[s];
+                this.z[s] = this.sb1 * x - this.sa1 * y + this.z[s + 1];
+                this.z[s + 1] = this.sb2 * x - this.sa2 * y;
+                double w = this.hb0 * y + this.z[s + 2];
+                this.z[s + 2] = this.hb1 * y - this.ha1 * w + this.z[s + 3];
+                this.z[s + 3] = this.hb2 * y - this.ha2 * w;
+                this.stepSum[c] += w * w;
+            }
+            if (++this.stepFill == this.stepFrames) {
+                endStep();
+            }
+        }
+    }
+
+    private void endStep() {
+        double energy = 0;
+        for (int c = 0; c < this.channels; c++) {
+            energy += this.weights[c] * this.stepSum[c] / this.stepFrames;
+            this.stepSum[c] = 0;
+        }
+        this.stepFill = 0;
+        this.totalEnergy += energy;
+        this.lastSteps[this.steps % 4] = energy;
+        this.steps++;
+        if (this.steps >= 4) {
+            if (this.blockCount == this.blocks.length) {
+                this.blocks = Arrays.copyOf(this.blocks, this.blockCount * 2);
+            }
+            this.blocks[this.blockCount++] = (this.lastSteps[0] + this.lastSteps[1] + this.lastSteps[2] + this.lastSteps[3]) / 4;
+        }
+    }
+
+    /**
+     * Get the gated loudness of the samples measured so far.
+     *
+     * @return                  the integrated loudness in LUFS, -Infinity for silence
+     */
+    public double getIntegratedLoudness() {
+        if (this.blockCount == 0) {
+            // shorter than a block: ungated loudness of the whole steps
+            return this.steps > 0 ? toLoudness(this.totalEnergy / this.steps) : Double.NEGATIVE_INFINITY;
+        }
+        double absolute = toEnergy(ABSOLUTE_GATE);
+        double gated = gatedMean(absolute);
+        if (gated == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double relative = toEnergy(toLoudness(gated) + RELATIVE_GATE);
+        return toLoudness(gatedMean(Math.max(absolute, relative)));
+    }
+
+    /**
+     * Get the sample peak measured so far.
+     *
+     * @return                  the peak in dBFS, -Infinity for silence
+     */
+    public double getPeak() {
+        return this.peak == 0 ? Double.NEGATIVE_INFINITY : 20 * Math.log10(this.peak / 32768.0);
+    }
+
+    /**
+     * Get the duration measured so far.
+     *
+     * @return                  the duration in msec
+     */
+    public long getDuration() {
+        return this.steps * 100L;
+    }
+
+    private double gatedMean(double threshold) {
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < this.blockCount; i++) {
+            if (this.blocks[i] > threshold) {
+                sum += this.blocks[i];
+                count++;
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    private static double toLoudness(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    private static double toEnergy(double loudness) {
+        return Math.pow(10, (loudness + 0.691) / 10);
+    }
+}
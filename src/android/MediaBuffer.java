@@ -0,0 +1,114 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoded media kept in memory outside of the Java heap, played without a
+ * temporary file.
+ *
+ * The bytes are in a direct or a memory-mapped buffer. Engines read them at
+ * any position, from any thread, until the buffer is released; reads after
+ * that fail as an end of stream, so an engine released asynchronously never
+ * touches unmapped memory.
+ */
+public class MediaBuffer {
+
+    private final String mimeType;
+    private final long size;
+    private ByteBuffer data;                // null once released
+    private final Closeable mapping;        // unmaps the buffer, null for a direct buffer
+
+    /**
+     * Constructor.
+     *
+     * @param data              The encoded media, from position 0 to its limit
+     * @param mimeType          The MIME type of the media, may be null
+     * @param mapping           Unmaps the buffer on release, null for a direct buffer
+     */
+    public MediaBuffer(ByteBuffer data, String mimeType, Closeable mapping) {
+        this.data = data;
+        this.mimeType = mimeType;
+        this.size = data.limit();
+        this.mapping = mapping;
+    }
+
+    public String getMimeType() {
+        return this.mimeType;
+    }
+
+    /**
+     * Get the size of the media, still known once released.
+     *
+     * @return                  the size in bytes
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    public boolean isMapped() {
+        return this.mapping != null;
+    }
+
+    /**
+     * Read bytes at a position.
+     *
+     * @param position          The position in the media
+     * @param buffer            The buffer to read to
+     * @param offset            The offset in the buffer
+     * @param length            The maximum number of bytes to read
+     * @return                  the number of bytes read, -1 at the end of the media or once released
+     */
+    public synchronized int readAt(long position, byte[] buffer, int offset, int length) {
+        if (this.data == null || position < 0 || position >= this.size) {
+            return -1;
+        }
+        int n = (int) Math.min(length, this.size - position);
+        this.data.position((int) position);
+        this.data.get(buffer, offset, n);
+        return n;
+    }
+
+    /**
+     * Free the memory. The buffer reads as empty afterwards.
+     *
+     * @return                  false if it was already released
+     */
+    public synchronized boolean release() {
+        if (this.data == null) {
+            return false;
+        }
+        this.data = null;
+        if (this.mapping != null) {
+            try {
+                this.mapping.close();
+            } catch (IOException e) {
+                // the mapping is dropped with the process
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean isReleased() {
+        return this.data == null;
+    }
+}
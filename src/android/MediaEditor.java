@@ -0,0 +1,479 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import org.apache.cordova.LOG;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * This class cuts and joins audio without re-encoding it: the compressed
+ * samples of the sources are copied as they are, with MediaExtractor, to an
+ * MPEG-4 file with MediaMuxer, or to a raw AAC ADTS or AMR file, the formats
+ * recorded by AudioPlayer, which MediaMuxer can't write.
+ *
+ * Cuts fall on sample boundaries, about 20 msec for AMR and 23 msec for AAC
+ * at 44.1 kHz. Joined sources must have the same codec, sample rate and
+ * channel count.
+ */
+public class MediaEditor {
+
+    private static final String LOG_TAG = "MediaEditor";
+    private static final int MAX_SAMPLE_SIZE = 64 * 1024;   // bytes, when the source doesn't tell
+
+    public enum FORMAT { MPEG_4, ADTS, AMR, OGG };
+
+    /**
+     * A part of a source to copy.
+     */
+    public static class Segment {
+        final String source;
+        final long startMs;
+        final long endMs;
+
+        /**
+         * @param source        A file path, an /android_asset/ path or a content:// URI
+         * @param startMs       The start of the part in msec
+         * @param endMs         The end of the part in msec, -1 for the end of the source
+         */
+        public Segment(String source, long startMs, long endMs) {
+            this.source = source;
+            this.startMs = startMs;
+            this.endMs = endMs;
+        }
+    }
+
+    /**
+     * Receives the progress of an export, on the exporting thread.
+     */
+    public interface Progress {
+        /**
+         * @param fraction      The part done, from 0 to 1
+         */
+        void onProgress(float fraction);
+    }
+
+    /**
+     * Writes compressed samples to a file.
+     */
+    interface Writer {
+        void start(MediaFormat format) throws IOException;
+        void write(ByteBuffer sample, MediaCodec.BufferInfo info) throws IOException;
+        void finish() throws IOException;
+        void abort();
+    }
+
+    /**
+     * Copy segments of sources, one after the other, to a file. The file is
+     * written next to the target, then renamed, so the target is never left
+     * incomplete.
+     *
+     * @param context           The application context, to open assets and content
+     * @param segments          The parts to copy, in order
+     * @param target            The path of the file to write
+     * @param format            The format of the file
+     * @param progress          Receives the progress, may be null
+     * @return                  the duration written in msec
+     */
+    public static long export(Context context, List<Segment> segments, String target, FORMAT format,
+                              Progress progress) throws IOException {
+        if (segments.isEmpty()) {
+            throw new IOException("Nothing to export");
+        }
+        File temp = new File(target + ".part");
+        Writer writer = createWriter(format, temp.getPath());
+        MediaFormat first = null;
+        long offsetUs = 0;                  // start of the current segment in the target
+        long totalUs = 0;                   // estimated duration of all segments, for the progress
+        long doneUs = 0;
+        float reported = 0;
+        boolean finished = false;
+        try {
+            long[] durationsUs = new long[segments.size()];
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    MediaFormat trackFormat = AudioDecoder.openAudioTrack(context, extractor, segment.source);
+                    long sourceUs = trackFormat.containsKey(MediaFormat.KEY_DURATION) ? trackFormat.getLong(MediaFormat.KEY_DURATION) : 0;
+                    long endUs = segment.endMs >= 0 ? Math.min(segment.endMs * 1000, sourceUs > 0 ? sourceUs : Long.MAX_VALUE) : sourceUs;
+                    durationsUs[i] = Math.max(0, endUs - segment.startMs * 1000);
+                    totalUs += durationsUs[i];
+                } finally {
+                    extractor.release();
+                }
+            }
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    MediaFormat trackFormat = AudioDecoder.openAudioTrack(context, extractor, segment.source);
+                    if (first == null) {
+                        first = trackFormat;
+                        writer.start(trackFormat);
+                    } else {
+                        checkCompatible(first, trackFormat, segment.source);
+                    }
+                    int maxSize = trackFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                            ? trackFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : MAX_SAMPLE_SIZE;
+                    ByteBuffer sample = ByteBuffer.allocate(maxSize);
+
+                    long startUs = segment.startMs * 1000;
+                    long endUs = segment.endMs >= 0 ? segment.endMs * 1000 : Long.MAX_VALUE;
+                    if (startUs > 0) {
+                        extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    }
+                    long firstUs = -1;              // time of the first copied sample in the source
+                    long lastUs = -1;
+                    long frameUs = 0;               // duration of a sample, from the last two
+                    while (true) {
+                        int size = extractor.readSampleData(sample, 0);
+                        if (size < 0) {
+                            break;
+                        }
+                        long timeUs = extractor.getSampleTime();
+                        if (timeUs >= endUs) {
+                            break;
+                        }
+                        if (timeUs >= startUs) {
+                            if (firstUs < 0) {
+                                firstUs = timeUs;
+                            }
+                            info.set(0, size, offsetUs + timeUs - firstUs,
+                                     (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                                     ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                            sample.position(0).limit(size);
+                            writer.write(sample, info);
+                        }
+                        if (lastUs >= 0 && timeUs > lastUs) {
+                            frameUs = timeUs - lastUs;
+                        }
+                        lastUs = timeUs;
+                        sample.clear();
+                        extractor.advance();
+
+                        if (progress != null && totalUs > 0 && firstUs >= 0) {
+                            float fraction = Math.min(1f, (float) (doneUs + timeUs - firstUs) / totalUs);
+                            if (fraction - reported >= 0.01f) {
+                                reported = fraction;
+                                progress.onProgress(fraction);
+                            }
+                        }
+                    }
+                    if (firstUs >= 0) {
+                        offsetUs += lastUs - firstUs + frameUs;
+                    }
+                    doneUs += durationsUs[i];
+                } finally {
+                    extractor.release();
+                }
+            }
+            if (offsetUs == 0) {
+                throw new IOException("No audio to export");
+            }
+            writer.finish();
+            finished = true;
+        } catch (IllegalStateException e) {
+            throw new IOException("Failed to export " + target, e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Failed to export " + target, e);
+        } finally {
+            if (!finished) {
+                writer.abort();
+                temp.delete();
+            }
+        }
+        replace(temp, target);
+        if (progress != null && reported < 1f) {
+            progress.onProgress(1f);
+        }
+        return offsetUs / 1000;
+    }
+
+    /**
+     * Move a complete file to its target, replacing any file there.
+     *
+     * @param temp              The file written
+     * @param target            The path of the file to replace
+     */
+    static void replace(File temp, String target) throws IOException {
+        File file = new File(target);
+        if (!temp.renameTo(file)) {
+            // renameTo doesn't replace on every file system
+            if (!file.delete() || !temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Failed to write " + target);
+            }
+        }
+    }
+
+    /**
+     * Get the format to export to.
+     *
+     * @param format            "mp4", "adts", "amr" or "ogg", null to keep raw AMR and ADTS sources raw
+     * @param source            The first source
+     * @return                  the format
+     */
+    public static FORMAT parseFormat(String format, String source) throws IOException {
+        if (format == null || format.equals("auto")) {
+            return detectRawFormat(source);
+        }
+        if (format.equalsIgnoreCase("mp4")) {
+            return FORMAT.MPEG_4;
+        }
+        if (format.equalsIgnoreCase("adts")) {
+            return FORMAT.ADTS;
+        }
+        if (format.equalsIgnoreCase("amr")) {
+            return FORMAT.AMR;
+        }
+        if (format.equalsIgnoreCase("ogg")) {
+            return FORMAT.OGG;
+        }
+        throw new IOException("Unknown export format " + format);
+    }
+
+    /**
+     * Sniff a local file for a raw AMR or ADTS stream.
+     */
+    private static FORMAT detectRawFormat(String source) {
+        if (!source.startsWith("/") || source.startsWith("/android_asset/")) {
+            return FORMAT.MPEG_4;
+        }
+        byte[] head = new byte[5];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(source);
+            if (in.read(head) < head.length) {
+                return FORMAT.MPEG_4;
+            }
+        } catch (IOException e) {
+            return FORMAT.MPEG_4;          // reported when the source is opened
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+        if (head[0] == '#' && head[1] == '!' && head[2] == 'A' && head[3] == 'M' && head[4] == 'R') {
+            return FORMAT.AMR;
+        }
+        if ((head[0] & 0xFF) == 0xFF && (head[1] & 0xF6) == 0xF0) {
+            return FORMAT.ADTS;
+        }
+        return FORMAT.MPEG_4;
+    }
+
+    private static void checkCompatible(MediaFormat first, MediaFormat format, String source) throws IOException {
+        String[] keys = { MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT };
+        boolean same = first.getString(MediaFormat.KEY_MIME).equals(format.getString(MediaFormat.KEY_MIME));
+        for (String key : keys) {
+            same = same && first.getInteger(key) == format.getInteger(key);
+        }
+        if (!same) {
+            throw new IOException("Can't join " + source + " without re-encoding: " + format
+                                  + " differs from " + first);
+        }
+    }
+
+    /**
+     * Create a writer. The samples given to it start at the position of
+     * their buffer.
+     *
+     * @param format            The format of the file
+     * @param path              The file to write
+     */
+    static Writer createWriter(FORMAT format, String path) throws IOException {
+        switch (format) {
+        case ADTS:
+            return new AdtsWriter(path);
+        case AMR:
+            return new AmrWriter(path);
+        case OGG:
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                throw new IOException("Ogg files require Android 10");
+            }
+            return new MuxerWriter(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_OGG);
+        default:
+            return new MuxerWriter(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        }
+    }
+
+    /**
+     * Writes an MPEG-4 or Ogg file.
+     */
+    private static class MuxerWriter implements Writer {
+        private final MediaMuxer muxer;
+        private int track = -1;
+
+        MuxerWriter(String path, int format) throws IOException {
+            this.muxer = new MediaMuxer(path, format);
+        }
+
+        public void start(MediaFormat format) {
+            this.track = this.muxer.addTrack(format);
+            this.muxer.start();
+        }
+
+        public void write(ByteBuffer sample, MediaCodec.BufferInfo info) {
+            this.muxer.writeSampleData(this.track, sample, info);
+        }
+
+        public void finish() {
+            this.muxer.stop();
+            this.muxer.release();
+        }
+
+        public void abort() {
+            try {
+                if (this.track >= 0) {
+                    this.muxer.stop();
+                }
+            } catch (IllegalStateException e) {
+                // nothing was written
+            }
+            this.muxer.release();
+        }
+    }
+
+    /**
+     * Writes raw frames, each with an optional header.
+     */
+    private static abstract class RawWriter implements Writer {
+        private final FileOutputStream out;
+        private byte[] frame = new byte[0];
+
+        RawWriter(String path) throws IOException {
+            this.out = new FileOutputStream(path);
+        }
+
+        protected void writeBytes(byte[] bytes) throws IOException {
+            this.out.write(bytes);
+        }
+
+        protected byte[] getHeader(int size) {
+            return null;
+        }
+
+        public void write(ByteBuffer sample, MediaCodec.BufferInfo info) throws IOException {
+            if (this.frame.length < info.size) {
+                this.frame = new byte[info.size];
+            }
+            sample.get(this.frame, 0, info.size);
+            byte[] header = getHeader(info.size);
+            if (header != null) {
+                this.out.write(header);
+            }
+            this.out.write(this.frame, 0, info.size);
+        }
+
+        public void finish() throws IOException {
+            this.out.getFD().sync();
+            this.out.close();
+        }
+
+        public void abort() {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, "Failed to close an aborted export", e);
+            }
+        }
+    }
+
+    /**
+     * Writes AAC as an ADTS stream, each access unit behind a 7 byte header.
+     */
+    private static class AdtsWriter extends RawWriter {
+        private int objectType;
+        private int rateIndex;
+        private int channels;
+
+        AdtsWriter(String path) throws IOException {
+            super(path);
+        }
+
+        public void start(MediaFormat format) throws IOException {
+            if (!MediaFormat.MIMETYPE_AUDIO_AAC.equals(format.getString(MediaFormat.KEY_MIME))) {
+                throw new IOException("Can't write " + format.getString(MediaFormat.KEY_MIME) + " as ADTS");
+            }
+            int objectType = 2;             // AAC LC
+            ByteBuffer csd = format.getByteBuffer("csd-0");
+            if (csd != null && csd.remaining() > 0) {
+                int type = (csd.get(csd.position()) & 0xFF) >> 3;
+                if (type >= 1 && type <= 4) {
+                    objectType = type;
+                }
+            }
+            this.objectType = objectType;
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            this.rateIndex = AudioFrames.adtsRateIndex(sampleRate);
+            if (this.rateIndex < 0) {
+                throw new IOException("No ADTS sample rate index for " + sampleRate + " Hz");
+            }
+            this.channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+
+        @Override
+        protected byte[] getHeader(int size) {
+            byte[] header = new byte[AudioFrames.ADTS_HEADER_SIZE];
+            AudioFrames.writeAdtsHeader(header, this.objectType, this.rateIndex, this.channels,
+                                        size + AudioFrames.ADTS_HEADER_SIZE);
+            return header;
+        }
+    }
+
+    /**
+     * Writes AMR as a raw AMR file: the magic number, then the frames, which
+     * carry their own header byte.
+     */
+    private static class AmrWriter extends RawWriter {
+        AmrWriter(String path) throws IOException {
+            super(path);
+        }
+
+        public void start(MediaFormat format) throws IOException {
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (MediaFormat.MIMETYPE_AUDIO_AMR_NB.equals(mime)) {
+                writeBytes(AudioFrames.AMR_HEADER);
+            } else if (MediaFormat.MIMETYPE_AUDIO_AMR_WB.equals(mime)) {
+                writeBytes("#!AMR-WB\n".getBytes("US-ASCII"));
+            } else {
+                throw new IOException("Can't write " + mime + " as AMR");
+            }
+        }
+    }
+}
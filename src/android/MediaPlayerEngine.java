@@ -0,0 +1,511 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioManager;
+import android.media.MediaDataSource;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnBufferingUpdateListener;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnInfoListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.media.MediaPlayer.OnSeekCompleteListener;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.apache.cordova.LOG;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Playback engine backed by android.media.MediaPlayer.
+ *
+ * Whole-file loops use MediaPlayer looping. Loops of a region use a twin
+ * player, prepared and parked at the start of the region, which takes over
+ * when the active player reaches the end of the region.
+ */
+public class MediaPlayerEngine implements PlaybackEngine, OnCompletionListener, OnPreparedListener,
+        OnErrorListener, OnBufferingUpdateListener, OnInfoListener, OnSeekCompleteListener {
+
+    private static final String LOG_TAG = "MediaPlayerEngine";
+    private static final int LOOP_POLL_INTERVAL = 100; // msec between checks for a whole-file loop
+
+    private final Context context;
+    private MediaPlayer player;             // the active player
+    private Listener listener;
+    private String source = null;           // data source, to prepare the twin
+    private MediaBuffer buffer = null;      // in-memory data source, instead of source
+
+    private boolean playing = false;        // started and not paused or stopped
+    private boolean paramsPending = false;  // speed and pitch to apply on next start
+    private float speed = 1.0f;
+    private float pitch = 1.0f;
+    private float volume = 1.0f;
+
+    // Looping
+    private final Handler loopHandler = new Handler(Looper.getMainLooper());
+    private boolean looping = false;
+    private int loopStart = 0;
+    private int loopEnd = 0;                // 0 for the end of the file
+    private MediaPlayer twin = null;        // parked at loopStart, takes over at loopEnd
+    private boolean twinReady = false;
+    private int lastPosition = 0;
+
+    private final Runnable loopSwitch = new Runnable() {
+        public void run() {
+            if (switchToTwin() && listener != null) {
+                listener.onLoop(MediaPlayerEngine.this);
+            }
+        }
+    };
+
+    private final Runnable loopPoll = new Runnable() {
+        public void run() {
+            boolean wrapped;
+            synchronized (MediaPlayerEngine.this) {
+                if (!playing) {
+                    return;
+                }
+                int position = player.getCurrentPosition();
+                wrapped = position < lastPosition;
+                lastPosition = position;
+                loopHandler.postDelayed(this, LOOP_POLL_INTERVAL);
+            }
+            if (wrapped && listener != null) {
+                listener.onLoop(MediaPlayerEngine.this);
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param context           The application context
+     */
+    public MediaPlayerEngine(Context context) {
+        this.context = context;
+        this.player = createPlayer();
+    }
+
+    private MediaPlayer createPlayer() {
+        MediaPlayer mp = new MediaPlayer();
+        mp.setOnPreparedListener(this);
+        mp.setOnCompletionListener(this);
+        mp.setOnErrorListener(this);
+        mp.setOnBufferingUpdateListener(this);
+        mp.setOnInfoListener(this);
+        mp.setOnSeekCompleteListener(this);
+        return mp;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void setDataSource(String file) throws IOException {
+        this.source = file;
+        this.buffer = null;
+        setDataSource(this.player, file);
+    }
+
+    public synchronized void setDataSource(MediaBuffer buffer) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            throw new IOException("In-memory media requires Android 6.0");
+        }
+        this.source = null;
+        this.buffer = buffer;
+        this.player.setDataSource(new BufferDataSource(buffer));
+    }
+
+    private void setDataSource(MediaPlayer mp, String file) throws IOException {
+        if (FileHelper.isContentUri(file)) {
+            AssetFileDescriptor fd = FileHelper.openContent(this.context, file);
+            try {
+                if (fd.getLength() < 0) {
+                    mp.setDataSource(fd.getFileDescriptor());
+                } else {
+                    mp.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
+                }
+            } finally {
+                fd.close();
+            }
+        }
+        else if (file.contains("://")) {
+            mp.setDataSource(file);
+            mp.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        }
+        else if (file.startsWith("/android_asset/")) {
+            AssetFileDescriptor fd = this.context.getAssets().openFd(file.substring(15));
+            try {
+                mp.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
+            } finally {
+                fd.close();
+            }
+        }
+        else {
+            FileInputStream fileInputStream = new FileInputStream(file);
+            try {
+                mp.setDataSource(fileInputStream.getFD());
+            } finally {
+                fileInputStream.close();
+            }
+        }
+    }
+
+    public synchronized boolean prepare() throws IOException {
+        this.player.prepare();
+        return true;
+    }
+
+    public synchronized void prepareAsync() {
+        this.player.prepareAsync();
+    }
+
+    public synchronized void start() {
+        this.player.start();
+        this.playing = true;
+        if (this.paramsPending) {
+            this.paramsPending = false;
+            applyPlaybackParams();
+        }
+        scheduleLoop();
+        scheduleLoopPoll();
+    }
+
+    public synchronized void pause() {
+        this.player.pause();
+        this.playing = false;
+        this.loopHandler.removeCallbacks(this.loopSwitch);
+        this.loopHandler.removeCallbacks(this.loopPoll);
+    }
+
+    public synchronized void stop() {
+        this.player.stop();
+        this.playing = false;
+        this.loopHandler.removeCallbacks(this.loopSwitch);
+        this.loopHandler.removeCallbacks(this.loopPoll);
+    }
+
+    public synchronized void reset() {
+        this.player.reset();
+        this.playing = false;
+        this.loopHandler.removeCallbacks(this.loopPoll);
+        releaseTwin();
+    }
+
+    public synchronized void release() {
+        this.player.release();
+        this.playing = false;
+        releaseTwin();
+        this.loopHandler.removeCallbacksAndMessages(null);
+    }
+
+    public synchronized void seekTo(int milliseconds, boolean fast) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            this.player.seekTo(milliseconds, fast ? MediaPlayer.SEEK_CLOSEST_SYNC : MediaPlayer.SEEK_CLOSEST);
+        } else {
+            this.player.seekTo(milliseconds);
+        }
+        this.lastPosition = milliseconds;
+        if (this.playing) {
+            scheduleLoop(milliseconds);
+        }
+    }
+
+    public synchronized void setVolume(float volume) {
+        this.volume = volume;
+        this.player.setVolume(volume, volume);
+        if (this.twin != null) {
+            this.twin.setVolume(volume, volume);
+        }
+    }
+
+    public synchronized int getCurrentPosition() {
+        return this.player.getCurrentPosition();
+    }
+
+    public synchronized int getDuration() {
+        return this.player.getDuration();
+    }
+
+    public synchronized void setLoop(boolean enabled, int startMs, int endMs) {
+        this.loopHandler.removeCallbacks(this.loopSwitch);
+        this.loopHandler.removeCallbacks(this.loopPoll);
+        this.looping = enabled;
+        this.loopStart = Math.max(0, startMs);
+        this.loopEnd = Math.max(0, endMs);
+
+        if (!enabled) {
+            this.player.setLooping(false);
+            releaseTwin();
+            return;
+        }
+        if (this.loopStart == 0 && this.loopEnd == 0) {
+            // whole file, MediaPlayer loops gaplessly by itself
+            releaseTwin();
+            this.player.setLooping(true);
+            scheduleLoopPoll();
+            return;
+        }
+        this.player.setLooping(false);
+        prepareTwin();
+        scheduleLoop();
+    }
+
+    public synchronized int getAudioSessionId() {
+        return this.player.getAudioSessionId();
+    }
+
+    public synchronized boolean setPlaybackParams(float speed, float pitch) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        this.speed = speed;
+        this.pitch = pitch;
+        // setting playback params on a prepared or paused player starts it
+        if (!this.playing) {
+            this.paramsPending = true;
+            return true;
+        }
+        boolean applied = applyPlaybackParams();
+        scheduleLoop();
+        return applied;
+    }
+
+    private boolean applyPlaybackParams() {
+        try {
+            this.player.setPlaybackParams(this.player.getPlaybackParams().setSpeed(this.speed).setPitch(this.pitch));
+            return true;
+        } catch (IllegalArgumentException e) {
+            LOG.e(LOG_TAG, "Unsupported playback params, speed: " + this.speed + " pitch: " + this.pitch, e);
+        } catch (IllegalStateException e) {
+            LOG.e(LOG_TAG, "Failed to set playback params", e);
+        }
+        return false;
+    }
+
+    /**
+     * Poll the position of a whole-file loop while playing, to report each
+     * pass.
+     */
+    private void scheduleLoopPoll() {
+        this.loopHandler.removeCallbacks(this.loopPoll);
+        if (this.playing && this.looping && this.loopStart == 0 && this.loopEnd == 0) {
+            this.lastPosition = this.player.getCurrentPosition();
+            this.loopHandler.postDelayed(this.loopPoll, LOOP_POLL_INTERVAL);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Region loops
+    //--------------------------------------------------------------------------
+
+    private void prepareTwin() {
+        if (this.twin != null || (this.source == null && this.buffer == null)) {
+            parkTwin();
+            return;
+        }
+        this.twin = createPlayer();
+        this.twinReady = false;
+        // the twin takes over the output, effects must not notice
+        this.twin.setAudioSessionId(this.player.getAudioSessionId());
+        try {
+            if (this.buffer != null) {
+                this.twin.setDataSource(new BufferDataSource(this.buffer));
+            } else {
+                setDataSource(this.twin, this.source);
+            }
+            this.twin.setVolume(this.volume, this.volume);
+            if (this.source != null && this.source.contains("://") && !FileHelper.isContentUri(this.source)) {
+                this.twin.prepareAsync();   // parked in onPrepared
+            } else {
+                this.twin.prepare();
+                this.twinReady = true;
+                parkTwin();
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Failed to prepare loop player", e);
+            releaseTwin();
+        }
+    }
+
+    private void parkTwin() {
+        if (this.twin != null && this.twinReady) {
+            this.twin.seekTo(this.loopStart);
+        }
+    }
+
+    private void releaseTwin() {
+        this.loopHandler.removeCallbacks(this.loopSwitch);
+        if (this.twin != null) {
+            this.twin.release();
+            this.twin = null;
+            this.twinReady = false;
+        }
+    }
+
+    private void scheduleLoop() {
+        if (this.playing) {
+            scheduleLoop(this.player.getCurrentPosition());
+        }
+    }
+
+    private void scheduleLoop(int position) {
+        this.loopHandler.removeCallbacks(this.loopSwitch);
+        if (!this.looping || this.twin == null) {
+            return;
+        }
+        int end = this.loopEnd > 0 ? this.loopEnd : this.player.getDuration();
+        long delay = (long) ((end - position) / this.speed);
+        this.loopHandler.postDelayed(this.loopSwitch, Math.max(0, delay));
+    }
+
+    /**
+     * Jump back to the start of the region.
+     *
+     * @return                  true if playback looped
+     */
+    private synchronized boolean switchToTwin() {
+        if (!this.playing || this.twin == null) {
+            return false;
+        }
+        if (!this.twinReady) {
+            // no twin yet, jump back with a seek
+            seekTo(this.loopStart, false);
+        } else {
+            MediaPlayer next = this.twin;
+            next.start();
+            this.player.pause();
+            this.twin = this.player;
+            this.player = next;
+            if (this.speed != 1.0f || this.pitch != 1.0f) {
+                applyPlaybackParams();
+            }
+            parkTwin();
+            scheduleLoop(this.loopStart);
+        }
+        return true;
+    }
+
+    //--------------------------------------------------------------------------
+    // MediaPlayer events, only forwarded for the active player
+    //--------------------------------------------------------------------------
+
+    public void onPrepared(MediaPlayer player) {
+        synchronized (this) {
+            if (player == this.twin) {
+                this.twinReady = true;
+                parkTwin();
+                return;
+            }
+        }
+        if (this.listener != null) {
+            this.listener.onPrepared(this);
+        }
+    }
+
+    public void onCompletion(MediaPlayer player) {
+        boolean looped = false;
+        synchronized (this) {
+            if (player != this.player) {
+                return;
+            }
+            if (this.looping && this.twin != null && this.playing) {
+                // the region ends at the end of the file
+                this.loopHandler.removeCallbacks(this.loopSwitch);
+                if (!switchToTwin()) {
+                    return;
+                }
+                looped = true;
+            } else {
+                this.playing = false;
+            }
+        }
+        // the listener takes the player lock, so it is called outside ours
+        if (this.listener == null) {
+            return;
+        }
+        if (looped) {
+            this.listener.onLoop(this);
+        } else {
+            this.listener.onCompletion(this);
+        }
+    }
+
+    public boolean onError(MediaPlayer player, int what, int extra) {
+        synchronized (this) {
+            if (player != this.player) {
+                LOG.e(LOG_TAG, "Loop player error " + what + ", " + extra);
+                releaseTwin();
+                return true;
+            }
+            this.playing = false;
+        }
+        return this.listener != null && this.listener.onError(this, what, extra);
+    }
+
+    public void onBufferingUpdate(MediaPlayer player, int percent) {
+        if (player == this.player && this.listener != null) {
+            this.listener.onBufferingUpdate(this, percent);
+        }
+    }
+
+    public boolean onInfo(MediaPlayer player, int what, int extra) {
+        return player == this.player && this.listener != null && this.listener.onInfo(this, what, extra);
+    }
+
+    public void onSeekComplete(MediaPlayer player) {
+        if (player == this.player && this.listener != null) {
+            this.listener.onSeekComplete(this);
+        }
+    }
+
+    /**
+     * Feeds a MediaBuffer to a MediaPlayer. The buffer outlives the players
+     * reading it, so closing the data source leaves it alone.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static class BufferDataSource extends MediaDataSource {
+        private final MediaBuffer buffer;
+
+        BufferDataSource(MediaBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) {
+            return this.buffer.readAt(position, buffer, offset, size);
+        }
+
+        @Override
+        public long getSize() {
+            return this.buffer.getSize();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
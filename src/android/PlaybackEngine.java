@@ -0,0 +1,120 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.io.IOException;
+
+/**
+ * The native playback engine behind an AudioPlayer.
+ *
+ * Engines follow the android.media.MediaPlayer contract: the error and info
+ * codes passed to the listener are the MediaPlayer MEDIA_ERROR_* and
+ * MEDIA_INFO_* constants, and positions and durations are in msec.
+ */
+public interface PlaybackEngine {
+
+    /**
+     * Receives the asynchronous events of an engine.
+     */
+    interface Listener {
+        void onPrepared(PlaybackEngine engine);
+        void onCompletion(PlaybackEngine engine);
+        boolean onError(PlaybackEngine engine, int what, int extra);
+        void onBufferingUpdate(PlaybackEngine engine, int percent);
+        boolean onInfo(PlaybackEngine engine, int what, int extra);
+        void onSeekComplete(PlaybackEngine engine);
+        void onLoop(PlaybackEngine engine);
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Set the source to play.
+     *
+     * @param file              a stream url, a content:// URI, an /android_asset/ path or an absolute file path
+     */
+    void setDataSource(String file) throws IOException;
+
+    /**
+     * Set in-memory media as the source to play. The buffer stays owned by
+     * the caller, the engine never releases it.
+     *
+     * @param buffer            the encoded media
+     */
+    void setDataSource(MediaBuffer buffer) throws IOException;
+
+    /**
+     * Prepare the source, synchronously if the engine supports it.
+     *
+     * @return                  true if the source is prepared on return
+     */
+    boolean prepare() throws IOException;
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    void reset();
+
+    void release();
+
+    /**
+     * Seek to a position. Completion is reported to Listener.onSeekComplete.
+     *
+     * @param milliseconds      the position to seek to
+     * @param fast              seek to the closest sync frame instead of the exact position
+     */
+    void seekTo(int milliseconds, boolean fast);
+
+    void setVolume(float volume);
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    /**
+     * Loop a region of the source natively. Each jump back to the start of
+     * the region is reported to Listener.onLoop. Once disabled, playback
+     * continues past the region.
+     *
+     * @param enabled           loop, or continue past the region
+     * @param startMs           start of the region in msec
+     * @param endMs             end of the region in msec, 0 for the end of the source
+     */
+    void setLoop(boolean enabled, int startMs, int endMs);
+
+    /**
+     * Set speed and pitch, without changing the playing or paused state.
+     *
+     * @return                  false if the engine can't apply them
+     */
+    boolean setPlaybackParams(float speed, float pitch);
+
+    /**
+     * Get the audio session of the output, which audio effects attach to.
+     * It doesn't change for the life of the engine.
+     *
+     * @return                  the session id, 0 if the engine has no audio output
+     */
+    int getAudioSessionId();
+}
@@ -0,0 +1,103 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.content.Context;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The services an AudioPlayer gets from its host: its engine, the shared
+ * recording resources, and the channel to JavaScript.
+ *
+ * AudioHandler hosts the players of the plugin. Another host, e.g. a test
+ * harness with simulated engines and a recorded event channel, can drive
+ * AudioPlayer without Cordova.
+ */
+public interface PlayerHost {
+
+    /**
+     * Get the application context.
+     */
+    Context getContext();
+
+    /**
+     * Create a playback engine.
+     *
+     * @param type              "mediaplayer", "exoplayer" or "simulated", null for the default engine
+     * @param audio             The player the engine is created for
+     * @return                  a new engine
+     */
+    PlaybackEngine createEngine(String type, AudioPlayer audio);
+
+    /**
+     * Called by the players when their state changes.
+     *
+     * @param audio             The player
+     * @param state             The new state
+     */
+    void onPlayerStateChanged(AudioPlayer audio, AudioPlayer.STATE state);
+
+    /**
+     * Send an event to JavaScript.
+     *
+     * @param action            The event name, e.g. "status"
+     * @param actionData        The event details
+     */
+    void sendEventMessage(String action, JSONObject actionData);
+
+    /**
+     * Send an event with a binary payload to JavaScript.
+     *
+     * @param action            The event name, e.g. "chunk"
+     * @param actionData        The event details
+     * @param payload           The binary data
+     */
+    void sendEventMessage(String action, JSONObject actionData, byte[] payload);
+
+    void registerCache(MediaCache cache);
+
+    void unregisterCache(MediaCache cache);
+
+    // Recording
+
+    File getRecordingDir();
+
+    /**
+     * Check the temporary recording quota before a new segment is recorded.
+     *
+     * @return                  the bytes left for the segment, or -1 without quota
+     */
+    long reserveRecordingSpace();
+
+    RecordingJournal createJournal(String target, String format) throws IOException;
+
+    CaptureHub getCaptureHub();
+
+    boolean isSharedCapture();
+
+    // Loudness normalization
+
+    boolean getLoudnessNormalization();
+
+    LoudnessAnalyzer getLoudnessAnalyzer();
+}
@@ -0,0 +1,193 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import org.apache.cordova.LOG;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * This class releases the native resources of audio players that have been
+ * idle for too long, or that exceed the budget of prepared players.
+ * Reclaimed players are prepared again transparently on their next use.
+ */
+public class PlayerReaper {
+
+    private static final String LOG_TAG = "PlayerReaper";
+
+    private final Map<String, AudioPlayer> players; // The AudioHandler registry
+    private final long idleTimeout;         // Idle time before release in msec, 0 disables
+    private final int maxPrepared;          // Maximum prepared players, 0 disables
+    private final long interval;            // Time between two sweeps in msec
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private long reclaimed = 0;             // Total number of released native players
+
+    /**
+     * A prepared player, with its last use read once so that the order
+     * cannot change while sorting.
+     */
+    private static class Candidate {
+        final AudioPlayer audio;
+        final long lastUsed;
+
+        Candidate(AudioPlayer audio) {
+            this.audio = audio;
+            this.lastUsed = audio.getLastUsed();
+        }
+    }
+
+    private final Runnable sweep = new Runnable() {
+        public void run() {
+            sweep();
+            handler.postDelayed(this, interval);
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param players           The audio players to watch
+     * @param idleTimeout       Idle time in msec after which a player is released, 0 disables
+     * @param maxPrepared       Maximum number of prepared players, 0 disables
+     */
+    public PlayerReaper(Map<String, AudioPlayer> players, long idleTimeout, int maxPrepared) {
+        this.players = players;
+        this.idleTimeout = idleTimeout;
+        this.maxPrepared = maxPrepared;
+        this.interval = idleTimeout > 0 ? Math.max(1000, idleTimeout / 4) : 30000;
+        this.thread = new HandlerThread("MediaReaper", Process.THREAD_PRIORITY_BACKGROUND);
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+        this.handler.postDelayed(this.sweep, this.interval);
+    }
+
+    /**
+     * Request a sweep as soon as possible, e.g. when a player was prepared.
+     */
+    public void requestSweep() {
+        if (this.maxPrepared > 0) {
+            this.handler.post(new Runnable() {
+                public void run() {
+                    sweep();
+                }
+            });
+        }
+    }
+
+    /**
+     * Release all idle players right away, whatever their idle time.
+     *
+     * @return                  the ids of the released players
+     */
+    public ArrayList<String> reclaimAllIdle() {
+        ArrayList<String> ids = new ArrayList<String>();
+        for (Map.Entry<String, AudioPlayer> entry : this.players.entrySet()) {
+            if (entry.getValue().releaseIfIdle(0)) {
+                ids.add(entry.getKey());
+            }
+        }
+        countReclaimed(ids.size());
+        return ids;
+    }
+
+    /**
+     * Stop the reaper thread.
+     */
+    public void shutdown() {
+        this.handler.removeCallbacksAndMessages(null);
+        this.thread.quit();
+    }
+
+    /**
+     * Get memory statistics for all audio players.
+     *
+     * @return                  JSON object with player counts and settings
+     */
+    public JSONObject getStats() throws JSONException {
+        int materialized = 0;
+        for (AudioPlayer audio : this.players.values()) {
+            if (audio.isMaterialized()) {
+                materialized++;
+            }
+        }
+        JSONObject stats = new JSONObject();
+        stats.put("players", this.players.size());
+        stats.put("prepared", materialized);
+        synchronized (this) {
+            stats.put("reclaimed", this.reclaimed);
+        }
+        stats.put("idleTimeout", this.idleTimeout);
+        stats.put("maxPrepared", this.maxPrepared);
+        return stats;
+    }
+
+    private synchronized void countReclaimed(int count) {
+        this.reclaimed += count;
+    }
+
+    private void sweep() {
+        int count = 0;
+        ArrayList<Candidate> materialized = new ArrayList<Candidate>();
+
+        // release players idle for longer than the timeout
+        for (AudioPlayer audio : this.players.values()) {
+            if (this.idleTimeout > 0 && audio.releaseIfIdle(this.idleTimeout)) {
+                count++;
+            } else if (audio.isMaterialized()) {
+                materialized.add(new Candidate(audio));
+            }
+        }
+
+        // release the least recently used idle players beyond the budget
+        if (this.maxPrepared > 0 && materialized.size() > this.maxPrepared) {
+            Collections.sort(materialized, new Comparator<Candidate>() {
+                public int compare(Candidate a, Candidate b) {
+                    return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+                }
+            });
+            int excess = materialized.size() - this.maxPrepared;
+            for (Candidate candidate : materialized) {
+                if (excess == 0) {
+                    break;
+                }
+                if (candidate.audio.releaseIfIdle(0)) {
+                    count++;
+                    excess--;
+                }
+            }
+        }
+
+        if (count > 0) {
+            LOG.d(LOG_TAG, "Released " + count + " idle players");
+            countReclaimed(count);
+        }
+    }
+}
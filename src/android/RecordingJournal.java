@@ -0,0 +1,405 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import org.apache.cordova.LOG;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+
+/**
+ * This class keeps an on-disk manifest of the segments of a recording in
+ * progress, and periodically flushes the segment being recorded to disk, so
+ * that a recording interrupted by the death of the process can be recovered.
+ *
+ * Recordings are raw AMR or AAC ADTS, which are sequences of self-contained
+ * frames. Recovery concatenates the segments and cuts a truncated last frame,
+ * without re-encoding.
+ */
+public class RecordingJournal {
+
+    private static final String LOG_TAG = "RecordingJournal";
+
+    public static final String FORMAT_AMR = "amr";
+    public static final String FORMAT_ADTS = "adts";
+    public static final String EXTENSION = ".journal";
+
+    // Journals of recordings in progress in this process, never recovered
+    private static final HashSet<String> active = new HashSet<String>();
+
+    private final File file;                // The manifest
+    private final JSONObject manifest;
+    private final long syncInterval;        // msec between flushes of the current segment, 0 disables
+    private HandlerThread thread;
+    private Handler handler;
+    private String current = null;          // Segment being recorded
+
+    private final Runnable sync = new Runnable() {
+        public void run() {
+            synchronized (RecordingJournal.this) {
+                syncCurrent();
+                // not after closeSegment() or delete()
+                if (current != null && handler != null) {
+                    handler.postDelayed(this, syncInterval);
+                }
+            }
+        }
+    };
+
+    /**
+     * Constructor. The manifest is written right away.
+     *
+     * @param dir               The directory of the temporary recording files
+     * @param target            The absolute path of the recording
+     * @param format            FORMAT_AMR or FORMAT_ADTS
+     * @param syncInterval      Time in msec between flushes of the current segment, 0 disables
+     */
+    public RecordingJournal(File dir, String target, String format, long syncInterval) throws IOException {
+        this.file = new File(dir, "recording-" + System.currentTimeMillis() + EXTENSION);
+        this.syncInterval = syncInterval;
+        this.manifest = new JSONObject();
+        try {
+            this.manifest.put("target", target);
+            this.manifest.put("format", format);
+            this.manifest.put("started", System.currentTimeMillis());
+            this.manifest.put("segments", new JSONArray());
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        synchronized (active) {
+            active.add(this.file.getAbsolutePath());
+        }
+        write();
+    }
+
+    /**
+     * Record a new segment before the recorder starts writing it, and start
+     * flushing it periodically.
+     *
+     * @param segment           The path of the temporary segment file
+     */
+    public synchronized void addSegment(String segment) throws IOException {
+        this.manifest.optJSONArray("segments").put(segment);
+        write();
+        this.current = segment;
+        if (this.syncInterval > 0) {
+            if (this.thread == null) {
+                this.thread = new HandlerThread("MediaJournal", Process.THREAD_PRIORITY_BACKGROUND);
+                this.thread.start();
+                this.handler = new Handler(this.thread.getLooper());
+            }
+            this.handler.removeCallbacks(this.sync);
+            this.handler.postDelayed(this.sync, this.syncInterval);
+        }
+    }
+
+    /**
+     * Flush the current segment once the recorder stopped writing it.
+     */
+    public synchronized void closeSegment() {
+        if (this.handler != null) {
+            this.handler.removeCallbacks(this.sync);
+        }
+        syncCurrent();
+        this.current = null;
+    }
+
+    /**
+     * Record that the recording was saved to its target, so that recovery
+     * only deletes what is left of the journal, even if the target was
+     * already there before the recording.
+     */
+    public synchronized void markSaved() {
+        try {
+            this.manifest.put("saved", true);
+            write();
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Failed to mark " + this.file + " saved", e);
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Failed to mark " + this.file + " saved", e);
+        }
+    }
+
+    /**
+     * Delete the manifest once the recording was saved.
+     */
+    public synchronized void delete() {
+        release();
+        if (!this.file.delete()) {
+            LOG.e(LOG_TAG, "Failed to delete " + this.file);
+        }
+    }
+
+    /**
+     * Stop flushing and keep the manifest, so that the next call to recover()
+     * rebuilds a recording that could not be saved.
+     */
+    public synchronized void release() {
+        if (this.thread != null) {
+            this.thread.quit();
+            this.thread = null;
+            this.handler = null;
+        }
+        synchronized (active) {
+            active.remove(this.file.getAbsolutePath());
+        }
+    }
+
+    private synchronized void syncCurrent() {
+        if (this.current == null) {
+            return;
+        }
+        // fsync applies to the file, whichever descriptor is used
+        RandomAccessFile segment = null;
+        try {
+            segment = new RandomAccessFile(this.current, "r");
+            segment.getFD().sync();
+        } catch (IOException e) {
+            LOG.d(LOG_TAG, "Failed to sync " + this.current + ": " + e.getMessage());
+        } finally {
+            if (segment != null) try {
+                segment.close();
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        // write and sync a new manifest, then replace the old one atomically
+        File tmp = new File(this.file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(this.manifest.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(this.file)) {
+            throw new IOException("Failed to write " + this.file);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Recovery
+    //--------------------------------------------------------------------------
+
+    /**
+     * Rebuild the recordings of all journals left in a directory by a
+     * previous process. Recovered segments and journals are deleted.
+     *
+     * @param dir               The directory of the temporary recording files
+     * @return                  The recovered recordings, as { file, segments, bytes }
+     */
+    public static JSONArray recover(File dir) throws JSONException {
+        JSONArray recovered = new JSONArray();
+        File[] journals = dir.listFiles();
+        if (journals == null) {
+            return recovered;
+        }
+        for (File journal : journals) {
+            if (!journal.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+            synchronized (active) {
+                if (active.contains(journal.getAbsolutePath())) {
+                    continue;
+                }
+            }
+            JSONObject result = recoverJournal(journal);
+            if (result != null) {
+                recovered.put(result);
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Get the segments listed in the journals of a directory, i.e. the
+     * segments of recordings in progress or waiting for recovery.
+     *
+     * @param dir               The directory of the temporary recording files
+     * @return                  The absolute paths of all journaled segments
+     */
+    public static HashSet<String> journaledSegments(File dir) {
+        HashSet<String> segments = new HashSet<String>();
+        File[] journals = dir.listFiles();
+        if (journals == null) {
+            return segments;
+        }
+        for (File journal : journals) {
+            if (!journal.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+            try {
+                JSONArray list = readManifest(journal).getJSONArray("segments");
+                for (int i = 0; i < list.length(); i++) {
+                    segments.add(new File(list.getString(i)).getAbsolutePath());
+                }
+            } catch (IOException e) {
+                LOG.d(LOG_TAG, "Unreadable journal " + journal);
+            } catch (JSONException e) {
+                LOG.d(LOG_TAG, "Unreadable journal " + journal);
+            }
+        }
+        return segments;
+    }
+
+    private static JSONObject recoverJournal(File journal) throws JSONException {
+        JSONObject manifest;
+        try {
+            manifest = readManifest(journal);
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Unreadable journal " + journal, e);
+            journal.delete();
+            return null;
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Unreadable journal " + journal, e);
+            journal.delete();
+            return null;
+        }
+
+        String target = manifest.getString("target");
+        boolean adts = FORMAT_ADTS.equals(manifest.optString("format"));
+        JSONArray segments = manifest.getJSONArray("segments");
+        long bytes = 0;
+        int count = 0;
+
+        // a saved recording only leaves segments that were not deleted yet;
+        // otherwise the segments replace any file at the target, as the save
+        // would have
+        if (!manifest.optBoolean("saved")) {
+            // the file is only created once a segment has frames
+            File temp = new File(target + ".recovered");
+            TargetOutputStream out = new TargetOutputStream(temp.getPath());
+            try {
+                try {
+                    for (int i = 0; i < segments.length(); i++) {
+                        File segment = new File(segments.getString(i));
+                        if (!segment.exists()) {
+                            continue;
+                        }
+                        InputStream in = new FileInputStream(segment);
+                        try {
+                            long copied = adts ? AudioFrames.copyAdtsFrames(in, out)
+                                               : AudioFrames.copyAmrFrames(in, out, !out.isOpen());
+                            if (copied > 0) {
+                                bytes += copied;
+                                count++;
+                            }
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+                if (count > 0) {
+                    MediaEditor.replace(temp, target);
+                }
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, "Failed to recover " + target, e);
+                temp.delete();
+                return null;
+            }
+        }
+
+        for (int i = 0; i < segments.length(); i++) {
+            new File(segments.getString(i)).delete();
+        }
+        journal.delete();
+        if (count == 0) {
+            return null;
+        }
+
+        LOG.d(LOG_TAG, "Recovered " + count + " segments into " + target);
+        JSONObject result = new JSONObject();
+        result.put("file", target);
+        result.put("segments", count);
+        result.put("bytes", bytes);
+        return result;
+    }
+
+    private static JSONObject readManifest(File journal) throws IOException, JSONException {
+        byte[] data = new byte[(int) journal.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(journal));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return new JSONObject(new String(data, "UTF-8"));
+    }
+
+    /**
+     * An output stream to the recovered recording, which creates the file on
+     * the first write.
+     */
+    private static class TargetOutputStream extends OutputStream {
+        private final String path;
+        private OutputStream out = null;
+
+        TargetOutputStream(String path) {
+            this.path = path;
+        }
+
+        boolean isOpen() {
+            return this.out != null;
+        }
+
+        private OutputStream open() throws IOException {
+            if (this.out == null) {
+                this.out = new FileOutputStream(this.path);
+            }
+            return this.out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            open().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            open().write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.out != null) {
+                this.out.close();
+            }
+        }
+    }
+}
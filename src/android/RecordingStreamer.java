@@ -0,0 +1,556 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+
+import org.apache.cordova.LOG;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * This class splits the AAC ADTS output of a MediaRecorder into chunks of
+ * whole frames while recording, and delivers them to a sink.
+ *
+ * The recorder writes into a pipe. A reader thread copies everything to the
+ * temporary recording file, so the recording is saved as before, and cuts
+ * chunks of the configured duration. Chunks are queued and written to the
+ * sink on a sender thread, as fast as the sink accepts them. The reader never
+ * waits for the sink: if the queue exceeds its budget the oldest chunks are
+ * dropped, which shows as a gap in the sequence numbers.
+ */
+public class RecordingStreamer {
+
+    private static final String LOG_TAG = "RecordingStreamer";
+
+    private static final int[] ADTS_SAMPLE_RATES = {
+        96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+    private static final int SAMPLES_PER_FRAME = 1024;
+    private static final long SEGMENT_JOIN_TIMEOUT = 1000; // msec to wait for the reader at the end of a segment
+    private static final long FINISH_TIMEOUT = 30000;      // msec to wait for the sink to take the last chunks
+
+    /**
+     * An encoded chunk of the recording.
+     */
+    public static class Chunk {
+        public final int seq;               // sequence number, gaps mean dropped chunks
+        public final long timestamp;        // start time in the recording in msec
+        public final int duration;          // duration in msec
+        public final byte[] data;           // whole ADTS frames
+        public final boolean last;          // end of the recording, data is empty
+
+        Chunk(int seq, long timestamp, int duration, byte[] data, boolean last) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.duration = duration;
+            this.data = data;
+            this.last = last;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("seq", this.seq);
+            json.put("timestamp", this.timestamp);
+            json.put("duration", this.duration);
+            json.put("bytes", this.data.length);
+            json.put("last", this.last);
+            return json;
+        }
+    }
+
+    /**
+     * Destination of the chunks. All methods are called on the sender thread.
+     */
+    public interface Sink {
+        void open() throws IOException;
+
+        /**
+         * @return                  true if the sink accepts another chunk now
+         */
+        boolean ready();
+
+        void write(Chunk chunk) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Receives errors of the sink.
+     */
+    public interface Listener {
+        void onStreamError(IOException e);
+    }
+
+    private final Sink sink;
+    private final Listener listener;
+    private final int chunkDuration;        // target chunk duration in msec
+    private final long maxQueuedBytes;      // queue budget before chunks are dropped
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final ArrayDeque<Chunk> queue = new ArrayDeque<Chunk>();
+    private long queuedBytes = 0;
+
+    private Thread reader = null;           // reader of the current segment
+    private ParcelFileDescriptor writeSide = null; // recorder side of the current pipe
+    private int seq = 0;
+    private long recordedSamples = 0;       // samples in all chunks emitted so far
+    private int sampleRate = 0;
+    private boolean finishing = false;
+    private boolean failed = false;
+
+    // Statistics
+    private int chunks = 0;
+    private long bytes = 0;
+    private int dropped = 0;
+
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    private final Runnable forceClose = new Runnable() {
+        public void run() {
+            LOG.d(LOG_TAG, "Sink did not take the last chunks, closing");
+            synchronized (queue) {
+                dropped += queue.size();
+                queue.clear();
+                queuedBytes = 0;
+            }
+            close();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param sink              The destination of the chunks
+     * @param chunkDuration     The duration of a chunk in msec
+     * @param maxQueuedBytes    The size of queued chunks after which the oldest are dropped
+     * @param listener          The listener notified of sink errors
+     */
+    public RecordingStreamer(Sink sink, int chunkDuration, long maxQueuedBytes, Listener listener) {
+        this.sink = sink;
+        this.chunkDuration = chunkDuration;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.listener = listener;
+        if (sink instanceof ChannelSink) {
+            ((ChannelSink) sink).streamer = this;
+        }
+        this.thread = new HandlerThread("MediaChunkSender", Process.THREAD_PRIORITY_BACKGROUND);
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+        this.handler.post(new Runnable() {
+            public void run() {
+                try {
+                    RecordingStreamer.this.sink.open();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start a recording segment, i.e. the output of one recorder start.
+     *
+     * @param teeFile           The temporary file that receives the whole segment
+     * @return                  The file descriptor the recorder writes to
+     */
+    public synchronized ParcelFileDescriptor openSegment(final String teeFile) throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final ParcelFileDescriptor readSide = pipe[0];
+        this.writeSide = pipe[1];
+        this.reader = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                readSegment(readSide, teeFile);
+            }
+        }, "MediaChunkReader");
+        this.reader.start();
+        return this.writeSide;
+    }
+
+    /**
+     * End the current segment once the recorder stopped writing, and wait
+     * until the temporary file is complete.
+     */
+    public void closeSegment() {
+        Thread current;
+        synchronized (this) {
+            current = this.reader;
+            this.reader = null;
+            if (this.writeSide != null) {
+                try {
+                    this.writeSide.close();
+                } catch (IOException e) {
+                    LOG.e(LOG_TAG, "Failed to close recording pipe", e);
+                }
+                this.writeSide = null;
+            }
+        }
+        if (current != null) {
+            try {
+                current.join(SEGMENT_JOIN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Send the end of recording marker, and close the sink once it took all chunks.
+     */
+    public void finish() {
+        closeSegment();
+        synchronized (this) {
+            if (this.finishing) {
+                return;
+            }
+            this.finishing = true;
+            enqueue(new Chunk(this.seq++, toMillis(this.recordedSamples), 0, new byte[0], true));
+        }
+        this.handler.postDelayed(this.forceClose, FINISH_TIMEOUT);
+    }
+
+    /**
+     * Close the sink right away, dropping the queued chunks.
+     */
+    public void abort() {
+        closeSegment();
+        synchronized (this) {
+            this.finishing = true;
+        }
+        this.handler.post(this.forceClose);
+    }
+
+    /**
+     * Called when the sink may accept chunks again, e.g. after an acknowledgement.
+     */
+    void wake() {
+        this.handler.post(this.drain);
+    }
+
+    /**
+     * Get the streaming statistics.
+     *
+     * @return                  JSON object with chunk counters and queue size
+     */
+    public JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        synchronized (this.queue) {
+            stats.put("chunks", this.chunks);
+            stats.put("bytes", this.bytes);
+            stats.put("dropped", this.dropped);
+            stats.put("queued", this.queue.size());
+        }
+        return stats;
+    }
+
+    //--------------------------------------------------------------------------
+    // Reader thread
+    //--------------------------------------------------------------------------
+
+    private void readSegment(ParcelFileDescriptor source, String teeFile) {
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(source);
+        OutputStream tee = null;
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        byte[] buf = new byte[16384];
+        int fill = 0;
+        long chunkSamples = 0;
+        try {
+            tee = new FileOutputStream(teeFile);
+            while (true) {
+                int r = in.read(buf, fill, buf.length - fill);
+                if (r == -1) {
+                    break;
+                }
+                tee.write(buf, fill, r);
+                fill += r;
+
+                // cut whole ADTS frames off the buffer
+                int pos = 0;
+                while (fill - pos >= 7) {
+                    if ((buf[pos] & 0xFF) != 0xFF || (buf[pos + 1] & 0xF0) != 0xF0) {
+                        pos++;                  // resync
+                        continue;
+                    }
+                    int frameLength = ((buf[pos + 3] & 0x03) << 11) | ((buf[pos + 4] & 0xFF) << 3) | ((buf[pos + 5] & 0xE0) >> 5);
+                    if (frameLength < 7) {
+                        pos++;
+                        continue;
+                    }
+                    if (fill - pos < frameLength) {
+                        break;
+                    }
+                    int rateIndex = (buf[pos + 2] >> 2) & 0x0F;
+                    if (this.sampleRate == 0 && rateIndex < ADTS_SAMPLE_RATES.length) {
+                        this.sampleRate = ADTS_SAMPLE_RATES[rateIndex];
+                    }
+                    chunk.write(buf, pos, frameLength);
+                    chunkSamples += SAMPLES_PER_FRAME;
+                    pos += frameLength;
+
+                    if (this.sampleRate > 0 && chunkSamples * 1000 >= (long) this.chunkDuration * this.sampleRate) {
+                        emit(chunk.toByteArray(), chunkSamples);
+                        chunk.reset();
+                        chunkSamples = 0;
+                    }
+                }
+                System.arraycopy(buf, pos, buf, 0, fill - pos);
+                fill -= pos;
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Failed to read recording pipe", e);
+        } finally {
+            if (chunk.size() > 0) {
+                emit(chunk.toByteArray(), chunkSamples);
+            }
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, e.getLocalizedMessage(), e);
+            }
+            if (tee != null) try {
+                tee.close();
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    private synchronized void emit(byte[] data, long samples) {
+        Chunk chunk = new Chunk(this.seq++, toMillis(this.recordedSamples), (int) toMillis(samples), data, false);
+        this.recordedSamples += samples;
+        enqueue(chunk);
+    }
+
+    private long toMillis(long samples) {
+        return this.sampleRate > 0 ? samples * 1000 / this.sampleRate : 0;
+    }
+
+    private void enqueue(Chunk chunk) {
+        synchronized (this.queue) {
+            this.queue.add(chunk);
+            this.queuedBytes += chunk.data.length;
+            while (this.queuedBytes > this.maxQueuedBytes && this.queue.size() > 1) {
+                Chunk oldest = this.queue.poll();
+                this.queuedBytes -= oldest.data.length;
+                this.dropped++;
+            }
+        }
+        this.handler.post(this.drain);
+    }
+
+    //--------------------------------------------------------------------------
+    // Sender thread
+    //--------------------------------------------------------------------------
+
+    private void drain() {
+        while (!this.failed && this.sink.ready()) {
+            Chunk chunk;
+            synchronized (this.queue) {
+                chunk = this.queue.poll();
+                if (chunk == null) {
+                    break;
+                }
+                this.queuedBytes -= chunk.data.length;
+            }
+            try {
+                this.sink.write(chunk);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            synchronized (this.queue) {
+                this.chunks++;
+                this.bytes += chunk.data.length;
+            }
+            if (chunk.last) {
+                close();
+                return;
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        LOG.e(LOG_TAG, "Recording sink failed", e);
+        this.failed = true;
+        if (this.listener != null) {
+            this.listener.onStreamError(e);
+        }
+        close();
+    }
+
+    private void close() {
+        this.handler.removeCallbacksAndMessages(null);
+        this.sink.close();
+        this.thread.quitSafely();
+    }
+
+    //--------------------------------------------------------------------------
+    // Sinks
+    //--------------------------------------------------------------------------
+
+    /**
+     * Appends the chunks to a file, which grows into a valid ADTS file.
+     */
+    public static class FileSink implements Sink {
+        private final String path;
+        private OutputStream out;
+
+        public FileSink(String path) {
+            this.path = path;
+        }
+
+        public void open() throws IOException {
+            this.out = new FileOutputStream(this.path, true);
+        }
+
+        public boolean ready() {
+            return this.out != null;
+        }
+
+        public void write(Chunk chunk) throws IOException {
+            this.out.write(chunk.data);
+            this.out.flush();
+        }
+
+        public void close() {
+            if (this.out != null) try {
+                this.out.close();
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, e.getLocalizedMessage(), e);
+            }
+            this.out = null;
+        }
+    }
+
+    /**
+     * Writes the chunks to a local socket. Each chunk is framed by its
+     * sequence number, timestamp and duration in msec, and its length, all
+     * big endian, followed by the data. The last chunk has a length of 0.
+     */
+    public static class SocketSink implements Sink {
+        private final String name;
+        private LocalSocket socket;
+        private DataOutputStream out;
+
+        public SocketSink(String name) {
+            this.name = name;
+        }
+
+        public void open() throws IOException {
+            this.socket = new LocalSocket();
+            this.socket.connect(new LocalSocketAddress(this.name));
+            this.out = new DataOutputStream(this.socket.getOutputStream());
+        }
+
+        public boolean ready() {
+            return this.out != null;
+        }
+
+        public void write(Chunk chunk) throws IOException {
+            this.out.writeInt(chunk.seq);
+            this.out.writeLong(chunk.timestamp);
+            this.out.writeInt(chunk.duration);
+            this.out.writeInt(chunk.data.length);
+            this.out.write(chunk.data);
+            this.out.flush();
+        }
+
+        public void close() {
+            if (this.socket != null) try {
+                this.socket.close();
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, e.getLocalizedMessage(), e);
+            }
+            this.socket = null;
+            this.out = null;
+        }
+    }
+
+    /**
+     * Sends the chunks to JavaScript over the message channel. At most
+     * window chunks are sent before JavaScript acknowledges them.
+     */
+    public static class ChannelSink implements Sink {
+        private final PlayerHost handler;
+        private final String id;
+        private final int window;
+        private RecordingStreamer streamer;
+        private int lastSent = -1;
+        private volatile int lastAcked = -1;
+
+        public ChannelSink(PlayerHost handler, String id, int window) {
+            this.handler = handler;
+            this.id = id;
+            this.window = Math.max(1, window);
+        }
+
+        public void open() {
+        }
+
+        public boolean ready() {
+            return this.lastSent - this.lastAcked < this.window;
+        }
+
+        public void write(Chunk chunk) throws IOException {
+            try {
+                JSONObject meta = chunk.toJSON();
+                meta.put("id", this.id);
+                this.handler.sendEventMessage("chunk", meta, chunk.data);
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+            this.lastSent = chunk.seq;
+        }
+
+        /**
+         * Acknowledge all chunks up to a sequence number.
+         *
+         * @param seq               The sequence number of the last processed chunk
+         */
+        public void ack(int seq) {
+            if (seq > this.lastAcked) {
+                this.lastAcked = seq;
+                this.streamer.wake();
+            }
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.os.Process;
+
+import org.apache.cordova.LOG;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.HashSet;
+
+/**
+ * This class deletes temporary recording files left behind by earlier runs,
+ * and accounts for the storage used by temporary recordings.
+ *
+ * Segments listed in a recording journal are kept, so that they can still
+ * be recovered.
+ */
+public class RecordingSweeper implements Runnable {
+
+    private static final String LOG_TAG = "RecordingSweeper";
+
+    public static final String TEMP_PREFIX = "tmprecording-";
+
+    private final File dir;                 // The directory of the temporary recording files
+    private final File[] legacyDirs;        // Directories used by earlier versions of the plugin
+    private final long maxAge;              // Age in msec after which an orphan is deleted
+    private final long quota;               // Maximum size of temporary recordings in bytes, 0 disables
+
+    private int sweptFiles = 0;
+    private long sweptBytes = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param dir               The directory of the temporary recording files
+     * @param legacyDirs        Directories of older temporary files, swept as well
+     * @param maxAge            Age in msec after which an orphaned file is deleted
+     * @param quota             Maximum size of temporary recordings in bytes, 0 disables
+     */
+    public RecordingSweeper(File dir, File[] legacyDirs, long maxAge, long quota) {
+        this.dir = dir;
+        this.legacyDirs = legacyDirs;
+        this.maxAge = maxAge;
+        this.quota = quota;
+    }
+
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        sweep(this.dir, this.maxAge);
+        for (File legacy : this.legacyDirs) {
+            if (legacy != null) {
+                sweep(legacy, this.maxAge);
+            }
+        }
+        synchronized (this) {
+            if (this.sweptFiles > 0) {
+                LOG.d(LOG_TAG, "Deleted " + this.sweptFiles + " orphaned recordings, " + this.sweptBytes + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Check if a new recording segment fits in the quota, deleting orphans
+     * regardless of their age if it doesn't.
+     *
+     * @return                  the bytes left for the segment, or -1 without quota
+     */
+    public long reserve() {
+        if (this.quota <= 0) {
+            return -1;
+        }
+        long used = getUsedBytes();
+        if (used >= this.quota) {
+            sweep(this.dir, 0);
+            used = getUsedBytes();
+        }
+        return Math.max(0, this.quota - used);
+    }
+
+    /**
+     * Get the storage statistics of temporary recordings.
+     *
+     * @return                  JSON object with used bytes, quota and sweep counters
+     */
+    public JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("dir", this.dir.getAbsolutePath());
+        stats.put("used", getUsedBytes());
+        stats.put("quota", this.quota);
+        synchronized (this) {
+            stats.put("sweptFiles", this.sweptFiles);
+            stats.put("sweptBytes", this.sweptBytes);
+        }
+        return stats;
+    }
+
+    private long getUsedBytes() {
+        long used = 0;
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                used += file.length();
+            }
+        }
+        return used;
+    }
+
+    private void sweep(File dir, long maxAge) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        HashSet<String> journaled = RecordingJournal.journaledSegments(dir);
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            // a journal being written is only swept by age
+            boolean temp = name.startsWith(TEMP_PREFIX)
+                    || (maxAge > 0 && name.endsWith(RecordingJournal.EXTENSION + ".tmp"));
+            if (!temp || journaled.contains(file.getAbsolutePath()) || now - file.lastModified() < maxAge) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                synchronized (this) {
+                    this.sweptFiles++;
+                    this.sweptBytes += length;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,529 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Playback engine that simulates a media source on a VirtualClock, without
+ * decoding or output, so that thousands of players can run in one process.
+ *
+ * The source is described by the query of a sim:// URL, any other source
+ * uses the defaults:
+ *
+ *   sim://clip?duration=30000&prepare=100&jitter=0&seed=1&seek=20
+ *             &bufferRate=0&bufferAhead=2000&errorAt=-1&prepareError=0
+ *             &focusLossAt=-1&focusLossDuration=1000&duck=0
+ *
+ * Times are in msec. prepare is the prepare latency, plus up to jitter msec
+ * drawn from seed. bufferRate is the media msec downloaded per msec, 0 for a
+ * local source: playback stalls when it catches up with the download, and
+ * resumes once bufferAhead msec are buffered. errorAt fails playback at that
+ * position, prepareError fails the prepare. focusLossAt reports a focus loss
+ * that long after the first start, and its gain focusLossDuration later.
+ *
+ * Like MediaPlayer, calls in an invalid state throw IllegalStateException.
+ * Events are delivered on the thread that advances the clock.
+ */
+public class SimulatedEngine implements PlaybackEngine {
+
+    // android.media.MediaPlayer codes, so that this class runs on any JVM
+    public static final int MEDIA_ERROR_UNKNOWN = 1;
+    public static final int MEDIA_ERROR_IO = -1004;
+    public static final int MEDIA_INFO_BUFFERING_START = 701;
+    public static final int MEDIA_INFO_BUFFERING_END = 702;
+
+    private static final int BUFFERING_UPDATE_INTERVAL = 1000;
+
+    /**
+     * Receives the simulated audio focus changes.
+     */
+    public interface FocusListener {
+        void onFocusLoss(boolean canDuck);
+        void onFocusGain();
+    }
+
+    private enum State { IDLE, INITIALIZED, PREPARING, PREPARED, STARTED, PAUSED, STOPPED, COMPLETED, ERROR, RELEASED }
+
+    private final VirtualClock clock;
+    private Listener listener;
+    private FocusListener focusListener;
+    private State state = State.IDLE;
+    private int epoch = 0;                  // bumped to cancel the scheduled playback events
+    private int bufferEpoch = 0;            // bumped to cancel the buffering updates
+
+    // Source model
+    private long duration;
+    private long prepareLatency;
+    private long seekLatency;
+    private double bufferRate;
+    private long bufferAhead;
+    private long errorAt;
+    private boolean prepareError;
+    private long focusLossAt;
+    private long focusLossDuration;
+    private boolean duck;
+    private Random random;
+    private long jitter;
+
+    // Playback
+    private long position = 0;              // msec at positionAt
+    private long positionAt = 0;
+    private boolean stalled = false;
+    private float speed = 1.0f;
+    private long bufferBase = 0;            // buffered msec at bufferStart
+    private long bufferStart = 0;
+    private boolean looping = false;
+    private long loopStart = 0;
+    private long loopEnd = 0;
+    private boolean focusLossScheduled = false;
+    private long events = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param clock             The clock driving the simulation
+     */
+    public SimulatedEngine(VirtualClock clock) {
+        this.clock = clock;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setFocusListener(FocusListener focusListener) {
+        this.focusListener = focusListener;
+    }
+
+    public synchronized void setDataSource(String file) throws IOException {
+        check(this.state == State.IDLE, "setDataSource");
+        HashMap<String, String> params = new HashMap<String, String>();
+        int sim = file.indexOf("sim://");
+        int query = file.indexOf('?');
+        if (sim >= 0 && query > sim) {
+            for (String pair : file.substring(query + 1).split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(pair.substring(0, eq), pair.substring(eq + 1));
+                }
+            }
+        }
+        try {
+            this.duration = Long.parseLong(param(params, "duration", "30000"));
+            this.prepareLatency = Long.parseLong(param(params, "prepare", "100"));
+            this.jitter = Long.parseLong(param(params, "jitter", "0"));
+            this.random = new Random(Long.parseLong(param(params, "seed", "1")));
+            this.seekLatency = Long.parseLong(param(params, "seek", "20"));
+            this.bufferRate = Double.parseDouble(param(params, "bufferRate", "0"));
+            this.bufferAhead = Long.parseLong(param(params, "bufferAhead", "2000"));
+            this.errorAt = Long.parseLong(param(params, "errorAt", "-1"));
+            this.prepareError = !param(params, "prepareError", "0").equals("0");
+            this.focusLossAt = Long.parseLong(param(params, "focusLossAt", "-1"));
+            this.focusLossDuration = Long.parseLong(param(params, "focusLossDuration", "1000"));
+            this.duck = !param(params, "duck", "0").equals("0");
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid simulated source " + file, e);
+        }
+        this.state = State.INITIALIZED;
+    }
+
+    public void setDataSource(MediaBuffer buffer) throws IOException {
+        // in-memory media is simulated with the default parameters
+        setDataSource("buffer:");
+    }
+
+    private static String param(HashMap<String, String> params, String name, String fallback) {
+        String value = params.get(name);
+        return value != null ? value : fallback;
+    }
+
+    public boolean prepare() {
+        // preparing takes virtual time
+        prepareAsync();
+        return false;
+    }
+
+    public synchronized void prepareAsync() {
+        check(this.state == State.INITIALIZED || this.state == State.STOPPED, "prepareAsync");
+        this.state = State.PREPARING;
+        this.position = 0;
+        this.positionAt = this.clock.now();
+        this.bufferBase = 0;
+        this.bufferStart = this.clock.now();
+        final int current = ++this.epoch;
+        long latency = this.prepareLatency + (this.jitter > 0 ? (long) (this.random.nextDouble() * this.jitter) : 0);
+        this.clock.schedule(latency, new Runnable() {
+            public void run() {
+                onPrepareDone(current);
+            }
+        });
+        if (this.bufferRate > 0) {
+            scheduleBufferingUpdate(++this.bufferEpoch);
+        }
+    }
+
+    public synchronized void start() {
+        check(this.state == State.PREPARED || this.state == State.STARTED || this.state == State.PAUSED
+                || this.state == State.COMPLETED, "start");
+        if (this.state == State.STARTED) {
+            return;
+        }
+        if (this.state == State.COMPLETED) {
+            this.position = 0;
+        }
+        this.positionAt = this.clock.now();
+        this.state = State.STARTED;
+        if (this.focusLossAt >= 0 && !this.focusLossScheduled) {
+            this.focusLossScheduled = true;
+            scheduleFocusLoss();
+        }
+        reschedule();
+    }
+
+    public synchronized void pause() {
+        check(this.state == State.STARTED || this.state == State.PAUSED, "pause");
+        this.position = currentPosition();
+        this.positionAt = this.clock.now();
+        this.state = State.PAUSED;
+        this.epoch++;
+    }
+
+    public synchronized void stop() {
+        check(this.state != State.IDLE && this.state != State.INITIALIZED && this.state != State.ERROR
+                && this.state != State.RELEASED, "stop");
+        this.state = State.STOPPED;
+        this.stalled = false;
+        this.epoch++;
+    }
+
+    public synchronized void reset() {
+        check(this.state != State.RELEASED, "reset");
+        this.state = State.IDLE;
+        this.stalled = false;
+        this.looping = false;
+        this.epoch++;
+        this.bufferEpoch++;
+    }
+
+    public synchronized void release() {
+        this.state = State.RELEASED;
+        this.epoch++;
+        this.bufferEpoch++;
+    }
+
+    public synchronized void seekTo(int milliseconds, boolean fast) {
+        check(this.state == State.PREPARED || this.state == State.STARTED || this.state == State.PAUSED
+                || this.state == State.COMPLETED, "seekTo");
+        this.position = Math.max(0, Math.min(milliseconds, this.duration));
+        this.positionAt = this.clock.now();
+        if (this.bufferRate > 0 && this.position > buffered()) {
+            // the download restarts at the seek position
+            this.bufferBase = this.position;
+            this.bufferStart = this.clock.now();
+        }
+        if (this.state == State.COMPLETED) {
+            this.state = State.PAUSED;
+        }
+        reschedule();
+        this.clock.schedule(this.seekLatency, new Runnable() {
+            public void run() {
+                onSeekDone();
+            }
+        });
+    }
+
+    public void setVolume(float volume) {
+    }
+
+    public synchronized int getCurrentPosition() {
+        return (int) currentPosition();
+    }
+
+    public synchronized int getDuration() {
+        return this.state == State.PREPARED || this.state == State.STARTED || this.state == State.PAUSED
+                || this.state == State.COMPLETED || this.state == State.STOPPED ? (int) this.duration : -1;
+    }
+
+    public synchronized void setLoop(boolean enabled, int startMs, int endMs) {
+        this.looping = enabled;
+        this.loopStart = Math.max(0, startMs);
+        this.loopEnd = endMs > 0 ? Math.min(endMs, this.duration) : 0;
+        if (this.state == State.STARTED) {
+            this.position = currentPosition();
+            this.positionAt = this.clock.now();
+            reschedule();
+        }
+    }
+
+    public int getAudioSessionId() {
+        return 0;                           // no audio output
+    }
+
+    public synchronized boolean setPlaybackParams(float speed, float pitch) {
+        if (speed <= 0) {
+            return false;
+        }
+        this.position = currentPosition();
+        this.positionAt = this.clock.now();
+        this.speed = speed;
+        reschedule();
+        return true;
+    }
+
+    /**
+     * Get the number of events delivered to the listener.
+     */
+    public synchronized long getEventCount() {
+        return this.events;
+    }
+
+    //--------------------------------------------------------------------------
+    // Model
+    //--------------------------------------------------------------------------
+
+    private void check(boolean valid, String call) {
+        if (!valid) {
+            throw new IllegalStateException(call + " called in state " + this.state);
+        }
+    }
+
+    private long currentPosition() {
+        long current = this.position;
+        if (this.state == State.STARTED && !this.stalled) {
+            current += (long) ((this.clock.now() - this.positionAt) * this.speed);
+        }
+        return Math.min(current, this.duration);
+    }
+
+    private long buffered() {
+        if (this.bufferRate <= 0) {
+            return this.duration;
+        }
+        long downloaded = (long) ((this.clock.now() - this.bufferStart) * this.bufferRate);
+        return Math.min(this.duration, this.bufferBase + downloaded);
+    }
+
+    /**
+     * Schedule the next playback event: the end of the loop or the file, an
+     * error, a stall, or the end of the current stall.
+     */
+    private void reschedule() {
+        final int current = ++this.epoch;
+        if (this.state != State.STARTED) {
+            return;
+        }
+        if (this.stalled) {
+            long target = Math.min(this.duration, this.position + this.bufferAhead);
+            long resume = (long) Math.ceil(Math.max(0, target - buffered()) / this.bufferRate);
+            this.clock.schedule(resume, new Runnable() {
+                public void run() {
+                    onStallEnd(current);
+                }
+            });
+            return;
+        }
+        long pos = currentPosition();
+        long end = this.looping && this.loopEnd > 0 ? this.loopEnd : this.duration;
+        long delay = (long) Math.ceil(Math.max(0, end - pos) / this.speed);
+        Runnable event = new Runnable() {
+            public void run() {
+                onEnd(current);
+            }
+        };
+        if (this.errorAt >= 0 && this.errorAt >= pos && this.errorAt < end) {
+            delay = (long) Math.ceil((this.errorAt - pos) / this.speed);
+            event = new Runnable() {
+                public void run() {
+                    onPlaybackError(current);
+                }
+            };
+        }
+        long buffered = buffered();
+        if (this.bufferRate > 0 && buffered < this.duration && this.bufferRate < this.speed) {
+            // playback catches up with the download
+            long catchUp = (long) ((buffered - pos) / (this.speed - this.bufferRate));
+            if (catchUp < delay && pos + catchUp * this.speed < this.duration) {
+                delay = Math.max(0, catchUp);
+                event = new Runnable() {
+                    public void run() {
+                        onStall(current);
+                    }
+                };
+            }
+        }
+        this.clock.schedule(delay, event);
+    }
+
+    private void scheduleBufferingUpdate(final int current) {
+        this.clock.schedule(BUFFERING_UPDATE_INTERVAL, new Runnable() {
+            public void run() {
+                int percent;
+                synchronized (SimulatedEngine.this) {
+                    if (current != bufferEpoch) {
+                        return;
+                    }
+                    percent = (int) (buffered() * 100 / Math.max(1, duration));
+                    if (percent < 100) {
+                        scheduleBufferingUpdate(current);
+                    }
+                    events++;
+                }
+                if (listener != null) {
+                    listener.onBufferingUpdate(SimulatedEngine.this, percent);
+                }
+            }
+        });
+    }
+
+    private void scheduleFocusLoss() {
+        this.clock.schedule(this.focusLossAt, new Runnable() {
+            public void run() {
+                boolean canDuck;
+                synchronized (SimulatedEngine.this) {
+                    if (state == State.RELEASED) {
+                        return;
+                    }
+                    canDuck = duck;
+                    events++;
+                }
+                if (focusListener != null) {
+                    focusListener.onFocusLoss(canDuck);
+                }
+                clock.schedule(focusLossDuration, new Runnable() {
+                    public void run() {
+                        if (focusListener != null) {
+                            focusListener.onFocusGain();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    //--------------------------------------------------------------------------
+    // Events, delivered without the engine lock
+    //--------------------------------------------------------------------------
+
+    private void onPrepareDone(int current) {
+        boolean failed;
+        synchronized (this) {
+            if (current != this.epoch || this.state != State.PREPARING) {
+                return;
+            }
+            failed = this.prepareError;
+            this.state = failed ? State.ERROR : State.PREPARED;
+            this.events++;
+        }
+        if (this.listener != null) {
+            if (failed) {
+                this.listener.onError(this, MEDIA_ERROR_UNKNOWN, MEDIA_ERROR_IO);
+            } else {
+                this.listener.onPrepared(this);
+            }
+        }
+    }
+
+    private void onSeekDone() {
+        synchronized (this) {
+            if (this.state == State.RELEASED || this.state == State.IDLE) {
+                return;
+            }
+            this.events++;
+        }
+        if (this.listener != null) {
+            this.listener.onSeekComplete(this);
+        }
+    }
+
+    private void onEnd(int current) {
+        boolean looped;
+        synchronized (this) {
+            if (current != this.epoch) {
+                return;
+            }
+            looped = this.looping;
+            if (looped) {
+                this.position = this.loopStart;
+                this.positionAt = this.clock.now();
+                reschedule();
+            } else {
+                this.position = this.duration;
+                this.positionAt = this.clock.now();
+                this.state = State.COMPLETED;
+            }
+            this.events++;
+        }
+        if (this.listener != null) {
+            if (looped) {
+                this.listener.onLoop(this);
+            } else {
+                this.listener.onCompletion(this);
+            }
+        }
+    }
+
+    private void onPlaybackError(int current) {
+        synchronized (this) {
+            if (current != this.epoch) {
+                return;
+            }
+            this.position = currentPosition();
+            this.state = State.ERROR;
+            this.events++;
+        }
+        if (this.listener != null) {
+            this.listener.onError(this, MEDIA_ERROR_UNKNOWN, MEDIA_ERROR_IO);
+        }
+    }
+
+    private void onStall(int current) {
+        synchronized (this) {
+            if (current != this.epoch) {
+                return;
+            }
+            this.position = currentPosition();
+            this.positionAt = this.clock.now();
+            this.stalled = true;
+            reschedule();
+            this.events++;
+        }
+        if (this.listener != null) {
+            this.listener.onInfo(this, MEDIA_INFO_BUFFERING_START, 0);
+        }
+    }
+
+    private void onStallEnd(int current) {
+        synchronized (this) {
+            if (current != this.epoch || !this.stalled) {
+                return;
+            }
+            this.stalled = false;
+            this.position = currentPosition();
+            this.positionAt = this.clock.now();
+            reschedule();
+            this.events++;
+        }
+        if (this.listener != null) {
+            this.listener.onInfo(this, MEDIA_INFO_BUFFERING_END, 0);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.media.audiofx.Visualizer;
+
+/**
+ * This class computes the spectrum of the audio played in an audio session,
+ * with the FFT of android.media.audiofx.Visualizer.
+ *
+ * Each capture is reduced to one byte per frequency bin, from DC up to half
+ * the sample rate: the magnitude in decibels, mapped from MIN_DB..0 dB to
+ * 0..255, like getByteFrequencyData of the Web Audio AnalyserNode.
+ */
+public class SpectrumAnalyzer implements Visualizer.OnDataCaptureListener {
+
+    private static final double MIN_DB = -48.0;    // the capture is 8 bit
+
+    /**
+     * Receives the spectrum, on the capture thread.
+     */
+    public interface Listener {
+        /**
+         * @param bins          One magnitude per bin, reused for the next capture
+         * @param sampleRate    The sample rate of the session in Hz
+         */
+        void onSpectrum(byte[] bins, int sampleRate);
+    }
+
+    private final Visualizer visualizer;
+    private final Listener listener;
+    private final byte[] bins;
+    private final int rate;                 // captures per second, in mHz
+
+    /**
+     * Constructor. The sizes are rounded to what the device supports.
+     *
+     * @param audioSessionId    The session of the player
+     * @param bins              The number of frequency bins, a power of two
+     * @param rate              The number of spectrums per second
+     * @param listener          Receives the spectrums
+     */
+    public SpectrumAnalyzer(int audioSessionId, int bins, double rate, Listener listener) {
+        int[] range = Visualizer.getCaptureSizeRange();
+        int captureSize = Integer.highestOneBit(Math.max(1, bins)) * 2;
+        captureSize = Math.max(range[0], Math.min(range[1], captureSize));
+
+        this.listener = listener;
+        this.bins = new byte[captureSize / 2];
+        this.rate = (int) Math.max(1, Math.min(Visualizer.getMaxCaptureRate(), rate * 1000));
+        this.visualizer = new Visualizer(audioSessionId);
+        try {
+            this.visualizer.setEnabled(false);
+            this.visualizer.setCaptureSize(captureSize);
+            this.visualizer.setDataCaptureListener(this, this.rate, false, true);
+            this.visualizer.setEnabled(true);
+        } catch (RuntimeException e) {
+            this.visualizer.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the number of bins of each spectrum.
+     */
+    public int getBinCount() {
+        return this.bins.length;
+    }
+
+    /**
+     * Get the number of spectrums per second.
+     */
+    public double getRate() {
+        return this.rate / 1000.0;
+    }
+
+    public void release() {
+        this.visualizer.setEnabled(false);
+        this.visualizer.release();
+    }
+
+    public void onWaveFormDataCapture(Visualizer visualizer, byte[] waveform, int samplingRate) {
+    }
+
+    public void onFftDataCapture(Visualizer visualizer, byte[] fft, int samplingRate) {
+        // fft holds the real DC and Nyquist terms, then re and im of each bin
+        int n = Math.min(this.bins.length, fft.length / 2);
+        this.bins[0] = toByte(Math.abs(fft[0]));
+        for (int k = 1; k < n; k++) {
+            this.bins[k] = toByte(Math.hypot(fft[2 * k], fft[2 * k + 1]));
+        }
+        this.listener.onSpectrum(this.bins, samplingRate / 1000);
+    }
+
+    private static byte toByte(double magnitude) {
+        if (magnitude <= 0) {
+            return 0;
+        }
+        double db = 20 * Math.log10(magnitude / 128.0);
+        double scaled = (db - MIN_DB) / -MIN_DB * 255;
+        return (byte) Math.max(0, Math.min(255, Math.round(scaled)));
+    }
+}
@@ -0,0 +1,282 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+
+import org.apache.cordova.LOG;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * This class plays overlapping regions of an audio sprite from the decoded
+ * PCM of its source, mixed into a single AudioTrack.
+ *
+ * The source is decoded on the mixer thread when the first region is played,
+ * and the PCM is dropped when memory runs low while no region is playing.
+ */
+public class SpriteMixer implements MediaCache {
+
+    private static final String LOG_TAG = "SpriteMixer";
+    private static final int MIX_MSEC = 10;         // msec of audio mixed per write
+    private static final int MAX_VOICES = 8;        // the oldest region is cut beyond this
+
+    /**
+     * Receives events of the mixer thread.
+     */
+    public interface Listener {
+        void onSpriteStart(String name);
+        void onSpriteEnd(String name);
+        void onSpriteError(String name);
+    }
+
+    private static class Voice {
+        final String name;
+        final int startMs;
+        final int endMs;
+        int position = -1;                  // next sample, -1 until started
+        int end;
+        boolean stopped = false;
+
+        Voice(String name, int startMs, int endMs) {
+            this.name = name;
+            this.startMs = startMs;
+            this.endMs = endMs;
+        }
+    }
+
+    private final Context context;
+    private final String source;
+    private final Listener listener;
+    private final ArrayList<Voice> voices = new ArrayList<Voice>();
+    private AudioDecoder.Pcm pcm = null;
+    private float volume = 1.0f;
+    private boolean running = false;
+    private Thread thread;
+
+    /**
+     * Constructor.
+     *
+     * @param context           The application context
+     * @param source            The source of the sprite
+     * @param listener          Receives the start and end of each region
+     */
+    public SpriteMixer(Context context, String source, Listener listener) {
+        this.context = context;
+        this.source = source;
+        this.listener = listener;
+    }
+
+    /**
+     * Play a region, on top of the regions already playing.
+     *
+     * @param name              The name of the region
+     * @param startMs           Start of the region in msec
+     * @param durationMs        Duration of the region in msec
+     */
+    public synchronized void play(String name, int startMs, int durationMs) {
+        int playing = 0;
+        for (Voice voice : this.voices) {
+            if (!voice.stopped) {
+                playing++;
+            }
+        }
+        // cut the oldest regions, reported as ended by the mixer thread
+        for (Iterator<Voice> it = this.voices.iterator(); playing >= MAX_VOICES && it.hasNext(); ) {
+            Voice voice = it.next();
+            if (!voice.stopped) {
+                voice.stopped = true;
+                playing--;
+            }
+        }
+        this.voices.add(new Voice(name, startMs, startMs + durationMs));
+        if (this.thread == null) {
+            this.running = true;
+            this.thread = new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                    mix();
+                }
+            }, "MediaSpriteMixer");
+            this.thread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stop the regions of a name, or all regions.
+     *
+     * @param name              The name of the region, null for all
+     */
+    public synchronized void stop(String name) {
+        for (Voice voice : this.voices) {
+            if (name == null || name.equals(voice.name)) {
+                voice.stopped = true;
+            }
+        }
+    }
+
+    public synchronized void setVolume(float volume) {
+        this.volume = volume;
+    }
+
+    /**
+     * Stop the mixer thread. Regions still playing are not reported.
+     */
+    public synchronized void release() {
+        this.running = false;
+        this.voices.clear();
+        this.thread = null;
+        notifyAll();
+    }
+
+    public synchronized long trim() {
+        if (this.pcm == null || !this.voices.isEmpty()) {
+            return 0;
+        }
+        long bytes = this.pcm.getBytes();
+        this.pcm = null;
+        return bytes;
+    }
+
+    //--------------------------------------------------------------------------
+    // Mixer thread
+    //--------------------------------------------------------------------------
+
+    private void mix() {
+        AudioTrack track = null;
+        ArrayList<String> started = new ArrayList<String>();
+        ArrayList<String> ended = new ArrayList<String>();
+        int[] sum = null;
+        short[] out = null;
+        try {
+            while (true) {
+                AudioDecoder.Pcm data;
+                synchronized (this) {
+                    if (this.voices.isEmpty() && track != null) {
+                        track.pause();
+                    }
+                    while (isCurrent() && this.voices.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    if (!isCurrent()) {
+                        return;
+                    }
+                    data = this.pcm;
+                }
+
+                if (data == null) {
+                    try {
+                        data = AudioDecoder.decode(this.context, this.source);
+                    } catch (IOException e) {
+                        LOG.e(LOG_TAG, "Failed to decode " + this.source, e);
+                        failAll();
+                        continue;
+                    }
+                    synchronized (this) {
+                        this.pcm = data;
+                    }
+                }
+
+                if (track == null) {
+                    int channelMask = data.channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+                    int frames = data.sampleRate * MIX_MSEC / 1000;
+                    int minSize = AudioTrack.getMinBufferSize(data.sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+                    track = new AudioTrack(AudioManager.STREAM_MUSIC, data.sampleRate, channelMask,
+                            AudioFormat.ENCODING_PCM_16BIT, Math.max(minSize, frames * data.channels * 2 * 4),
+                            AudioTrack.MODE_STREAM);
+                    sum = new int[frames * data.channels];
+                    out = new short[frames * data.channels];
+                }
+                if (track.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                    track.play();
+                }
+
+                Arrays.fill(sum, 0);
+                synchronized (this) {
+                    for (Iterator<Voice> it = this.voices.iterator(); it.hasNext(); ) {
+                        Voice voice = it.next();
+                        if (voice.position < 0) {
+                            voice.position = data.toSample(voice.startMs);
+                            voice.end = data.toSample(voice.endMs);
+                            started.add(voice.name);
+                        }
+                        int n = voice.stopped ? 0 : Math.min(sum.length, voice.end - voice.position);
+                        for (int i = 0; i < n; i++) {
+                            sum[i] += data.samples[voice.position + i];
+                        }
+                        voice.position += n;
+                        if (voice.stopped || voice.position >= voice.end) {
+                            it.remove();
+                            ended.add(voice.name);
+                        }
+                    }
+                    for (int i = 0; i < sum.length; i++) {
+                        int sample = (int) (sum[i] * this.volume);
+                        out[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+                    }
+                }
+
+                for (String name : started) {
+                    this.listener.onSpriteStart(name);
+                }
+                for (String name : ended) {
+                    this.listener.onSpriteEnd(name);
+                }
+                started.clear();
+                ended.clear();
+                track.write(out, 0, out.length);
+            }
+        } finally {
+            if (track != null) {
+                track.release();
+            }
+        }
+    }
+
+    private boolean isCurrent() {
+        // a released mixer may be started again with a new thread
+        return this.running && this.thread == Thread.currentThread();
+    }
+
+    private void failAll() {
+        ArrayList<String> failed = new ArrayList<String>();
+        synchronized (this) {
+            for (Voice voice : this.voices) {
+                failed.add(voice.name);
+            }
+            this.voices.clear();
+        }
+        for (String name : failed) {
+            this.listener.onSpriteError(name);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.content.Context;
+import android.os.Process;
+
+import org.apache.cordova.LOG;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class runs transcoding jobs in the background, highest priority
+ * first, a few at a time.
+ *
+ * The jobs waiting or running are kept in a file, so that jobs cut short by
+ * the end of the process start over when the queue is resumed by the next
+ * one. Jobs that ended are reported once, and only the last MAX_ENDED are
+ * kept, in memory.
+ */
+public class TranscodeQueue {
+
+    private static final String LOG_TAG = "TranscodeQueue";
+    private static final int MAX_ENDED = 32;            // ended jobs kept for getJobs
+
+    public static final String STATE_QUEUED = "queued";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_DONE = "done";
+    public static final String STATE_FAILED = "failed";
+    public static final String STATE_CANCELLED = "cancelled";
+
+    /**
+     * Receives the events of the jobs, on the transcoding threads.
+     */
+    public interface Listener {
+        /**
+         * @param event         { id, state, src, dst, progress } with the
+         *                      duration in msec once done, or the message on failure
+         */
+        void onTranscode(JSONObject event);
+    }
+
+    private class Job implements Runnable, Comparable<Job> {
+        final String id;
+        final String source;
+        final String target;
+        final int bitRate;
+        final int priority;
+        final long seq;                     // ties go to the oldest job
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        volatile String state = STATE_QUEUED;
+        volatile float progress = 0;
+        long duration = -1;
+        String message;
+
+        Job(String id, String source, String target, int bitRate, int priority, long seq) {
+            this.id = id;
+            this.source = source;
+            this.target = target;
+            this.bitRate = bitRate;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        public int compareTo(Job other) {
+            if (this.priority != other.priority) {
+                return this.priority > other.priority ? -1 : 1;
+            }
+            return this.seq < other.seq ? -1 : this.seq > other.seq ? 1 : 0;
+        }
+
+        public void run() {
+            synchronized (TranscodeQueue.this) {
+                if (this.cancelled.get() || jobs.get(this.id) != this) {
+                    return;
+                }
+                this.state = STATE_RUNNING;
+            }
+            save();
+            notifyListener(this);
+            try {
+                this.duration = Transcoder.transcode(context, this.source, this.target, this.bitRate,
+                        new MediaEditor.Progress() {
+                    public void onProgress(float fraction) {
+                        progress = fraction;
+                        notifyListener(Job.this);
+                    }
+                }, this.cancelled);
+                this.state = STATE_DONE;
+            } catch (InterruptedIOException e) {
+                this.state = STATE_CANCELLED;
+            } catch (IOException e) {
+                if (this.cancelled.get()) {
+                    this.state = STATE_CANCELLED;
+                } else {
+                    LOG.e(LOG_TAG, "Failed to transcode " + this.source, e);
+                    this.message = e.getMessage();
+                    this.state = STATE_FAILED;
+                }
+            }
+            synchronized (TranscodeQueue.this) {
+                if (shutdown) {
+                    return;                 // kept in the file, to start over
+                }
+                jobs.remove(this.id);
+                addEnded(this);
+            }
+            save();
+            notifyListener(this);
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", this.id);
+            json.put("state", this.state);
+            json.put("src", this.source);
+            json.put("dst", this.target);
+            json.put("bitRate", this.bitRate);
+            json.put("priority", this.priority);
+            json.put("progress", this.progress);
+            if (this.duration >= 0) {
+                json.put("duration", this.duration);
+            }
+            if (this.message != null) {
+                json.put("message", this.message);
+            }
+            return json;
+        }
+    }
+
+    private final Context context;
+    private final File file;                // The jobs waiting or running
+    private final Listener listener;
+    private final ThreadPoolExecutor executor;
+    private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<String, Job>(); // waiting or running
+    private final ArrayList<Job> ended = new ArrayList<Job>(); // since the queue was created
+    private final ArrayList<Job> restored = new ArrayList<Job>(); // left by a previous process, not started yet
+    private long seq = 0;
+    private boolean shutdown = false;
+
+    /**
+     * Constructor. The jobs left by a previous process are loaded, and wait
+     * for resume().
+     *
+     * @param context           The application context
+     * @param file              The file keeping the jobs
+     * @param parallelism       The number of jobs running at once
+     * @param listener          Receives the events of the jobs
+     */
+    public TranscodeQueue(Context context, File file, int parallelism, Listener listener) {
+        this.context = context;
+        this.file = file;
+        this.listener = listener;
+        parallelism = Math.max(1, parallelism);
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "MediaTranscode");
+                }
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+        load();
+    }
+
+    /**
+     * Start the jobs left by a previous process, once there is someone to
+     * receive their events.
+     */
+    public void resume() {
+        ArrayList<Job> waiting;
+        synchronized (this) {
+            if (this.shutdown) {
+                return;
+            }
+            waiting = new ArrayList<Job>(this.restored);
+            this.restored.clear();
+        }
+        for (Job job : waiting) {
+            this.executor.execute(job);
+        }
+    }
+
+    /**
+     * Queue a job.
+     *
+     * @param id                The id of the job
+     * @param source            A file path, an /android_asset/ path or a content:// URI
+     * @param target            The path of the file to write, its extension chooses the codec
+     * @param bitRate           The bit rate in bits per second, 0 for the default
+     * @param priority          Jobs of a higher priority start first
+     */
+    public void enqueue(String id, String source, String target, int bitRate, int priority) throws IOException {
+        Job job;
+        synchronized (this) {
+            if (this.shutdown) {
+                throw new IOException("The transcoding queue is shut down");
+            }
+            if (this.jobs.containsKey(id)) {
+                throw new IOException("Transcoding job " + id + " already exists");
+            }
+            job = new Job(id, source, target, bitRate, priority, this.seq++);
+            this.jobs.put(id, job);
+        }
+        save();
+        this.executor.execute(job);
+    }
+
+    /**
+     * Cancel a job. A waiting job is dropped right away, a running job stops
+     * at its next buffer and deletes what it wrote.
+     *
+     * @param id                The id of the job
+     * @return                  false if there is no such job waiting or running
+     */
+    public boolean cancel(String id) {
+        Job job;
+        boolean waiting;
+        synchronized (this) {
+            job = this.jobs.get(id);
+            if (job == null) {
+                return false;
+            }
+            job.cancelled.set(true);
+            waiting = this.executor.remove(job) || STATE_QUEUED.equals(job.state);
+            if (waiting) {
+                job.state = STATE_CANCELLED;
+                this.jobs.remove(id);
+                addEnded(job);
+            }
+        }
+        if (waiting) {
+            save();
+            notifyListener(job);
+        }
+        return true;
+    }
+
+    /**
+     * Get the jobs, waiting and running first, then those that ended.
+     */
+    public synchronized JSONArray getJobs() throws JSONException {
+        JSONArray list = new JSONArray();
+        for (Job job : this.jobs.values()) {
+            list.put(job.toJSON());
+        }
+        for (Job job : this.ended) {
+            list.put(job.toJSON());
+        }
+        return list;
+    }
+
+    /**
+     * Stop the running jobs. They stay in the file, with the waiting ones,
+     * for the next process.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            this.shutdown = true;
+            for (Job job : this.jobs.values()) {
+                job.cancelled.set(true);
+            }
+        }
+        this.executor.shutdownNow();
+    }
+
+    private synchronized void addEnded(Job job) {
+        this.ended.add(job);
+        if (this.ended.size() > MAX_ENDED) {
+            this.ended.remove(0);
+        }
+    }
+
+    private void notifyListener(Job job) {
+        try {
+            this.listener.onTranscode(job.toJSON());
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Failed to report transcoding job " + job.id, e);
+        }
+    }
+
+    private synchronized void load() {
+        if (!this.file.exists()) {
+            return;
+        }
+        try {
+            FileInputStream in = new FileInputStream(this.file);
+            byte[] bytes;
+            try {
+                bytes = new byte[(int) this.file.length()];
+                int n = 0;
+                while (n < bytes.length) {
+                    int read = in.read(bytes, n, bytes.length - n);
+                    if (read < 0) {
+                        break;
+                    }
+                    n += read;
+                }
+            } finally {
+                in.close();
+            }
+            JSONArray list = new JSONArray(new String(bytes, "UTF-8"));
+            for (int i = 0; i < list.length(); i++) {
+                JSONObject json = list.getJSONObject(i);
+                // running jobs start over
+                Job job = new Job(json.getString("id"), json.getString("src"), json.getString("dst"),
+                                  json.optInt("bitRate", 0), json.optInt("priority", 0), this.seq++);
+                this.jobs.put(job.id, job);
+                this.restored.add(job);
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Failed to read the transcoding jobs", e);
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Invalid transcoding jobs in " + this.file, e);
+        }
+    }
+
+    private void save() {
+        // the file lock keeps the snapshots in order
+        synchronized (this.file) {
+            String contents;
+            synchronized (this) {
+                JSONArray list = new JSONArray();
+                try {
+                    for (Job job : this.jobs.values()) {
+                        list.put(job.toJSON());
+                    }
+                } catch (JSONException e) {
+                    LOG.e(LOG_TAG, "Failed to save the transcoding jobs", e);
+                    return;
+                }
+                contents = list.toString();
+            }
+            // write and sync a new file, then replace the old one atomically
+            File tmp = new File(this.file.getPath() + ".tmp");
+            try {
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    out.write(contents.getBytes("UTF-8"));
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(this.file)) {
+                    LOG.e(LOG_TAG, "Failed to replace " + this.file);
+                }
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, "Failed to write " + this.file, e);
+            }
+        }
+    }
+}
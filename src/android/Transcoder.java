@@ -0,0 +1,430 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Range;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class re-encodes the audio of a source to AAC or Opus at a given
+ * bit rate, with a hardware encoder when the device has one.
+ *
+ * The codec and the container follow the extension of the target: .ogg and
+ * .opus files get Opus in Ogg (Android 10 and up), .aac files get an ADTS
+ * stream, and anything else AAC in MPEG-4.
+ */
+public class Transcoder {
+
+    private static final long CODEC_TIMEOUT = 10000;    // usec to wait for a codec buffer
+    public static final int DEFAULT_AAC_BIT_RATE = 64000;
+    public static final int DEFAULT_OPUS_BIT_RATE = 32000;
+
+    /**
+     * Get the encoding of a target.
+     *
+     * @param target            The path of the file to write
+     * @return                  the MIME type of the codec
+     */
+    public static String getCodec(String target) {
+        String name = target.toLowerCase();
+        if (name.endsWith(".ogg") || name.endsWith(".opus")) {
+            return MediaFormat.MIMETYPE_AUDIO_OPUS;
+        }
+        return MediaFormat.MIMETYPE_AUDIO_AAC;
+    }
+
+    /**
+     * Re-encode a source. The file is written next to the target, then
+     * renamed, so the target is never left incomplete.
+     *
+     * @param context           The application context, to open assets and content
+     * @param source            A file path, an /android_asset/ path, a content:// URI or a URL
+     * @param target            The path of the file to write
+     * @param bitRate           The bit rate in bits per second, 0 for the default of the codec
+     * @param progress          Receives the progress, may be null
+     * @param cancelled         Stops the encoding once set
+     * @return                  the duration written in msec
+     */
+    public static long transcode(Context context, String source, String target, int bitRate,
+                                 MediaEditor.Progress progress, AtomicBoolean cancelled) throws IOException {
+        String mime = getCodec(target);
+        String name = target.toLowerCase();
+        MediaEditor.FORMAT format = MediaFormat.MIMETYPE_AUDIO_OPUS.equals(mime) ? MediaEditor.FORMAT.OGG
+                : name.endsWith(".aac") ? MediaEditor.FORMAT.ADTS : MediaEditor.FORMAT.MPEG_4;
+        if (bitRate <= 0) {
+            bitRate = MediaFormat.MIMETYPE_AUDIO_OPUS.equals(mime) ? DEFAULT_OPUS_BIT_RATE : DEFAULT_AAC_BIT_RATE;
+        }
+
+        long durationUs = 0;
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            MediaFormat trackFormat = AudioDecoder.openAudioTrack(context, extractor, source);
+            if (trackFormat.containsKey(MediaFormat.KEY_DURATION)) {
+                durationUs = trackFormat.getLong(MediaFormat.KEY_DURATION);
+            }
+        } finally {
+            extractor.release();
+        }
+
+        File temp = new File(target + ".part");
+        MediaEditor.Writer writer = MediaEditor.createWriter(format, temp.getPath());
+        Encoder encoder = new Encoder(mime, bitRate, writer, durationUs, progress, cancelled);
+        boolean finished = false;
+        try {
+            AudioDecoder.decode(context, source, encoder);
+            if (encoder.failure != null) {
+                throw encoder.failure;
+            }
+            if (cancelled.get()) {
+                throw new InterruptedIOException("Transcoding of " + source + " cancelled");
+            }
+            encoder.finish();
+            writer.finish();
+            finished = true;
+        } catch (IllegalStateException e) {
+            throw new IOException("Failed to transcode " + source, e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Failed to transcode " + source, e);
+        } finally {
+            encoder.release();
+            if (!finished) {
+                writer.abort();
+                temp.delete();
+            }
+        }
+        MediaEditor.replace(temp, target);
+        if (progress != null && encoder.reported < 1f) {
+            progress.onProgress(1f);
+        }
+        return encoder.getDurationMs();
+    }
+
+    /**
+     * Find an encoder, a hardware one if there is any.
+     *
+     * @param mime              The MIME type to encode to
+     * @return                  the encoder
+     */
+    static MediaCodecInfo findEncoder(String mime) throws IOException {
+        MediaCodecInfo software = null;
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    if (isHardware(info)) {
+                        return info;
+                    }
+                    if (software == null) {
+                        software = info;
+                    }
+                }
+            }
+        }
+        if (software == null) {
+            throw new IOException("No " + mime + " encoder on this device");
+        }
+        return software;
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        String name = info.getName().toLowerCase();
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.");
+    }
+
+    /**
+     * Get the sample rate to encode at: the rate of the source if the
+     * encoder takes it, else the nearest higher rate it takes.
+     */
+    private static int getEncodingRate(MediaCodecInfo.AudioCapabilities caps, int sampleRate) {
+        if (caps.isSampleRateSupported(sampleRate)) {
+            return sampleRate;
+        }
+        int best = -1;
+        int highest = 0;
+        for (Range<Integer> range : caps.getSupportedSampleRateRanges()) {
+            highest = Math.max(highest, range.getUpper());
+            int rate = Math.max(sampleRate, range.getLower());
+            if (rate <= range.getUpper() && (best < 0 || rate < best)) {
+                best = rate;
+            }
+        }
+        return best > 0 ? best : highest;
+    }
+
+    /**
+     * Encodes the decoded samples as they come.
+     */
+    private static class Encoder implements AudioDecoder.Sink {
+        final String mime;
+        final int bitRate;
+        final MediaEditor.Writer writer;
+        final long durationUs;
+        final MediaEditor.Progress progress;
+        final AtomicBoolean cancelled;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        IOException failure;
+        float reported = 0;
+
+        private MediaCodec codec;
+        private int sampleRate;             // of the source
+        private int channels;
+        private int encodingRate;
+        private Resampler resampler;        // null when the encoder takes the source rate
+        private short[] samples = new short[0];
+        private long frames = 0;            // frames queued to the encoder
+        private boolean started = false;    // the writer has the output format
+
+        Encoder(String mime, int bitRate, MediaEditor.Writer writer, long durationUs,
+                MediaEditor.Progress progress, AtomicBoolean cancelled) {
+            this.mime = mime;
+            this.bitRate = bitRate;
+            this.writer = writer;
+            this.durationUs = durationUs;
+            this.progress = progress;
+            this.cancelled = cancelled;
+        }
+
+        public void onFormat(int sampleRate, int channels) {
+            if (this.codec != null && (sampleRate != this.sampleRate || channels != this.channels)) {
+                this.failure = new IOException("The format of the source changed while encoding");
+            }
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+
+        public boolean onSamples(ShortBuffer pcm) {
+            if (this.failure != null || this.cancelled.get()) {
+                return false;
+            }
+            try {
+                if (this.codec == null) {
+                    open();
+                }
+                int count = pcm.remaining();
+                if (this.samples.length < count) {
+                    this.samples = new short[count];
+                }
+                pcm.get(this.samples, 0, count);
+                if (this.resampler != null) {
+                    feed(this.resampler.process(this.samples, count / this.channels));
+                } else {
+                    feed(this.samples, count);
+                }
+            } catch (IOException e) {
+                this.failure = e;
+                return false;
+            } catch (IllegalStateException e) {
+                this.failure = new IOException("Failed to encode", e);
+                return false;
+            }
+
+            if (this.progress != null && this.durationUs > 0) {
+                float fraction = Math.min(1f, (float) (this.frames * 1000000 / this.encodingRate) / this.durationUs);
+                if (fraction - this.reported >= 0.01f) {
+                    this.reported = fraction;
+                    this.progress.onProgress(fraction);
+                }
+            }
+            return true;
+        }
+
+        private void open() throws IOException {
+            if (MediaFormat.MIMETYPE_AUDIO_OPUS.equals(this.mime) && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                throw new IOException("Opus encoding requires Android 10");
+            }
+            MediaCodecInfo codecInfo = findEncoder(this.mime);
+            MediaCodecInfo.AudioCapabilities caps = codecInfo.getCapabilitiesForType(this.mime).getAudioCapabilities();
+            if (this.channels > caps.getMaxInputChannelCount()) {
+                throw new IOException("The " + this.mime + " encoder takes at most " + caps.getMaxInputChannelCount() + " channels");
+            }
+            this.encodingRate = getEncodingRate(caps, this.sampleRate);
+            if (this.encodingRate != this.sampleRate) {
+                this.resampler = new Resampler(this.channels, this.sampleRate, this.encodingRate);
+            }
+
+            MediaFormat format = MediaFormat.createAudioFormat(this.mime, this.encodingRate, this.channels);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, caps.getBitrateRange().clamp(this.bitRate));
+            if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(this.mime)) {
+                format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            }
+            this.codec = MediaCodec.createByCodecName(codecInfo.getName());
+            this.codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            this.codec.start();
+        }
+
+        private void feed(short[] samples) throws IOException {
+            feed(samples, samples.length);
+        }
+
+        private void feed(short[] samples, int count) throws IOException {
+            int offset = 0;
+            while (offset < count) {
+                int index = this.codec.dequeueInputBuffer(CODEC_TIMEOUT);
+                if (index < 0) {
+                    drain(false);
+                    continue;
+                }
+                ByteBuffer input = this.codec.getInputBuffer(index);
+                input.clear();
+                int n = Math.min(count - offset, input.remaining() / 2 / this.channels * this.channels);
+                input.order(ByteOrder.nativeOrder()).asShortBuffer().put(samples, offset, n);
+                this.codec.queueInputBuffer(index, 0, n * 2, this.frames * 1000000 / this.encodingRate, 0);
+                this.frames += n / this.channels;
+                offset += n;
+                drain(false);
+            }
+        }
+
+        /**
+         * Flush the encoder once the source is decoded.
+         */
+        void finish() throws IOException {
+            if (this.codec == null) {
+                throw new IOException("No audio to transcode");
+            }
+            int index;
+            while ((index = this.codec.dequeueInputBuffer(CODEC_TIMEOUT)) < 0) {
+                drain(false);
+            }
+            this.codec.queueInputBuffer(index, 0, 0, this.frames * 1000000 / this.encodingRate,
+                                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+        }
+
+        /**
+         * Write the encoded samples.
+         *
+         * @param end               true to wait for the end of the stream
+         */
+        private void drain(boolean end) throws IOException {
+            while (true) {
+                int index = this.codec.dequeueOutputBuffer(this.info, end ? CODEC_TIMEOUT : 0);
+                if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    if (!end) {
+                        return;
+                    }
+                    if (this.cancelled.get()) {
+                        throw new InterruptedIOException("Transcoding cancelled");
+                    }
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (!this.started) {
+                        this.writer.start(this.codec.getOutputFormat());
+                        this.started = true;
+                    }
+                } else if (index >= 0) {
+                    ByteBuffer output = this.codec.getOutputBuffer(index);
+                    if ((this.info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && this.info.size > 0) {
+                        if (!this.started) {
+                            throw new IOException("The encoder gave samples before its format");
+                        }
+                        output.position(this.info.offset);
+                        output.limit(this.info.offset + this.info.size);
+                        this.writer.write(output, this.info);
+                    }
+                    this.codec.releaseOutputBuffer(index, false);
+                    if ((this.info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        long getDurationMs() {
+            return this.encodingRate > 0 ? this.frames * 1000 / this.encodingRate : 0;
+        }
+
+        void release() {
+            if (this.codec != null) {
+                try {
+                    this.codec.stop();
+                } catch (IllegalStateException e) {
+                    // already failed
+                }
+                this.codec.release();
+                this.codec = null;
+            }
+        }
+    }
+
+    /**
+     * Converts interleaved samples to another rate, by linear interpolation
+     * between the frames. It is meant for the odd source rate an encoder
+     * doesn't take, not for quality resampling.
+     */
+    static class Resampler {
+        private final int channels;
+        private final double step;          // source frames per output frame
+        private final short[] last;         // the last frame of the previous buffer
+        private boolean hasLast = false;
+        private double position = 0;        // of the next output frame, in frames of the current buffer
+
+        Resampler(int channels, int fromRate, int toRate) {
+            this.channels = channels;
+            this.step = (double) fromRate / toRate;
+            this.last = new short[channels];
+        }
+
+        /**
+         * @param samples           Interleaved samples
+         * @param frames            The number of frames in samples
+         * @return                  the samples at the new rate
+         */
+        short[] process(short[] samples, int frames) {
+            int count = Math.max(0, (int) Math.ceil((frames - 1 - this.position) / this.step));
+            short[] out = new short[count * this.channels];
+            int n = 0;
+            while (n < count) {
+                int i = (int) Math.floor(this.position);
+                double fraction = this.position - i;
+                for (int c = 0; c < this.channels; c++) {
+                    double a = i < 0 ? (this.hasLast ? this.last[c] : samples[c]) : samples[i * this.channels + c];
+                    double b = samples[(i + 1) * this.channels + c];
+                    out[n * this.channels + c] = (short) Math.round(a + (b - a) * fraction);
+                }
+                n++;
+                this.position += this.step;
+            }
+            this.position -= frames;
+            if (frames > 0) {
+                System.arraycopy(samples, (frames - 1) * this.channels, this.last, 0, this.channels);
+                this.hasLast = true;
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.util.PriorityQueue;
+
+/**
+ * A clock that only moves when advanced, with the tasks scheduled on it run
+ * in time order, then in scheduling order. Simulations driven by it are
+ * deterministic, whatever the speed of the host.
+ *
+ * Tasks may be scheduled from any thread. They are run by the thread that
+ * advances the clock, without the clock lock held.
+ */
+public class VirtualClock {
+
+    private static class Task implements Comparable<Task> {
+        final long time;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        public int compareTo(Task other) {
+            if (this.time != other.time) {
+                return this.time < other.time ? -1 : 1;
+            }
+            return this.sequence < other.sequence ? -1 : (this.sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+    private long now = 0;
+    private long sequence = 0;
+    private long executed = 0;
+    private Runnable wakeUp = null;
+
+    /**
+     * Get the virtual time.
+     *
+     * @return                  msec since the clock was created
+     */
+    public synchronized long now() {
+        return this.now;
+    }
+
+    /**
+     * Run a task once the clock was advanced by a delay.
+     *
+     * @param delay             msec from now, 0 to run on the next advance
+     * @param task              The task
+     */
+    public void schedule(long delay, Runnable task) {
+        boolean idle;
+        Runnable wakeUp;
+        synchronized (this) {
+            idle = this.tasks.isEmpty();
+            this.tasks.add(new Task(this.now + Math.max(0, delay), this.sequence++, task));
+            wakeUp = this.wakeUp;
+        }
+        if (idle && wakeUp != null) {
+            wakeUp.run();
+        }
+    }
+
+    /**
+     * Set a task run when a task is scheduled while none is pending, e.g. to
+     * start advancing a clock that is left alone while idle. It is run by the
+     * scheduling thread, without the clock lock held.
+     *
+     * @param wakeUp            The task, null for none
+     */
+    public synchronized void setWakeUp(Runnable wakeUp) {
+        this.wakeUp = wakeUp;
+    }
+
+    /**
+     * Advance the clock, running the tasks that become due, including the
+     * tasks they schedule within the time advanced.
+     *
+     * @param delta             msec to advance
+     * @return                  the number of tasks run
+     */
+    public int advance(long delta) {
+        long target;
+        synchronized (this) {
+            target = this.now + delta;
+        }
+        int run = 0;
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = this.tasks.peek();
+                if (task == null || task.time > target) {
+                    this.now = target;
+                    this.executed += run;
+                    return run;
+                }
+                this.tasks.poll();
+                this.now = task.time;
+            }
+            task.runnable.run();
+            run++;
+        }
+    }
+
+    /**
+     * Advance the clock until no task is left, or a time limit is reached.
+     *
+     * @param limit             maximum msec to advance
+     * @return                  the number of tasks run
+     */
+    public int runUntilIdle(long limit) {
+        long end;
+        synchronized (this) {
+            end = this.now + limit;
+        }
+        int run = 0;
+        while (true) {
+            long next;
+            synchronized (this) {
+                Task task = this.tasks.peek();
+                if (task == null || task.time > end) {
+                    return run;
+                }
+                next = task.time - this.now;
+            }
+            run += advance(next);
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return this.tasks.size();
+    }
+
+    public synchronized long getExecutedCount() {
+        return this.executed;
+    }
+}
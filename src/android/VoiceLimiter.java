@@ -0,0 +1,254 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class limits the number of players playing at the same time, in
+ * total and per category, so that starting one more player never runs into
+ * the decoder or audio track limit of the device.
+ *
+ * A player that starts beyond a limit takes the voice of a playing player
+ * of the same or a lower priority, chosen by the stealing policy. If there
+ * is none, the starting player is refused instead.
+ *
+ * This class only depends on the JDK, so that it can be tested off the
+ * device.
+ */
+public class VoiceLimiter<V extends VoiceLimiter.Voice> {
+
+    public enum POLICY { OLDEST, QUIETEST, LOWEST_PRIORITY };
+
+    /**
+     * A player, as seen by the limiter.
+     */
+    public interface Voice {
+        String getCategory();
+        int getPriority();
+        float getOutputVolume();
+    }
+
+    private final int maxVoices;            // 0 for no global limit
+    private final HashMap<String, Integer> categoryLimits;
+    private final POLICY policy;
+    private final LinkedHashSet<V> voices = new LinkedHashSet<V>(); // in start order
+    private long stolen = 0;
+    private long refused = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param maxVoices         Maximum players playing at once, 0 for no limit
+     * @param categoryLimits    Limits per category, see parseLimits(), may be null
+     * @param policy            The stealing policy
+     */
+    public VoiceLimiter(int maxVoices, Map<String, Integer> categoryLimits, POLICY policy) {
+        this.maxVoices = maxVoices;
+        this.policy = policy;
+        this.categoryLimits = new HashMap<String, Integer>();
+        if (categoryLimits != null) {
+            this.categoryLimits.putAll(categoryLimits);
+        }
+    }
+
+    /**
+     * Check whether voices are limited at all.
+     */
+    public boolean isEnabled() {
+        return this.maxVoices > 0 || !this.categoryLimits.isEmpty();
+    }
+
+    /**
+     * Take a voice for a player about to start. The voices to steal are
+     * given up right away, the caller stops their players, outside of any
+     * lock.
+     *
+     * @param audio             The starting player
+     * @return                  the players to stop, null if the player is refused
+     */
+    public synchronized List<V> acquire(V audio) {
+        ArrayList<V> victims = new ArrayList<V>();
+        if (this.voices.contains(audio)) {
+            return victims;
+        }
+        String category = audio.getCategory();
+        Integer categoryLimit = category != null ? this.categoryLimits.get(category) : null;
+        if (categoryLimit != null) {
+            if (!makeRoom(audio, category, categoryLimit, victims)) {
+                return refuse();
+            }
+        }
+        if (this.maxVoices > 0) {
+            if (!makeRoom(audio, null, this.maxVoices, victims)) {
+                return refuse();
+            }
+        }
+        for (V victim : victims) {
+            this.voices.remove(victim);
+        }
+        this.stolen += victims.size();
+        this.voices.add(audio);
+        return victims;
+    }
+
+    /**
+     * Give the voice of a player back, once it pauses, stops or is released.
+     */
+    public synchronized void release(V audio) {
+        this.voices.remove(audio);
+    }
+
+    public synchronized void clear() {
+        this.voices.clear();
+    }
+
+    /**
+     * Get the maximum number of players playing at once, 0 for no limit.
+     */
+    public int getMaxVoices() {
+        return this.maxVoices;
+    }
+
+    /**
+     * Get the number of players holding a voice.
+     */
+    public synchronized int getVoiceCount() {
+        return this.voices.size();
+    }
+
+    /**
+     * Get the number of voices stolen since the limiter was created.
+     */
+    public synchronized long getStolen() {
+        return this.stolen;
+    }
+
+    /**
+     * Get the number of players refused a voice since the limiter was created.
+     */
+    public synchronized long getRefused() {
+        return this.refused;
+    }
+
+    /**
+     * Choose the voices to steal so that one more voice fits in a limit.
+     *
+     * @param audio             The starting player
+     * @param category          The category of the limit, null for all voices
+     * @param limit             The limit
+     * @param victims           The voices already chosen, completed
+     * @return                  false if there is no voice to steal
+     */
+    private boolean makeRoom(V audio, String category, int limit, List<V> victims) {
+        ArrayList<V> candidates = new ArrayList<V>();
+        int count = 0;
+        for (V voice : this.voices) {
+            if (category != null && !category.equals(voice.getCategory())) {
+                continue;
+            }
+            if (victims.contains(voice)) {
+                continue;
+            }
+            count++;
+            if (voice.getPriority() <= audio.getPriority()) {
+                candidates.add(voice);
+            }
+        }
+        while (count >= limit) {
+            V victim = choose(candidates);
+            if (victim == null) {
+                return false;
+            }
+            candidates.remove(victim);
+            victims.add(victim);
+            count--;
+        }
+        return true;
+    }
+
+    private V choose(List<V> candidates) {
+        V chosen = null;
+        for (V candidate : candidates) {
+            // candidates are in start order, so ties go to the oldest
+            if (chosen == null) {
+                chosen = candidate;
+            } else if (this.policy == POLICY.QUIETEST && candidate.getOutputVolume() < chosen.getOutputVolume()) {
+                chosen = candidate;
+            } else if (this.policy == POLICY.LOWEST_PRIORITY && candidate.getPriority() < chosen.getPriority()) {
+                chosen = candidate;
+            }
+        }
+        return chosen;
+    }
+
+    private List<V> refuse() {
+        this.refused++;
+        return null;
+    }
+
+    /**
+     * Parse a voice limits preference.
+     *
+     * @param limits            Limits per category as "music:1,sfx:8", may be null
+     * @param invalid           Receives the entries that are not valid limits
+     * @return                  the limits per category
+     */
+    public static HashMap<String, Integer> parseLimits(String limits, List<String> invalid) {
+        HashMap<String, Integer> parsed = new HashMap<String, Integer>();
+        if (limits == null) {
+            return parsed;
+        }
+        for (String limit : limits.split(",")) {
+            if (limit.trim().isEmpty()) {
+                continue;
+            }
+            int colon = limit.indexOf(':');
+            try {
+                if (colon > 0) {
+                    parsed.put(limit.substring(0, colon).trim(), Integer.parseInt(limit.substring(colon + 1).trim()));
+                } else {
+                    invalid.add(limit);
+                }
+            } catch (NumberFormatException e) {
+                invalid.add(limit);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Parse a stealing policy preference.
+     *
+     * @param policy            "oldest", "quietest" or "lowest-priority"
+     * @return                  the policy, null if unknown
+     */
+    public static POLICY parsePolicy(String policy) {
+        try {
+            return POLICY.valueOf(policy.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
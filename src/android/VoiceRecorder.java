@@ -0,0 +1,408 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.ParcelFileDescriptor;
+
+import org.apache.cordova.LOG;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class records an audio source to AAC ADTS, and can skip silence.
+ *
+ * Every 20 msec frame of PCM is compared to an energy threshold. Speech is
+ * encoded, and so are the frames within the hangover time after the last
+ * loud frame. Silent frames are kept in a pre-roll buffer and only encoded
+ * when speech starts within the pre-roll time, so that soft onsets are kept.
+ * The output has no gaps: the timeline maps its segments to the recording time.
+ * With a threshold of -Infinity, every frame is kept.
+ *
+ * The audio is captured by a CaptureHub, so several recorders can record the
+ * same source at once, each with its own encoder and output.
+ */
+public class VoiceRecorder implements CaptureHub.Consumer {
+
+    private static final String LOG_TAG = "VoiceRecorder";
+
+    private static final long CODEC_TIMEOUT = 10000;    // usec to wait for a codec buffer
+
+    /**
+     * Receives events of the capture thread.
+     */
+    public interface Listener {
+        void onMaxFileSizeReached();
+
+        /**
+         * Called once if the capture or the encoder failed. The frames
+         * written before are kept, nothing more is recorded.
+         */
+        void onRecordingFailed();
+    }
+
+    private final CaptureHub hub;
+    private final int source;               // MediaRecorder.AudioSource
+    private final int sampleRate;
+    private final int bitRate;
+    private final float threshold;          // dBFS above which a frame is speech
+    private final int hangoverSamples;      // samples kept after the last loud frame
+    private final int prerollSamples;       // samples kept before the first loud frame
+    private long maxFileSize = 0;           // bytes after which the recording ends, 0 disables
+    private Listener listener;
+
+    private OutputStream out;
+    private MediaCodec codec;
+    private volatile boolean running = false;
+    private final AtomicInteger maxAmplitude = new AtomicInteger(0);
+
+    // Capture thread state
+    private long sourceSamples = 0;         // samples captured since start
+    private long encodedSamples = 0;        // samples sent to the encoder
+    private long written = 0;               // bytes written
+    private boolean limitReached = false;
+    private boolean failed = false;
+    private JSONObject segment = null;      // kept segment in progress
+    private final ArrayDeque<short[]> preroll = new ArrayDeque<short[]>();
+    private int prerolled = 0;              // samples in the pre-roll buffer
+    private long lastLoud = Long.MIN_VALUE / 2; // end of the last loud frame, in samples
+    private boolean inSpeech = false;
+    private final JSONArray timeline = new JSONArray();
+
+    /**
+     * Constructor.
+     *
+     * @param hub               The hub capturing the source
+     * @param source            The MediaRecorder.AudioSource
+     * @param sampleRate        The sample rate in Hz
+     * @param bitRate           The AAC bit rate in bits per second
+     * @param threshold         The level in dBFS above which audio is speech, -Infinity to keep everything
+     * @param hangover          The time in msec kept after speech
+     * @param preroll           The time in msec kept before speech
+     */
+    public VoiceRecorder(CaptureHub hub, int source, int sampleRate, int bitRate, float threshold, int hangover, int preroll) {
+        this.hub = hub;
+        this.source = source;
+        this.sampleRate = sampleRate;
+        this.bitRate = bitRate;
+        this.threshold = threshold;
+        this.hangoverSamples = (int) ((long) hangover * sampleRate / 1000);
+        this.prerollSamples = (int) ((long) preroll * sampleRate / 1000);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public void setOutputFile(String path) throws IOException {
+        this.out = new FileOutputStream(path);
+    }
+
+    public void setOutputFile(ParcelFileDescriptor fd) throws IOException {
+        // our own descriptor, the caller closes theirs
+        this.out = new ParcelFileDescriptor.AutoCloseOutputStream(fd.dup());
+    }
+
+    /**
+     * Start encoding the frames of the source.
+     */
+    public void start() throws IOException {
+        int frameBytes = this.sampleRate * CaptureHub.FRAME_MSEC / 1000 * 2;
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, this.sampleRate, 1);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, this.bitRate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, frameBytes * 8);
+        this.codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+        this.codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        this.codec.start();
+
+        this.running = true;
+        try {
+            this.hub.subscribe(this.source, this.sampleRate, this);
+        } catch (IOException e) {
+            this.running = false;
+            throw e;
+        }
+    }
+
+    /**
+     * Stop capturing, and flush the encoder and the output.
+     */
+    public void stop() {
+        if (!this.running) {
+            return;
+        }
+        this.running = false;
+        this.hub.unsubscribe(this.source, this.sampleRate, this);
+        if (this.failed) {
+            return;
+        }
+        try {
+            if (this.inSpeech) {
+                closeSegment(this.sourceSamples);
+            }
+            encode(new short[0], true);
+            drain(true);
+            this.out.flush();
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Failed to write recording", e);
+        } catch (IllegalStateException e) {
+            LOG.e(LOG_TAG, "Recording failed", e);
+        }
+    }
+
+    public void release() {
+        stop();
+        if (this.codec != null) {
+            this.codec.release();
+            this.codec = null;
+        }
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, e.getLocalizedMessage(), e);
+            }
+            this.out = null;
+        }
+    }
+
+    /**
+     * Get the maximum absolute amplitude since the last call, like MediaRecorder.
+     */
+    public int getMaxAmplitude() {
+        return this.maxAmplitude.getAndSet(0);
+    }
+
+    /**
+     * Get the time captured, in msec. Only valid after stop().
+     */
+    public long getRecordedTime() {
+        return toMillis(this.sourceSamples);
+    }
+
+    /**
+     * Get the time kept in the output, in msec. Only valid after stop().
+     */
+    public long getKeptTime() {
+        return toMillis(this.encodedSamples);
+    }
+
+    /**
+     * Check if the capture or the encoder failed, in which case the output
+     * is incomplete. Only valid after stop().
+     */
+    public boolean hasFailed() {
+        return this.failed;
+    }
+
+    /**
+     * Get the kept segments, each with its recording time `start` and `end`,
+     * and its `offset` in the output, in msec. Only valid after stop().
+     */
+    public JSONArray getTimeline() {
+        return this.timeline;
+    }
+
+    //--------------------------------------------------------------------------
+    // Capture thread, until stop() unsubscribes
+    //--------------------------------------------------------------------------
+
+    public void onFrame(short[] frame, int n) {
+        if (!this.running || this.failed) {
+            return;
+        }
+        try {
+            long frameStart = this.sourceSamples;
+            this.sourceSamples += n;
+
+            int peak = 0;
+            double energy = 0;
+            for (int i = 0; i < n; i++) {
+                int s = frame[i];
+                peak = Math.max(peak, Math.abs(s));
+                energy += (double) s * s;
+            }
+            updateMaxAmplitude(peak);
+            double rms = Math.sqrt(energy / n) / 32768.0;
+            boolean loud = this.threshold == Float.NEGATIVE_INFINITY
+                    || (rms > 0 && 20 * Math.log10(rms) >= this.threshold);
+            if (loud) {
+                this.lastLoud = this.sourceSamples;
+            }
+
+            // the frame is shared with the other recorders of the source
+            short[] samples = Arrays.copyOf(frame, n);
+            if (loud || (this.inSpeech && this.sourceSamples - this.lastLoud <= this.hangoverSamples)) {
+                if (!this.inSpeech) {
+                    this.inSpeech = true;
+                    openSegment(frameStart - this.prerolled);
+                    while (!this.preroll.isEmpty()) {
+                        encode(this.preroll.poll(), false);
+                    }
+                    this.prerolled = 0;
+                }
+                encode(samples, false);
+            } else {
+                if (this.inSpeech) {
+                    this.inSpeech = false;
+                    closeSegment(frameStart);
+                }
+                this.preroll.add(samples);
+                this.prerolled += n;
+                while (!this.preroll.isEmpty() && this.prerolled - this.preroll.peek().length >= this.prerollSamples) {
+                    this.prerolled -= this.preroll.poll().length;
+                }
+            }
+            drain(false);
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Failed to write recording", e);
+            fail();
+        } catch (IllegalStateException e) {
+            LOG.e(LOG_TAG, "Recording failed", e);
+            fail();
+        }
+    }
+
+    public void onCaptureError(int error) {
+        if (this.running && !this.failed) {
+            fail();
+        }
+    }
+
+    private void fail() {
+        this.failed = true;
+        if (this.listener != null) {
+            this.listener.onRecordingFailed();
+        }
+    }
+
+    private void updateMaxAmplitude(int peak) {
+        int current;
+        do {
+            current = this.maxAmplitude.get();
+        } while (peak > current && !this.maxAmplitude.compareAndSet(current, peak));
+    }
+
+    private void openSegment(long start) {
+        this.segment = new JSONObject();
+        try {
+            this.segment.put("start", toMillis(Math.max(0, start)));
+            this.segment.put("offset", toMillis(this.encodedSamples));
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Failed to create timeline segment", e);
+        }
+    }
+
+    private void closeSegment(long end) {
+        if (this.segment == null) {
+            return;
+        }
+        try {
+            this.segment.put("end", toMillis(end));
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Failed to create timeline segment", e);
+        }
+        this.timeline.put(this.segment);
+        this.segment = null;
+    }
+
+    private long toMillis(long samples) {
+        return samples * 1000 / this.sampleRate;
+    }
+
+    private void encode(short[] pcm, boolean endOfStream) throws IOException {
+        if (this.limitReached && !endOfStream) {
+            return;
+        }
+        int index = this.codec.dequeueInputBuffer(CODEC_TIMEOUT);
+        while (index < 0) {
+            drain(false);
+            index = this.codec.dequeueInputBuffer(CODEC_TIMEOUT);
+        }
+        ByteBuffer input = this.codec.getInputBuffer(index);
+        input.clear();
+        input.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(pcm);
+        long presentationTime = this.encodedSamples * 1000000L / this.sampleRate;
+        this.encodedSamples += pcm.length;
+        this.codec.queueInputBuffer(index, 0, pcm.length * 2, presentationTime,
+                                    endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+    }
+
+    private void drain(boolean endOfStream) throws IOException {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (true) {
+            int index = this.codec.dequeueOutputBuffer(info, endOfStream ? CODEC_TIMEOUT : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+                continue;
+            }
+            if (index < 0) {
+                continue;               // format or buffers changed
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0 && !this.limitReached) {
+                ByteBuffer output = this.codec.getOutputBuffer(index);
+                byte[] frame = new byte[info.size + AudioFrames.ADTS_HEADER_SIZE];
+                writeAdtsHeader(frame, frame.length);
+                output.position(info.offset);
+                output.get(frame, AudioFrames.ADTS_HEADER_SIZE, info.size);
+                this.out.write(frame);
+                this.written += frame.length;
+                if (this.maxFileSize > 0 && this.written >= this.maxFileSize) {
+                    this.limitReached = true;
+                    if (this.listener != null) {
+                        this.listener.onMaxFileSizeReached();
+                    }
+                }
+            }
+            this.codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    private void writeAdtsHeader(byte[] frame, int length) {
+        int rateIndex = AudioFrames.adtsRateIndex(this.sampleRate);
+        if (rateIndex < 0) {
+            rateIndex = 4;              // 44100 Hz
+        }
+        // AAC LC, mono
+        AudioFrames.writeAdtsHeader(frame, 2, rateIndex, 1, length);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Checks the ADTS headers written by VoiceRecorder and MediaEditor, and the
+ * frame cutting of RecordingJournal recovery, on any JVM.
+ *
+ * The exit code is 1 if a check failed.
+ */
+public class AudioFramesTest {
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        testAdtsHeader();
+        testAdtsRateIndex();
+        testCopyAdtsFrames();
+        testCopyAmrFrames();
+        System.out.printf("AudioFramesTest: %d failures%n", failures);
+        System.exit(failures > 0 ? 1 : 0);
+    }
+
+    private static void testAdtsHeader() {
+        // AAC LC, 44100 Hz, mono, as VoiceRecorder writes it
+        byte[] frame = new byte[100];
+        AudioFrames.writeAdtsHeader(frame, 2, 4, 1, 100);
+        check(Arrays.equals(Arrays.copyOf(frame, 7), bytes(0xFF, 0xF1, 0x50, 0x40, 0x0C, 0x9F, 0xFC)),
+              "mono header " + hex(frame, 7));
+        check(adtsLength(frame) == 100, "mono frame length " + adtsLength(frame));
+
+        // AAC LC, 48000 Hz, stereo, longest frame
+        AudioFrames.writeAdtsHeader(frame, 2, 3, 2, 8191);
+        check(Arrays.equals(Arrays.copyOf(frame, 7), bytes(0xFF, 0xF1, 0x4C, 0x83, 0xFF, 0xFF, 0xFC)),
+              "stereo header " + hex(frame, 7));
+        check(adtsLength(frame) == 8191, "stereo frame length " + adtsLength(frame));
+    }
+
+    private static void testAdtsRateIndex() {
+        check(AudioFrames.adtsRateIndex(96000) == 0, "index of 96000 Hz");
+        check(AudioFrames.adtsRateIndex(44100) == 4, "index of 44100 Hz");
+        check(AudioFrames.adtsRateIndex(7350) == 12, "index of 7350 Hz");
+        check(AudioFrames.adtsRateIndex(44000) == -1, "no index for 44000 Hz");
+    }
+
+    private static void testCopyAdtsFrames() throws IOException {
+        byte[] first = adtsFrame(20, 1);
+        byte[] second = adtsFrame(300, 2);
+        byte[] third = adtsFrame(7, 3);
+        byte[] whole = concat(first, second, third);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long copied = AudioFrames.copyAdtsFrames(new ByteArrayInputStream(whole), out);
+        check(copied == whole.length && Arrays.equals(out.toByteArray(), whole), "whole ADTS frames copied");
+
+        // a frame cut by the death of the process
+        byte[] truncated = concat(whole, Arrays.copyOf(adtsFrame(100, 4), 60));
+        out.reset();
+        copied = AudioFrames.copyAdtsFrames(new ByteArrayInputStream(truncated), out);
+        check(copied == whole.length && Arrays.equals(out.toByteArray(), whole), "truncated ADTS frame cut");
+
+        // a header cut in the middle
+        out.reset();
+        copied = AudioFrames.copyAdtsFrames(new ByteArrayInputStream(concat(first, bytes(0xFF, 0xF1, 0x50))), out);
+        check(copied == first.length, "truncated ADTS header cut");
+
+        // garbage instead of a sync word
+        out.reset();
+        copied = AudioFrames.copyAdtsFrames(new ByteArrayInputStream(concat(first, new byte[20], second)), out);
+        check(copied == first.length && Arrays.equals(out.toByteArray(), first), "copy stops at a lost sync");
+
+        out.reset();
+        copied = AudioFrames.copyAdtsFrames(new ByteArrayInputStream(new byte[0]), out);
+        check(copied == 0 && out.size() == 0, "empty ADTS segment");
+    }
+
+    private static void testCopyAmrFrames() throws IOException {
+        byte[] first = amrFrame(7, 1);                  // 12.2 kbit/s
+        byte[] second = amrFrame(0, 2);                 // 4.75 kbit/s
+        byte[] silence = amrFrame(8, 3);                // comfort noise
+        byte[] frames = concat(first, second, silence);
+        byte[] segment = concat(AudioFrames.AMR_HEADER, frames);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long copied = AudioFrames.copyAmrFrames(new ByteArrayInputStream(segment), out, true);
+        check(copied == segment.length && Arrays.equals(out.toByteArray(), segment), "AMR frames copied with the header");
+
+        // later segments are appended without their header
+        out.reset();
+        copied = AudioFrames.copyAmrFrames(new ByteArrayInputStream(segment), out, false);
+        check(copied == frames.length && Arrays.equals(out.toByteArray(), frames), "AMR frames copied without the header");
+
+        // a frame cut by the death of the process
+        out.reset();
+        byte[] truncated = concat(segment, Arrays.copyOf(amrFrame(7, 4), 10));
+        copied = AudioFrames.copyAmrFrames(new ByteArrayInputStream(truncated), out, true);
+        check(copied == segment.length && Arrays.equals(out.toByteArray(), segment), "truncated AMR frame cut");
+
+        // an invalid frame type
+        out.reset();
+        copied = AudioFrames.copyAmrFrames(new ByteArrayInputStream(concat(AudioFrames.AMR_HEADER, first, bytes(9 << 3), second)), out, true);
+        check(copied == AudioFrames.AMR_HEADER.length + first.length, "copy stops at an invalid AMR frame");
+
+        // a segment without frames writes nothing, not even the header
+        out.reset();
+        copied = AudioFrames.copyAmrFrames(new ByteArrayInputStream(AudioFrames.AMR_HEADER), out, true);
+        check(copied == 0 && out.size() == 0, "AMR segment without frames");
+        copied = AudioFrames.copyAmrFrames(new ByteArrayInputStream(concat(AudioFrames.AMR_HEADER, Arrays.copyOf(first, 5))), out, true);
+        check(copied == 0 && out.size() == 0, "AMR segment with only a truncated frame");
+    }
+
+    private static byte[] adtsFrame(int payload, int fill) {
+        byte[] frame = new byte[payload + AudioFrames.ADTS_HEADER_SIZE];
+        Arrays.fill(frame, (byte) fill);
+        AudioFrames.writeAdtsHeader(frame, 2, 4, 1, frame.length);
+        return frame;
+    }
+
+    private static byte[] amrFrame(int type, int fill) {
+        byte[] frame = new byte[AudioFrames.AMR_FRAME_SIZES[type] + 1];
+        Arrays.fill(frame, (byte) fill);
+        frame[0] = (byte) ((type << 3) | 0x04);
+        return frame;
+    }
+
+    private static int adtsLength(byte[] frame) {
+        return ((frame[3] & 0x03) << 11) | ((frame[4] & 0xFF) << 3) | ((frame[5] & 0xE0) >> 5);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static String hex(byte[] bytes, int length) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            hex.append(String.format("%02X ", bytes[i] & 0xFF));
+        }
+        return hex.toString().trim();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            System.err.println("Failed: " + message);
+        }
+    }
+}
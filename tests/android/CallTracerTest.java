@@ -0,0 +1,151 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the ring of CallTracer: the records read back, the reuse of the
+ * oldest block once the ring is full, the truncation of long arguments and
+ * the trace kept from the previous run.
+ *
+ * The exit code is 1 if a check failed.
+ */
+public class CallTracerTest {
+
+    private static final int RING = 128 * 1024;   // two blocks
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        File dir = File.createTempFile("calltracer", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            testRecords(new File(dir, "records.bin"));
+            testRing(new File(dir, "ring.bin"));
+            testTruncated(new File(dir, "truncated.bin"));
+            testSummarize();
+            testPreviousRun(new File(dir, "previous.bin"));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        System.out.printf("CallTracerTest: %d failures%n", failures);
+        System.exit(failures > 0 ? 1 : 0);
+    }
+
+    private static void testRecords(File file) throws IOException {
+        CallTracer tracer = new CallTracer(file, RING);
+        long start = System.nanoTime();
+        tracer.record(start, 1500000, "create", "[\"id1\",\"a.mp3\"]");
+        tracer.record(start + 2000000, 250000, "startPlayingAudio", "[\"id1\",\"a.mp3\",{}]");
+        tracer.record(start + 1000000, 0, "setVolume", "[\"id1\",\"0.5\"]");
+        check(tracer.getRecordCount() == 3, "record count " + tracer.getRecordCount());
+
+        List<CallTracer.Record> records = CallTracer.read(tracer.flush());
+        check(records.size() == 3, "records read " + records.size());
+        if (records.size() == 3) {
+            // calls from other threads are put back in start order
+            check(records.get(0).action.equals("create"), "first action " + records.get(0).action);
+            check(records.get(1).action.equals("setVolume"), "second action " + records.get(1).action);
+            check(records.get(2).action.equals("startPlayingAudio"), "third action " + records.get(2).action);
+            check(records.get(1).args.equals("[\"id1\",\"0.5\"]"), "args " + records.get(1).args);
+            check(records.get(1).start - records.get(0).start == 1000000, "relative start");
+            check(records.get(0).duration == 1500000, "duration " + records.get(0).duration);
+            check(records.get(2).duration == 250000, "duration " + records.get(2).duration);
+            check(!records.get(0).truncated, "short args not truncated");
+        }
+    }
+
+    private static void testRing(File file) throws IOException {
+        CallTracer tracer = new CallTracer(file, RING);
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        long start = System.nanoTime();
+        int count = 1000;                       // about eight times the ring
+        for (int i = 0; i < count; i++) {
+            tracer.record(start + i * 1000L, 0, "call", i + ":" + new String(padding));
+        }
+        check(tracer.getRecordCount() == count, "ring record count " + tracer.getRecordCount());
+
+        List<CallTracer.Record> records = CallTracer.read(tracer.flush());
+        // a full block and the block being written are left
+        int perBlock = (64 * 1024 - 8) / (16 + "call".length() + "999:".length() + padding.length);
+        check(records.size() > perBlock && records.size() <= 2 * perBlock, "records left in the ring " + records.size());
+        // the newest calls are kept, in order, without holes
+        int first = count - records.size();
+        for (int i = 0; i < records.size(); i++) {
+            String args = records.get(i).args;
+            if (!args.startsWith((first + i) + ":")) {
+                check(false, "record " + i + " is " + args.substring(0, args.indexOf(':')) + " instead of " + (first + i));
+                break;
+            }
+        }
+    }
+
+    private static void testTruncated(File file) throws IOException {
+        CallTracer tracer = new CallTracer(file, RING);
+        char[] args = new char[5000];
+        Arrays.fill(args, 'a');
+        tracer.record(System.nanoTime(), 0, "createFromBuffer", new String(args));
+        List<CallTracer.Record> records = CallTracer.read(tracer.flush());
+        check(records.size() == 1, "truncated record read");
+        if (records.size() == 1) {
+            check(records.get(0).truncated, "long args flagged as truncated");
+            check(records.get(0).args.length() == 4096, "truncated args length " + records.get(0).args.length());
+        }
+    }
+
+    private static void testSummarize() {
+        check(CallTracer.summarize("id1").equals("id1"), "short arg kept");
+        char[] payload = new char[3000000];
+        Arrays.fill(payload, 'A');
+        String value = new String(payload);
+        String summary = CallTracer.summarize(value);
+        check(summary.equals(String.format("<3000000 chars, hash %08x>", value.hashCode())), "summary " + summary);
+        payload[1500000] = 'B';
+        check(!CallTracer.summarize(new String(payload)).equals(summary), "different payloads summarized apart");
+    }
+
+    private static void testPreviousRun(File file) throws IOException {
+        CallTracer tracer = new CallTracer(file, RING);
+        tracer.record(System.nanoTime(), 0, "previous", "[]");
+        tracer.flush();
+
+        tracer = new CallTracer(file, RING);
+        tracer.record(System.nanoTime(), 0, "current", "[]");
+        List<CallTracer.Record> current = CallTracer.read(tracer.flush());
+        List<CallTracer.Record> previous = CallTracer.read(new File(file.getPath() + ".1"));
+        check(current.size() == 1 && current.get(0).action.equals("current"), "trace of the current run");
+        check(previous.size() == 1 && previous.get(0).action.equals("previous"), "trace of the previous run kept");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            System.err.println("Failed: " + message);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Checks the voice stealing of VoiceLimiter: which voice each policy takes,
+ * the refusal of a player when all voices have a higher priority, and the
+ * limits per category.
+ *
+ * The exit code is 1 if a check failed.
+ */
+public class VoiceLimiterTest {
+
+    private static int failures = 0;
+
+    /**
+     * A player as seen by the limiter.
+     */
+    private static class TestVoice implements VoiceLimiter.Voice {
+        final String name;
+        final String category;
+        final int priority;
+        final float volume;
+
+        TestVoice(String name, String category, int priority, float volume) {
+            this.name = name;
+            this.category = category;
+            this.priority = priority;
+            this.volume = volume;
+        }
+
+        public String getCategory() {
+            return this.category;
+        }
+
+        public int getPriority() {
+            return this.priority;
+        }
+
+        public float getOutputVolume() {
+            return this.volume;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    public static void main(String[] args) {
+        testOldest();
+        testQuietest();
+        testLowestPriority();
+        testRefused();
+        testCategories();
+        testRelease();
+        testParse();
+        System.out.printf("VoiceLimiterTest: %d failures%n", failures);
+        System.exit(failures > 0 ? 1 : 0);
+    }
+
+    private static void testOldest() {
+        VoiceLimiter<TestVoice> limiter = limiter(2, null, VoiceLimiter.POLICY.OLDEST);
+        TestVoice a = voice("a", 0, 1f);
+        TestVoice b = voice("b", 0, 1f);
+        TestVoice c = voice("c", 0, 1f);
+        expect(limiter.acquire(a), "oldest: a");
+        expect(limiter.acquire(b), "oldest: b");
+        expect(limiter.acquire(c), "oldest: c", a);
+        check(limiter.getVoiceCount() == 2, "oldest: voices " + limiter.getVoiceCount());
+        check(limiter.getStolen() == 1, "oldest: stolen " + limiter.getStolen());
+        // a player holding a voice keeps it
+        expect(limiter.acquire(b), "oldest: b again");
+        check(limiter.getStolen() == 1, "oldest: nothing stolen for a player holding a voice");
+    }
+
+    private static void testQuietest() {
+        VoiceLimiter<TestVoice> limiter = limiter(2, null, VoiceLimiter.POLICY.QUIETEST);
+        TestVoice loud = voice("loud", 0, 1f);
+        TestVoice quiet = voice("quiet", 0, 0.2f);
+        expect(limiter.acquire(loud), "quietest: loud");
+        expect(limiter.acquire(quiet), "quietest: quiet");
+        expect(limiter.acquire(voice("c", 0, 1f)), "quietest: c", quiet);
+    }
+
+    private static void testLowestPriority() {
+        VoiceLimiter<TestVoice> limiter = limiter(2, null, VoiceLimiter.POLICY.LOWEST_PRIORITY);
+        TestVoice high = voice("high", 2, 1f);
+        TestVoice low = voice("low", 1, 1f);
+        expect(limiter.acquire(high), "lowest priority: high");
+        expect(limiter.acquire(low), "lowest priority: low");
+        expect(limiter.acquire(voice("c", 3, 1f)), "lowest priority: c", low);
+    }
+
+    private static void testRefused() {
+        VoiceLimiter<TestVoice> limiter = limiter(2, null, VoiceLimiter.POLICY.OLDEST);
+        TestVoice a = voice("a", 5, 1f);
+        TestVoice b = voice("b", 1, 1f);
+        expect(limiter.acquire(a), "refused: a");
+        expect(limiter.acquire(b), "refused: b");
+        // only voices of the same or a lower priority can be stolen
+        expect(limiter.acquire(voice("c", 2, 1f)), "refused: c steals b", b);
+        check(limiter.acquire(voice("d", 0, 1f)) == null, "refused: d has the lowest priority");
+        check(limiter.getRefused() == 1, "refused: count " + limiter.getRefused());
+        check(limiter.getVoiceCount() == 2, "refused: voices " + limiter.getVoiceCount());
+    }
+
+    private static void testCategories() {
+        Map<String, Integer> limits = new HashMap<String, Integer>();
+        limits.put("music", 1);
+        VoiceLimiter<TestVoice> limiter = limiter(3, limits, VoiceLimiter.POLICY.OLDEST);
+        TestVoice music1 = new TestVoice("music1", "music", 0, 1f);
+        TestVoice sfx1 = new TestVoice("sfx1", "sfx", 0, 1f);
+        TestVoice sfx2 = new TestVoice("sfx2", "sfx", 0, 1f);
+        expect(limiter.acquire(sfx1), "categories: sfx1");
+        expect(limiter.acquire(music1), "categories: music1");
+        // the category limit steals in the category, not the oldest voice
+        expect(limiter.acquire(new TestVoice("music2", "music", 0, 1f)), "categories: music2", music1);
+        expect(limiter.acquire(sfx2), "categories: sfx2");
+        // the global limit steals across categories
+        expect(limiter.acquire(new TestVoice("sfx3", "sfx", 0, 1f)), "categories: sfx3", sfx1);
+    }
+
+    private static void testRelease() {
+        VoiceLimiter<TestVoice> limiter = limiter(1, null, VoiceLimiter.POLICY.OLDEST);
+        TestVoice a = voice("a", 0, 1f);
+        expect(limiter.acquire(a), "release: a");
+        limiter.release(a);
+        expect(limiter.acquire(voice("b", 0, 1f)), "release: b takes the released voice");
+        check(limiter.getStolen() == 0, "release: nothing stolen");
+        check(!limiter(0, null, VoiceLimiter.POLICY.OLDEST).isEnabled(), "no limits, limiter disabled");
+    }
+
+    private static void testParse() {
+        List<String> invalid = new ArrayList<String>();
+        Map<String, Integer> limits = VoiceLimiter.parseLimits("music:1, sfx : 8,ui:x,voice,,", invalid);
+        check(limits.size() == 2 && limits.get("music") == 1 && limits.get("sfx") == 8, "parsed limits " + limits);
+        check(invalid.equals(Arrays.asList("ui:x", "voice")), "invalid limits " + invalid);
+        check(VoiceLimiter.parseLimits(null, invalid).isEmpty(), "no limits");
+        check(VoiceLimiter.parsePolicy("lowest-priority") == VoiceLimiter.POLICY.LOWEST_PRIORITY, "lowest-priority policy");
+        check(VoiceLimiter.parsePolicy("Quietest") == VoiceLimiter.POLICY.QUIETEST, "quietest policy");
+        check(VoiceLimiter.parsePolicy("loudest") == null, "unknown policy");
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            check(VoiceLimiter.parsePolicy("quietest") == VoiceLimiter.POLICY.QUIETEST, "quietest policy in a Turkish locale");
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    private static VoiceLimiter<TestVoice> limiter(int maxVoices, Map<String, Integer> limits, VoiceLimiter.POLICY policy) {
+        return new VoiceLimiter<TestVoice>(maxVoices, limits, policy);
+    }
+
+    private static TestVoice voice(String name, int priority, float volume) {
+        return new TestVoice(name, null, priority, volume);
+    }
+
+    private static void expect(List<TestVoice> victims, String message, TestVoice... expected) {
+        check(victims != null && victims.equals(Arrays.asList(expected)),
+              message + ": stole " + victims + " instead of " + Arrays.asList(expected));
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            System.err.println("Failed: " + message);
+        }
+    }
+}
@@ -36,6 +36,36 @@ var isWindows = cordova.platformId == 'windows8' || cordova.platformId == 'windo
 var isAudioSupported = isWindows ? !!Windows.Media.Devices.MediaDevice.getDefaultAudioRenderId(Windows.Media.Devices.AudioDeviceRole.default) :
     cordova.platformId === 'ios' ? !window.SAUCELABS_ENV : true;
 
+// One second of silent AAC LC, 44100 Hz, mono, as ADTS frames of 1024 samples
+var SILENT_ADTS_FRAMES = 44;
+
+function silentAdts(frames) {
+    // ADTS header of an 11 byte frame, then a silent mono frame
+    var frame = [0xFF, 0xF1, 0x50, 0x40, 0x01, 0x7F, 0xFC, 0x01, 0x40, 0x20, 0x07];
+    var bytes = new Uint8Array(frames * frame.length);
+    for (var i = 0; i < frames; i++) {
+        bytes.set(frame, i * frame.length);
+    }
+    return bytes;
+}
+
+function writeCacheFile(name, bytes, success, fail) {
+    var error = function (e) {
+        fail('Error writing ' + name + ': ' + (e && e.code));
+    };
+    window.resolveLocalFileSystemURL(cordova.file.cacheDirectory, function (dir) {
+        dir.getFile(name, { create: true }, function (entry) {
+            entry.createWriter(function (writer) {
+                writer.onwriteend = function () {
+                    success(entry);
+                };
+                writer.onerror = error;
+                writer.write(new Blob([bytes]));
+            }, error);
+        }, error);
+    }, error);
+}
+
 exports.defineAutoTests = function () {
     var failed = function (done, msg, context) {
         if (context && context.done) return;
@@ -374,7 +404,7 @@ exports.defineAutoTests = function () {
         });
 
         it("media.spec.24 playback rate should be set properly using setRate", function (done) {
-            if (cordova.platformId !== 'ios') {
+            if (cordova.platformId !== 'ios' && cordova.platformId !== 'android') {
                 expect(true).toFailWithMessage('Platform does not supported this feature');
                 pending();
             }
@@ -513,6 +543,212 @@ exports.defineAutoTests = function () {
             media.play();
         });
 
+        it("media.spec.28 should contain scheduleStart and scheduleStop functions", function () {
+            var media1 = new Media("dummy");
+            expect(media1.scheduleStart).toBeDefined();
+            expect(typeof media1.scheduleStart).toBe('function');
+            expect(media1.scheduleStop).toBeDefined();
+            expect(typeof media1.scheduleStop).toBe('function');
+            expect(typeof Media.getAudioClock).toBe('function');
+            media1.release();
+        });
+
+        it("media.spec.29 should contain a setPitch function", function () {
+            var media1 = new Media("dummy");
+            expect(media1.setPitch).toBeDefined();
+            expect(typeof media1.setPitch).toBe('function');
+            media1.release();
+        });
+
+        it("media.spec.30 should contain a getMemoryStats function", function () {
+            expect(Media.getMemoryStats).toBeDefined();
+            expect(typeof Media.getMemoryStats).toBe('function');
+        });
+
+        it("media.spec.31 should contain a getStats function", function () {
+            var media1 = new Media("dummy");
+            expect(media1.getStats).toBeDefined();
+            expect(typeof media1.getStats).toBe('function');
+            media1.release();
+        });
+
+        it("media.spec.32 should contain a recoverRecordings function", function () {
+            expect(Media.recoverRecordings).toBeDefined();
+            expect(typeof Media.recoverRecordings).toBe('function');
+        });
+
+        it("media.spec.33 should contain a getStorageStats function", function () {
+            expect(Media.getStorageStats).toBeDefined();
+            expect(typeof Media.getStorageStats).toBe('function');
+        });
+
+        it("media.spec.34 should contain a setLoop function", function () {
+            var media1 = new Media("dummy");
+            expect(media1.setLoop).toBeDefined();
+            expect(typeof media1.setLoop).toBe('function');
+            media1.release();
+        });
+
+        it("media.spec.35 should contain playSprite and stopSprite functions", function () {
+            var media1 = new Media("dummy");
+            expect(typeof media1.playSprite).toBe('function');
+            expect(typeof media1.stopSprite).toBe('function');
+            media1.release();
+        });
+
+        it("media.spec.36 should contain a getSnapshot function", function () {
+            expect(Media.getSnapshot).toBeDefined();
+            expect(typeof Media.getSnapshot).toBe('function');
+        });
+
+        it("media.spec.37 should contain a getTrace function", function () {
+            expect(Media.getTrace).toBeDefined();
+            expect(typeof Media.getTrace).toBe('function');
+        });
+
+        it("media.spec.38 should contain a createFromBuffer function", function () {
+            expect(Media.createFromBuffer).toBeDefined();
+            expect(typeof Media.createFromBuffer).toBe('function');
+        });
+
+        it("media.spec.39 should contain startSpectrum and stopSpectrum functions", function () {
+            var media1 = new Media("dummy");
+            expect(typeof media1.startSpectrum).toBe('function');
+            expect(typeof media1.stopSpectrum).toBe('function');
+            media1.release();
+        });
+
+        it("media.spec.40 should contain trim and concat functions", function () {
+            expect(typeof Media.trim).toBe('function');
+            expect(typeof Media.concat).toBe('function');
+        });
+
+        it("media.spec.41 should contain transcoding functions", function () {
+            expect(typeof Media.transcode).toBe('function');
+            expect(typeof Media.cancelTranscode).toBe('function');
+            expect(typeof Media.getTranscodes).toBe('function');
+        });
+
+        it("media.spec.42 recoverRecordings should pass the recovered recordings", function (done) {
+            if (cordova.platformId !== 'android') {
+                pending();
+            }
+            var context = this;
+            Media.recoverRecordings(function (recovered) {
+                expect(Array.isArray(recovered)).toBe(true);
+                recovered.forEach(function (recording) {
+                    expect(typeof recording.file).toBe('string');
+                    expect(recording.segments).toBeGreaterThan(0);
+                    expect(recording.bytes).toBeGreaterThan(0);
+                });
+                context.done = true;
+                done();
+            }, failed.bind(null, done, 'Media.recoverRecordings - Error recovering recordings', context));
+        });
+
+        it("media.spec.43 getStorageStats should pass the storage statistics", function (done) {
+            if (cordova.platformId !== 'android') {
+                pending();
+            }
+            var context = this;
+            Media.getStorageStats(function (stats) {
+                expect(typeof stats.dir).toBe('string');
+                expect(stats.used).not.toBeLessThan(0);
+                expect(typeof stats.quota).toBe('number');
+                expect(stats.sweptFiles).not.toBeLessThan(0);
+                expect(stats.sweptBytes).not.toBeLessThan(0);
+                context.done = true;
+                done();
+            }, failed.bind(null, done, 'Media.getStorageStats - Error getting the storage statistics', context));
+        });
+
+        it("media.spec.44 trim should write the part of a file", function (done) {
+            if (cordova.platformId !== 'android') {
+                pending();
+            }
+            var context = this;
+            var lastProgress = 0;
+            var fail = function (message) {
+                failed(done, 'Media.trim - ' + message, context);
+            };
+            writeCacheFile('trim-source.aac', silentAdts(SILENT_ADTS_FRAMES), function (source) {
+                var target = cordova.file.cacheDirectory + 'trim-target.aac';
+                Media.trim(source.toURL(), 0, 500, target, function (result) {
+                    expect(result.file).toMatch(/trim-target\.aac$/);
+                    // the cut falls on the nearest frame, about 23 msec
+                    expect(result.duration).toBeGreaterThan(450);
+                    expect(result.duration).toBeLessThan(550);
+                    expect(lastProgress).toBe(1);
+                    context.done = true;
+                    done();
+                }, fail, { progress: function (fraction) { lastProgress = fraction; } });
+            }, fail);
+        });
+
+        it("media.spec.45 trim should call the error callback for a missing file", function (done) {
+            if (cordova.platformId !== 'android') {
+                pending();
+            }
+            var context = this;
+            Media.trim(cordova.file.cacheDirectory + 'missing.aac', 0, 500, cordova.file.cacheDirectory + 'trim-missing.aac',
+                succeed.bind(null, done, 'Media.trim - Unexpected success trimming a missing file', context),
+                function (message) {
+                    expect(typeof message).toBe('string');
+                    context.done = true;
+                    done();
+                });
+        });
+
+        it("media.spec.46 getSnapshot should only list the players that exist", function (done) {
+            if (cordova.platformId !== 'android') {
+                pending();
+            }
+            var context = this;
+            var fail = failed.bind(null, done, 'Media.getSnapshot - Error getting the snapshot', context);
+            var media = new Media(WEB_MP3_FILE);
+            var find = function (players) {
+                return players.filter(function (player) {
+                    return player.id === media.id;
+                })[0];
+            };
+            Media.getSnapshot(function (players) {
+                var player = find(players);
+                expect(player).toBeDefined();
+                expect(player.state).toBe(Media.MEDIA_NONE);
+                expect(player.position).toBe(-1);
+                media.release();
+                Media.getSnapshot(function (players) {
+                    // the snapshot doesn't create the released player again
+                    expect(find(players)).toBeUndefined();
+                    context.done = true;
+                    done();
+                }, fail);
+            }, fail);
+        });
+
+        it("media.spec.47 createFromBuffer should play audio from memory", function (done) {
+            if (cordova.platformId !== 'android' || !isAudioSupported) {
+                pending();
+            }
+            var context = this;
+            var running = false;
+            var media = Media.createFromBuffer(silentAdts(SILENT_ADTS_FRAMES), 'audio/aac', function () {
+                // called once the second of silence played to the end
+                expect(running).toBe(true);
+                media.release();
+                context.done = true;
+                done();
+            }, function (error) {
+                media.release();
+                failed(done, 'Media.createFromBuffer - Error playing the buffer: ' + JSON.stringify(error), context);
+            }, function (statusCode) {
+                if (statusCode == Media.MEDIA_RUNNING) {
+                    running = true;
+                }
+            });
+            media.play();
+        }, ACTUAL_PLAYBACK_TEST_TIMEOUT);
+
     });
 };
 
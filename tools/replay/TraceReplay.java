@@ -0,0 +1,189 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a call trace recorded by CallTracer against a target, at the
+ * recorded pace or faster, and reports latency percentiles per action.
+ *
+ * Calls are issued from a single thread, like the Cordova bridge does.
+ * The latency of a call is the time spent in the target. The lag is how
+ * late a call was issued compared to the trace, i.e. how much the previous
+ * calls held up the bridge.
+ *
+ * Usage:
+ *   java org.apache.cordova.media.TraceReplay [--speed N] [--target class] [--dump] trace.bin
+ */
+public class TraceReplay {
+
+    /**
+     * Receives the replayed calls. Implementations need a public no-argument
+     * constructor to be loaded with --target.
+     */
+    public interface Target {
+        void execute(String action, String args) throws Exception;
+        void close() throws Exception;
+    }
+
+    /**
+     * Accepts every call, to measure the replay overhead or check a trace.
+     */
+    public static class NoopTarget implements Target {
+        public void execute(String action, String args) {
+        }
+
+        public void close() {
+        }
+    }
+
+    private static class Samples {
+        long[] values = new long[64];
+        int count = 0;
+
+        void add(long value) {
+            if (this.count == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.count * 2);
+            }
+            this.values[this.count++] = value;
+        }
+
+        long percentile(double p) {
+            if (this.count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(this.values, this.count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(this.count - 1, Math.ceil(p * this.count) - 1)];
+        }
+    }
+
+    private static class ActionStats {
+        final Samples latency = new Samples();
+        final Samples recorded = new Samples();
+        int errors = 0;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        double speed = 1.0;
+        String targetClass = null;
+        boolean dump = false;
+        String path = null;
+        for (int i = 0; i < argv.length; i++) {
+            if (argv[i].equals("--speed")) {
+                speed = Double.parseDouble(argv[++i]);
+            } else if (argv[i].equals("--target")) {
+                targetClass = argv[++i];
+            } else if (argv[i].equals("--dump")) {
+                dump = true;
+            } else {
+                path = argv[i];
+            }
+        }
+        if (path == null) {
+            System.err.println("Usage: TraceReplay [--speed N] [--target class] [--dump] trace.bin");
+            System.err.println("  --speed N      replay N times faster, 0 for as fast as possible (default 1)");
+            System.err.println("  --target class Target implementation receiving the calls (default: no-op)");
+            System.err.println("  --dump         print the calls instead of replaying them");
+            System.exit(2);
+        }
+
+        List<CallTracer.Record> records = CallTracer.read(new File(path));
+        if (dump) {
+            for (CallTracer.Record record : records) {
+                System.out.printf("%12.3f ms %8d us  %s %s%s%n", record.start / 1e6, record.duration / 1000,
+                        record.action, record.args, record.truncated ? " (truncated)" : "");
+            }
+            return;
+        }
+
+        Target target = targetClass == null ? new NoopTarget()
+                : (Target) Class.forName(targetClass).getDeclaredConstructor().newInstance();
+        try {
+            replay(records, target, speed, System.out);
+        } finally {
+            target.close();
+        }
+    }
+
+    /**
+     * Replay calls against a target and print the report.
+     *
+     * @param records           The calls, oldest first
+     * @param target            The target receiving the calls
+     * @param speed             Speed factor, 0 for as fast as possible
+     * @param out               Where the report is printed
+     */
+    public static void replay(List<CallTracer.Record> records, Target target, double speed, PrintStream out) {
+        Map<String, ActionStats> stats = new TreeMap<String, ActionStats>();
+        Samples lag = new Samples();
+        if (records.isEmpty()) {
+            out.println("Empty trace");
+            return;
+        }
+        long traceStart = records.get(0).start;
+        long replayStart = System.nanoTime();
+
+        for (CallTracer.Record record : records) {
+            long due = speed > 0 ? replayStart + (long) ((record.start - traceStart) / speed) : System.nanoTime();
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            ActionStats action = stats.get(record.action);
+            if (action == null) {
+                action = new ActionStats();
+                stats.put(record.action, action);
+            }
+            long start = System.nanoTime();
+            try {
+                target.execute(record.action, record.args);
+            } catch (Exception e) {
+                action.errors++;
+            }
+            action.latency.add(System.nanoTime() - start);
+            action.recorded.add(record.duration);
+            lag.add(start - due);
+        }
+
+        double elapsed = (System.nanoTime() - replayStart) / 1e9;
+        double traced = (records.get(records.size() - 1).start - traceStart) / 1e9;
+        out.printf("Replayed %d calls in %.3f s, traced over %.3f s, speed %s%n",
+                records.size(), elapsed, traced, speed > 0 ? speed + "x" : "max");
+        out.printf("%-26s %8s %6s %10s %10s %10s %10s %12s %12s%n",
+                "action (usec)", "calls", "errors", "p50", "p90", "p99", "max", "traced p50", "traced p99");
+        for (Map.Entry<String, ActionStats> entry : stats.entrySet()) {
+            ActionStats action = entry.getValue();
+            out.printf("%-26s %8d %6d %10d %10d %10d %10d %12d %12d%n", entry.getKey(), action.latency.count, action.errors,
+                    action.latency.percentile(0.5) / 1000, action.latency.percentile(0.9) / 1000,
+                    action.latency.percentile(0.99) / 1000, action.latency.percentile(1.0) / 1000,
+                    action.recorded.percentile(0.5) / 1000, action.recorded.percentile(0.99) / 1000);
+        }
+        out.printf("Issue lag (usec): p50 %d, p99 %d, max %d%n",
+                lag.percentile(0.5) / 1000, lag.percentile(0.99) / 1000, lag.percentile(1.0) / 1000);
+    }
+}
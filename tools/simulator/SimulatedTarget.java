@@ -0,0 +1,218 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A TraceReplay target playing the traced calls on simulated engines, so
+ * that a production trace can be replayed on a Linux host.
+ *
+ * The virtual clock follows the replay: before each call it is advanced by
+ * the time elapsed since the previous call. Sources that are not sim:// URLs
+ * are simulated with the default parameters. Calls that the engine rejects
+ * in its current state are reported as errors by the replay.
+ *
+ * Usage:
+ *   java org.apache.cordova.media.TraceReplay --target org.apache.cordova.media.SimulatedTarget trace.bin
+ */
+public class SimulatedTarget implements TraceReplay.Target {
+
+    private static class Player implements PlaybackEngine.Listener {
+        final SimulatedEngine engine;
+        boolean prepared = false;
+        boolean startOnPrepared = false;
+        int seekOnPrepared = -1;
+
+        Player(VirtualClock clock) {
+            this.engine = new SimulatedEngine(clock);
+            this.engine.setListener(this);
+        }
+
+        public synchronized void onPrepared(PlaybackEngine engine) {
+            this.prepared = true;
+            if (this.seekOnPrepared >= 0) {
+                this.engine.seekTo(this.seekOnPrepared, false);
+                this.seekOnPrepared = -1;
+            }
+            if (this.startOnPrepared) {
+                this.startOnPrepared = false;
+                this.engine.start();
+            }
+        }
+
+        public void onCompletion(PlaybackEngine engine) {
+        }
+
+        public synchronized boolean onError(PlaybackEngine engine, int what, int extra) {
+            this.prepared = false;
+            this.engine.reset();
+            return true;
+        }
+
+        public void onBufferingUpdate(PlaybackEngine engine, int percent) {
+        }
+
+        public boolean onInfo(PlaybackEngine engine, int what, int extra) {
+            return true;
+        }
+
+        public void onSeekComplete(PlaybackEngine engine) {
+        }
+
+        public void onLoop(PlaybackEngine engine) {
+        }
+
+        synchronized void play(String src) throws Exception {
+            if (this.prepared) {
+                this.engine.start();
+            } else if (!this.startOnPrepared) {
+                this.engine.setDataSource(src);
+                this.engine.prepareAsync();
+                this.startOnPrepared = true;
+            }
+        }
+
+        // like AudioPlayer, calls made while loading are deferred to onPrepared
+        synchronized void pause() {
+            if (this.prepared) {
+                this.engine.pause();
+            }
+            this.startOnPrepared = false;
+        }
+
+        synchronized void seekTo(int msec) {
+            if (this.prepared) {
+                this.engine.seekTo(msec, false);
+            } else {
+                this.seekOnPrepared = msec;
+            }
+        }
+    }
+
+    private final VirtualClock clock = new VirtualClock();
+    private final ConcurrentHashMap<String, Player> players = new ConcurrentHashMap<String, Player>();
+    private long last = System.nanoTime();
+
+    public void execute(String action, String args) throws Exception {
+        long now = System.nanoTime();
+        this.clock.advance((now - this.last) / 1000000);
+        this.last = now - (now - this.last) % 1000000;
+
+        List<String> arguments = parseArray(args);
+        if (arguments.isEmpty()) {
+            return;
+        }
+        String id = arguments.get(0);
+        Player player = this.players.get(id);
+        if (action.equals("create")) {
+            if (player == null) {
+                this.players.put(id, new Player(this.clock));
+            }
+        } else if (action.equals("startPlayingAudio")) {
+            if (player == null) {
+                player = new Player(this.clock);
+                this.players.put(id, player);
+            }
+            player.play(arguments.get(1));
+        } else if (player == null) {
+            throw new IllegalArgumentException("Unknown player " + id);
+        } else if (action.equals("pausePlayingAudio")) {
+            player.pause();
+        } else if (action.equals("stopPlayingAudio")) {
+            player.pause();
+            player.seekTo(0);
+        } else if (action.equals("seekToAudio")) {
+            player.seekTo((int) Double.parseDouble(arguments.get(1)));
+        } else if (action.equals("setVolume")) {
+            player.engine.setVolume(Float.parseFloat(arguments.get(1)));
+        } else if (action.equals("getCurrentPositionAudio")) {
+            player.engine.getCurrentPosition();
+        } else if (action.equals("release")) {
+            this.players.remove(id);
+            player.engine.release();
+        }
+    }
+
+    public void close() {
+        for (Player player : this.players.values()) {
+            player.engine.release();
+        }
+        this.players.clear();
+    }
+
+    /**
+     * Split the top level of a JSON array. Strings are unquoted, other values
+     * are kept as their JSON text.
+     */
+    static List<String> parseArray(String json) {
+        List<String> values = new ArrayList<String>();
+        int i = json.indexOf('[') + 1;
+        if (i == 0) {
+            return values;
+        }
+        while (i < json.length()) {
+            char c = json.charAt(i);
+            if (c == ']') {
+                break;
+            } else if (c == ',' || Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                StringBuilder value = new StringBuilder();
+                for (i++; i < json.length() && json.charAt(i) != '"'; i++) {
+                    if (json.charAt(i) == '\\' && i + 1 < json.length()) {
+                        i++;
+                    }
+                    value.append(json.charAt(i));
+                }
+                values.add(value.toString());
+                i++;
+            } else {
+                int start = i;
+                int depth = 0;
+                boolean quoted = false;
+                for (; i < json.length(); i++) {
+                    char d = json.charAt(i);
+                    if (quoted) {
+                        if (d == '\\') {
+                            i++;
+                        } else if (d == '"') {
+                            quoted = false;
+                        }
+                    } else if (d == '"') {
+                        quoted = true;
+                    } else if (d == '{' || d == '[') {
+                        depth++;
+                    } else if (d == '}' || d == ']') {
+                        if (depth == 0) {
+                            break;
+                        }
+                        depth--;
+                    } else if (d == ',' && depth == 0) {
+                        break;
+                    }
+                }
+                values.add(json.substring(start, i).trim());
+            }
+        }
+        return values;
+    }
+}
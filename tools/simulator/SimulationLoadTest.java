@@ -0,0 +1,271 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs thousands of simulated players on one VirtualClock, with worker
+ * threads issuing random calls through a shared registry, like
+ * AudioHandler.players. It reports the call throughput and latency, which
+ * show the registry contention, and the event throughput, and checks that
+ * every engine honours the PlaybackEngine contract.
+ *
+ * Each tick advances the clock by 10 msec, then every worker issues its calls
+ * for the tick. With one worker thread, a run is deterministic for a seed.
+ *
+ * Usage:
+ *   java org.apache.cordova.media.SimulationLoadTest [--players N] [--threads N]
+ *        [--seconds N] [--calls N] [--seed N]
+ *
+ * The exit code is 1 if the contract was violated.
+ */
+public class SimulationLoadTest {
+
+    private static final int TICK = 10;     // msec of virtual time per tick
+
+    private static final String[] SOURCES = {
+        "sim://local?duration=3000&prepare=30&jitter=40",
+        "sim://stream?duration=20000&prepare=300&jitter=500&bufferRate=0.8&bufferAhead=1500",
+        "sim://broken?duration=10000&prepare=100&errorAt=4000",
+        "sim://missing?prepare=200&prepareError=1",
+        "sim://call?duration=15000&prepare=50&focusLossAt=2000&focusLossDuration=3000",
+    };
+
+    /**
+     * A registry entry, checking the events of its engine.
+     */
+    private static class Player implements PlaybackEngine.Listener {
+        final SimulatedEngine engine;
+        boolean preparing = false;
+        boolean prepared = false;
+        boolean started = false;
+        boolean released = false;
+        int seeks = 0;
+
+        Player(VirtualClock clock) {
+            this.engine = new SimulatedEngine(clock);
+            this.engine.setListener(this);
+            this.engine.setFocusListener(focusListener);
+        }
+
+        public synchronized void onPrepared(PlaybackEngine engine) {
+            expect(this.preparing && !this.released, "onPrepared without prepare");
+            this.preparing = false;
+            this.prepared = true;
+            events.incrementAndGet();
+        }
+
+        public synchronized void onCompletion(PlaybackEngine engine) {
+            expect(this.started && !this.released, "onCompletion while not started");
+            this.started = false;
+            events.incrementAndGet();
+        }
+
+        public synchronized boolean onError(PlaybackEngine engine, int what, int extra) {
+            expect(!this.released, "onError after release");
+            this.preparing = false;
+            this.prepared = false;
+            this.started = false;
+            events.incrementAndGet();
+            return true;
+        }
+
+        public synchronized void onBufferingUpdate(PlaybackEngine engine, int percent) {
+            expect(!this.released && percent >= 0 && percent <= 100, "invalid buffering update " + percent);
+            events.incrementAndGet();
+        }
+
+        public synchronized boolean onInfo(PlaybackEngine engine, int what, int extra) {
+            expect(!this.released, "onInfo after release");
+            events.incrementAndGet();
+            return true;
+        }
+
+        public synchronized void onSeekComplete(PlaybackEngine engine) {
+            expect(this.seeks > 0 && !this.released, "onSeekComplete without seek");
+            this.seeks--;
+            events.incrementAndGet();
+        }
+
+        public synchronized void onLoop(PlaybackEngine engine) {
+            expect(!this.released, "onLoop after release");
+            events.incrementAndGet();
+        }
+
+        synchronized void call(int op, Random random) throws Exception {
+            if (this.released) {
+                return;
+            }
+            switch (op) {
+            case 0:
+                if (!this.preparing && !this.prepared) {
+                    this.engine.setDataSource(SOURCES[random.nextInt(SOURCES.length)]);
+                    this.engine.prepareAsync();
+                    this.preparing = true;
+                }
+                break;
+            case 1:
+                this.engine.start();
+                this.started = true;
+                break;
+            case 2:
+                this.engine.pause();
+                this.started = false;
+                break;
+            case 3:
+                int position = this.engine.getCurrentPosition();
+                int duration = this.engine.getDuration();
+                expect(duration < 0 || (position >= 0 && position <= duration), "position " + position + " beyond " + duration);
+                this.engine.seekTo(random.nextInt(Math.max(1, duration)), random.nextBoolean());
+                this.seeks++;
+                break;
+            case 4:
+                this.engine.setLoop(random.nextBoolean(), 0, 0);
+                break;
+            default:
+                this.engine.release();
+                this.released = true;
+                break;
+            }
+        }
+    }
+
+    private static final AtomicLong events = new AtomicLong();
+    private static final AtomicLong violations = new AtomicLong();
+    private static final AtomicLong focusChanges = new AtomicLong();
+
+    private static final SimulatedEngine.FocusListener focusListener = new SimulatedEngine.FocusListener() {
+        public void onFocusLoss(boolean canDuck) {
+            focusChanges.incrementAndGet();
+        }
+
+        public void onFocusGain() {
+            focusChanges.incrementAndGet();
+        }
+    };
+
+    private static void expect(boolean condition, String message) {
+        if (!condition && violations.incrementAndGet() <= 10) {
+            System.err.println("Contract violation: " + message);
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        int players = 2000;
+        int threads = 4;
+        int seconds = 120;
+        int callsPerTick = 20;
+        long seed = 1;
+        for (int i = 0; i + 1 < argv.length; i += 2) {
+            if (argv[i].equals("--players")) {
+                players = Integer.parseInt(argv[i + 1]);
+            } else if (argv[i].equals("--threads")) {
+                threads = Integer.parseInt(argv[i + 1]);
+            } else if (argv[i].equals("--seconds")) {
+                seconds = Integer.parseInt(argv[i + 1]);
+            } else if (argv[i].equals("--calls")) {
+                callsPerTick = Integer.parseInt(argv[i + 1]);
+            } else if (argv[i].equals("--seed")) {
+                seed = Long.parseLong(argv[i + 1]);
+            }
+        }
+
+        final VirtualClock clock = new VirtualClock();
+        final ConcurrentHashMap<String, Player> registry = new ConcurrentHashMap<String, Player>();
+        final int playerCount = players;
+        final int ticks = seconds * 1000 / TICK;
+        final int calls = callsPerTick;
+        final Phaser phaser = new Phaser(threads + 1);
+        final long[][] latencies = new long[threads][];
+        final long[] rejected = new long[threads];
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            final Random random = new Random(seed + t);
+            latencies[t] = new long[ticks * calls];
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    int n = 0;
+                    for (int tick = 0; tick < ticks; tick++) {
+                        phaser.arriveAndAwaitAdvance();
+                        for (int c = 0; c < calls; c++) {
+                            String id = "p" + random.nextInt(playerCount);
+                            int op = random.nextInt(40);
+                            long start = System.nanoTime();
+                            Player player = registry.get(id);
+                            if (player == null || player.released) {
+                                player = new Player(clock);
+                                registry.put(id, player);
+                                op = 0;
+                            }
+                            try {
+                                player.call(Math.min(op, 5), random);
+                            } catch (IllegalStateException e) {
+                                rejected[index]++;
+                            } catch (Exception e) {
+                                expect(false, e.toString());
+                            }
+                            latencies[index][n++] = System.nanoTime() - start;
+                        }
+                        phaser.arriveAndAwaitAdvance();
+                    }
+                }
+            }, "worker-" + t);
+            workers[t].start();
+        }
+
+        long wallStart = System.nanoTime();
+        for (int tick = 0; tick < ticks; tick++) {
+            clock.advance(TICK);
+            phaser.arriveAndAwaitAdvance();     // workers issue their calls
+            phaser.arriveAndAwaitAdvance();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double wall = (System.nanoTime() - wallStart) / 1e9;
+
+        long totalCalls = (long) ticks * calls * threads;
+        long totalRejected = 0;
+        long[] all = new long[(int) totalCalls];
+        int offset = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, offset, latencies[t].length);
+            offset += latencies[t].length;
+            totalRejected += rejected[t];
+        }
+        Arrays.sort(all);
+
+        System.out.printf("Simulated %d s with %d players and %d threads in %.3f s (%.0fx real time)%n",
+                seconds, playerCount, threads, wall, seconds / wall);
+        System.out.printf("Calls: %d (%.0f/s), rejected in invalid states: %d%n", totalCalls, totalCalls / wall, totalRejected);
+        System.out.printf("Call latency (usec): p50 %.1f, p99 %.1f, max %.1f%n",
+                all[all.length / 2] / 1e3, all[(int) (all.length * 0.99)] / 1e3, all[all.length - 1] / 1e3);
+        System.out.printf("Events: %d (%.0f/s), focus changes: %d, clock tasks: %d%n",
+                events.get(), events.get() / wall, focusChanges.get(), clock.getExecutedCount());
+        System.out.printf("Contract violations: %d%n", violations.get());
+        System.exit(violations.get() > 0 ? 1 : 0);
+    }
+}
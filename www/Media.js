@@ -24,6 +24,12 @@ var argscheck = require('cordova/argscheck'),
     exec = require('cordova/exec');
 
 var mediaObjects = {};
+var transcodeJobs = {};
+
+// Actions that are only implemented by the Android plugin
+function isAndroid() {
+    return cordova.platformId === 'android' || cordova.platformId === 'amazon-fireos';
+}
 
 /**
  * This class provides access to the device media, interfaces to both sound and video
@@ -36,9 +42,11 @@ var mediaObjects = {};
  *                                  errorCallback(int errorCode) - OPTIONAL
  * @param statusCallback        The callback to be called when media status has changed.
  *                                  statusCallback(int statusCode) - OPTIONAL
+ * @param options               Native player options, e.g. { priority: 1, focusPolicy: 'duck', engine: 'exoplayer',
+ *                                  sprite: { name: { start: ms, duration: ms } }, normalize: true, category: 'sfx' } - OPTIONAL
  */
-var Media = function(src, successCallback, errorCallback, statusCallback) {
-    argscheck.checkArgs('sFFF', 'Media', arguments);
+var Media = function(src, successCallback, errorCallback, statusCallback, options) {
+    argscheck.checkArgs('sFFFO', 'Media', arguments);
     this.id = utils.createUUID();
     mediaObjects[this.id] = this;
     this.src = src;
@@ -47,13 +55,31 @@ var Media = function(src, successCallback, errorCallback, statusCallback) {
     this.statusCallback = statusCallback;
     this._duration = -1;
     this._position = -1;
-    exec(null, this.errorCallback, "Media", "create", [this.id, this.src]);
+    this._buffered = 0;
+    this._stalled = false;
+    // Called with (int bufferedPercent, boolean stalled) on buffering updates of streams
+    this.bufferingCallback = null;
+    this._loops = 0;
+    // Called with (int loops) each time playback jumps back to the start of the loop
+    this.loopCallback = null;
+    // Called with (string name, string event) when a sprite region starts, ends or fails
+    this.spriteCallback = null;
+    // Called with (boolean refused) when another player took the voice of this one
+    this.stolenCallback = null;
+    // Called with (Uint8Array bins, object frame) for each spectrum, see startSpectrum
+    this.spectrumCallback = null;
+    exec(null, this.errorCallback, "Media", "create", [this.id, this.src, options]);
 };
 
 // Media messages
 Media.MEDIA_STATE = 1;
 Media.MEDIA_DURATION = 2;
 Media.MEDIA_POSITION = 3;
+Media.MEDIA_BUFFERING = 4;
+Media.MEDIA_STALL_START = 5;
+Media.MEDIA_STALL_END = 6;
+Media.MEDIA_LOOP = 7;
+Media.MEDIA_STOLEN = 8;
 Media.MEDIA_ERROR = 9;
 
 // Media states
@@ -64,11 +90,44 @@ Media.MEDIA_PAUSED = 3;
 Media.MEDIA_STOPPED = 4;
 Media.MEDIA_MSG = ["None", "Starting", "Running", "Paused", "Stopped"];
 
+// Called with { level, tier, ids, bytes } when native memory was trimmed.
+Media.onTrimMemory = null;
+
+// Called with { id, state, src, dst, progress, duration, message } for each
+// transcoding event, including jobs resumed from a previous run of the app.
+Media.onTranscode = null;
+
 // "static" function to return existing objs.
 Media.get = function(id) {
     return mediaObjects[id];
 };
 
+/**
+ * Create a Media object playing encoded audio held in memory, without a
+ * temporary file. The bytes are kept natively until the object is released.
+ *
+ * @param buffer                The encoded audio, as an ArrayBuffer or a typed array
+ * @param mime                  The MIME type of the audio, e.g. 'audio/mpeg' - OPTIONAL
+ * @param successCallback       As for the Media constructor - OPTIONAL
+ * @param errorCallback         As for the Media constructor, also called if the
+ *                                  buffer doesn't fit in the native budget - OPTIONAL
+ * @param statusCallback        As for the Media constructor - OPTIONAL
+ * @param options               As for the Media constructor - OPTIONAL
+ */
+Media.createFromBuffer = function(buffer, mime, successCallback, errorCallback, statusCallback, options) {
+    argscheck.checkArgs('*SFFFO', 'Media.createFromBuffer', arguments);
+    var media = new Media('buffer:', successCallback, errorCallback, statusCallback, options);
+    if (isAndroid()) {
+        if (ArrayBuffer.isView(buffer)) {
+            buffer = buffer.buffer.slice(buffer.byteOffset, buffer.byteOffset + buffer.byteLength);
+        }
+        exec(null, media.errorCallback, "Media", "createFromBuffer", [media.id, buffer, mime]);
+    } else {
+        console.warn('Media.createFromBuffer method is currently not supported for', cordova.platformId, 'platform.');
+    }
+    return media;
+};
+
 /**
  * Start or resume playing audio file.
  */
@@ -76,6 +135,220 @@ Media.prototype.play = function(options) {
     exec(null, null, "Media", "startPlayingAudio", [this.id, this.src, options]);
 };
 
+/**
+ * Get the native audio clock, in milliseconds.
+ * Used as time base for scheduleStart and scheduleStop.
+ */
+Media.getAudioClock = function(success, fail) {
+    if (isAndroid()) {
+        exec(function(clock) {
+            success(clock.time);
+        }, fail, "Media", "getAudioClock", []);
+    } else {
+        console.warn('Media.getAudioClock method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Get audio focus statistics: whether focus is held or delayed, and the
+ * number of focus requests and abandons sent to the system.
+ */
+Media.getAudioFocusStats = function(success, fail) {
+    if (isAndroid()) {
+        exec(success, fail, "Media", "getAudioFocusStats", []);
+    } else {
+        console.warn('Media.getAudioFocusStats method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Get memory statistics of the native audio players.
+ */
+Media.getMemoryStats = function(success, fail) {
+    if (isAndroid()) {
+        exec(success, fail, "Media", "getMemoryStats", []);
+    } else {
+        console.warn('Media.getMemoryStats method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Get the state of all native audio players at once, without side effects.
+ */
+Media.getSnapshot = function(success, fail) {
+    if (isAndroid()) {
+        exec(success, fail, "Media", "getSnapshot", []);
+    } else {
+        console.warn('Media.getSnapshot method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Flush the call trace, enabled with the MediaTraceSize preference, and get its path.
+ */
+Media.getTrace = function(success, fail) {
+    if (isAndroid()) {
+        exec(success, fail, "Media", "getTrace", []);
+    } else {
+        console.warn('Media.getTrace method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Start sending the spectrum of the playback, as packed binary frames.
+ *
+ * @param callback              Called with (Uint8Array bins, { id, seq, sampleRate }) for
+ *                                  each spectrum, one magnitude from 0 to 255 per bin
+ * @param options               { bins: 256, rate: 20 }, the number of frequency bins and
+ *                                  of spectrums per second - OPTIONAL
+ */
+Media.prototype.startSpectrum = function(callback, options) {
+    if (isAndroid()) {
+        this.spectrumCallback = callback;
+        exec(null, this.errorCallback, "Media", "startSpectrum", [this.id, options]);
+    } else {
+        console.warn('media.startSpectrum method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Stop sending the spectrum of the playback.
+ */
+Media.prototype.stopSpectrum = function() {
+    if (isAndroid()) {
+        this.spectrumCallback = null;
+        exec(null, this.errorCallback, "Media", "stopSpectrum", [this.id]);
+    } else {
+        console.warn('media.stopSpectrum method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Run a native export, calling options.progress with the fraction done.
+ */
+function exportMedia(action, args, success, fail, options) {
+    var progress = options && options.progress;
+    var nativeOptions = options ? { format: options.format } : null;
+    exec(function(result) {
+        if (result.progress !== undefined) {
+            if (progress) {
+                progress(result.progress);
+            }
+        } else if (success) {
+            success(result);
+        }
+    }, fail, "Media", action, args.concat([nativeOptions]));
+}
+
+/**
+ * Cut a part of a media file to a new file, without re-encoding it.
+ *
+ * @param src                   The file to cut
+ * @param startMs               The start of the part, in milliseconds
+ * @param endMs                 The end of the part, in milliseconds, null for the end of the file
+ * @param dst                   The file to write
+ * @param success               Called with { file, duration } once written - OPTIONAL
+ * @param fail                  Called with a message if the export fails - OPTIONAL
+ * @param options               { format: 'mp4' | 'adts' | 'amr' | 'ogg', progress: function(fraction) } - OPTIONAL
+ */
+Media.trim = function(src, startMs, endMs, dst, success, fail, options) {
+    if (isAndroid()) {
+        exportMedia("trimMedia", [src, startMs, endMs, dst], success, fail, options);
+    } else {
+        console.warn('Media.trim method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Join media files to a new file, without re-encoding them.
+ *
+ * @param srcs                  The files to join, in order, all with the same codec
+ * @param dst                   The file to write
+ * @param success               Called with { file, duration } once written - OPTIONAL
+ * @param fail                  Called with a message if the export fails - OPTIONAL
+ * @param options               { format: 'mp4' | 'adts' | 'amr' | 'ogg', progress: function(fraction) } - OPTIONAL
+ */
+Media.concat = function(srcs, dst, success, fail, options) {
+    if (isAndroid()) {
+        exportMedia("concatMedia", [srcs, dst], success, fail, options);
+    } else {
+        console.warn('Media.concat method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Re-encode a media file in the background, to AAC or to Opus for .ogg and
+ * .opus targets. Jobs are queued by priority, and the queue survives app
+ * restarts.
+ *
+ * @param src                   The file to re-encode
+ * @param dst                   The file to write, .m4a, .aac, .ogg or .opus
+ * @param success               Called with the job once written - OPTIONAL
+ * @param fail                  Called with a message if the job fails or is cancelled - OPTIONAL
+ * @param options               { bitRate: 64000, priority: 0, progress: function(fraction) } - OPTIONAL
+ * @return                      The id of the job
+ */
+Media.transcode = function(src, dst, success, fail, options) {
+    if (isAndroid()) {
+        var id = utils.createUUID();
+        transcodeJobs[id] = { success: success, fail: fail, progress: options && options.progress };
+        var nativeOptions = options ? { bitRate: options.bitRate, priority: options.priority } : null;
+        exec(null, function(err) {
+            delete transcodeJobs[id];
+            if (fail) {
+                fail(err);
+            }
+        }, "Media", "transcode", [id, src, dst, nativeOptions]);
+        return id;
+    } else {
+        console.warn('Media.transcode method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Cancel a transcoding job. Calls success with false if the job already ended.
+ */
+Media.cancelTranscode = function(id, success, fail) {
+    if (isAndroid()) {
+        exec(success, fail, "Media", "cancelTranscode", [id]);
+    } else {
+        console.warn('Media.cancelTranscode method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Get the transcoding jobs waiting, running, and recently ended.
+ */
+Media.getTranscodes = function(success, fail) {
+    if (isAndroid()) {
+        exec(success, fail, "Media", "getTranscodes", []);
+    } else {
+        console.warn('Media.getTranscodes method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Start playing audio file at the given audio clock time.
+ */
+Media.prototype.scheduleStart = function(atTimeMs) {
+    if (isAndroid()) {
+        exec(null, this.errorCallback, "Media", "scheduleStart", [this.id, this.src, atTimeMs]);
+    } else {
+        console.warn('media.scheduleStart method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Stop playing audio file at the given audio clock time.
+ */
+Media.prototype.scheduleStop = function(atTimeMs) {
+    if (isAndroid()) {
+        exec(null, this.errorCallback, "Media", "scheduleStop", [this.id, atTimeMs]);
+    } else {
+        console.warn('media.scheduleStop method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
 /**
  * Stop playing audio file.
  */
@@ -88,16 +361,19 @@ Media.prototype.stop = function() {
 
 /**
  * Seek or jump to a new time in the track..
+ *
+ * @param options           Optional object, {fast: true} seeks to the closest sync frame (Android only)
  */
-Media.prototype.seekTo = function(milliseconds, seekCompleteCallback) {
+Media.prototype.seekTo = function(milliseconds, seekCompleteCallback, options) {
     var me = this;
+    var fast = !!(options && options.fast);
     exec(function(p) {
         me._position = p;
 
         if ( seekCompleteCallback ) {
             seekCompleteCallback( me._position );
         }
-    }, this.errorCallback, "Media", "seekToAudio", [this.id, milliseconds]);
+    }, this.errorCallback, "Media", "seekToAudio", [this.id, milliseconds, fast]);
 };
 
 /**
@@ -128,11 +404,83 @@ Media.prototype.getCurrentPosition = function(success, fail) {
     }, fail, "Media", "getCurrentPositionAudio", [this.id]);
 };
 
+/**
+ * Get playback statistics of a stream: buffered percentage, number and
+ * total time of stalls, and time to first audio.
+ */
+Media.prototype.getStats = function(success, fail) {
+    if (isAndroid()) {
+        exec(success, fail, "Media", "getPlayerStats", [this.id]);
+    } else {
+        console.warn('media.getStats method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Get the storage statistics of temporary recordings: the directory, used
+ * bytes, quota, and the orphaned files and bytes deleted since app start.
+ */
+Media.getStorageStats = function(success, fail) {
+    if (isAndroid()) {
+        exec(success, fail, "Media", "getStorageStats", []);
+    } else {
+        console.warn('Media.getStorageStats method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Rebuild the recordings interrupted by the death of the app. Calls success
+ * with an array of { file, segments, bytes }.
+ */
+Media.recoverRecordings = function(success, fail) {
+    if (isAndroid()) {
+        exec(success, fail, "Media", "recoverRecordings", []);
+    } else {
+        console.warn('Media.recoverRecordings method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
 /**
  * Start recording audio file.
+ *
+ * @param options           Optional chunk streaming and silence trimming options (Android only), e.g.
+ *                          { chunkDuration: 1000, sink: 'channel', chunkCallback: function(chunk, data) {} }
+ *                          { silenceTrim: true, timelineCallback: function(timeline) {} }
  */
-Media.prototype.startRecord = function() {
-    exec(null, this.errorCallback, "Media", "startRecordingAudio", [this.id, this.src]);
+Media.prototype.startRecord = function(options) {
+    var nativeOptions = null;
+    if (options && isAndroid()) {
+        this.chunkCallback = options.chunkCallback || null;
+        this.timelineCallback = options.timelineCallback || null;
+        nativeOptions = {};
+        for (var key in options) {
+            if (typeof options[key] !== 'function') {
+                nativeOptions[key] = options[key];
+            }
+        }
+    }
+    exec(null, this.errorCallback, "Media", "startRecordingAudio", [this.id, this.src, nativeOptions]);
+};
+
+/**
+ * Deliver a recorded chunk to the chunk callback, and acknowledge it once
+ * processed. A callback returning a promise is acknowledged when it settles,
+ * which holds back further chunks while e.g. an upload is in progress.
+ */
+Media.onChunk = function(chunk, data) {
+    var media = mediaObjects[chunk.id];
+    if (!media) {
+        return;
+    }
+    var ack = function() {
+        exec(null, null, "Media", "ackRecordingChunk", [chunk.id, chunk.seq]);
+    };
+    var result = media.chunkCallback ? media.chunkCallback(chunk, data) : null;
+    if (result && typeof result.then === 'function') {
+        result.then(ack, ack);
+    } else {
+        ack();
+    }
 };
 
 /**
@@ -174,13 +522,68 @@ Media.prototype.setVolume = function(volume) {
  * Adjust the playback rate.
  */
 Media.prototype.setRate = function(rate) {
-    if (cordova.platformId === 'ios'){
+    if (cordova.platformId === 'ios' || isAndroid()) {
         exec(null, null, "Media", "setRate", [this.id, rate]);
     } else {
         console.warn('media.setRate method is currently not supported for', cordova.platformId, 'platform.');
     }
 };
 
+/**
+ * Adjust the playback pitch.
+ */
+Media.prototype.setPitch = function(pitch) {
+    if (isAndroid()) {
+        exec(null, null, "Media", "setPitch", [this.id, pitch]);
+    } else {
+        console.warn('media.setPitch method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Loop a region of the audio natively.
+ *
+ * @param enabled       Whether to loop
+ * @param startMs       Start of the region in milliseconds, defaults to 0
+ * @param endMs         End of the region in milliseconds, 0 for the end of the file
+ * @param count         Number of loops before playback continues past the region, 0 for forever
+ */
+Media.prototype.setLoop = function(enabled, startMs, endMs, count) {
+    if (isAndroid()) {
+        this._loops = 0;
+        exec(null, this.errorCallback, "Media", "setLoop", [this.id, !!enabled, startMs || 0, endMs || 0, count || 0]);
+    } else {
+        console.warn('media.setLoop method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Play a named region of the sprite given to the constructor.
+ *
+ * @param name          The name of the region
+ * @param options       { overlap: true } to mix the region on top of the regions playing - OPTIONAL
+ */
+Media.prototype.playSprite = function(name, options) {
+    if (isAndroid()) {
+        exec(null, this.errorCallback, "Media", "playSprite", [this.id, name, options]);
+    } else {
+        console.warn('media.playSprite method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
+/**
+ * Stop the sprite regions with a name, or all regions.
+ *
+ * @param name          The name of the region - OPTIONAL
+ */
+Media.prototype.stopSprite = function(name) {
+    if (isAndroid()) {
+        exec(null, this.errorCallback, "Media", "stopSprite", [this.id, name === undefined ? null : name]);
+    } else {
+        console.warn('media.stopSprite method is currently not supported for', cordova.platformId, 'platform.');
+    }
+};
+
 /**
  * Get amplitude of audio.
  */
@@ -225,6 +628,30 @@ Media.onStatus = function(id, msgType, value) {
             case Media.MEDIA_POSITION :
                 media._position = Number(value);
                 break;
+            case Media.MEDIA_BUFFERING :
+                media._buffered = Number(value);
+                if (media.bufferingCallback) {
+                    media.bufferingCallback(media._buffered, media._stalled);
+                }
+                break;
+            case Media.MEDIA_STALL_START :
+            case Media.MEDIA_STALL_END :
+                media._stalled = (msgType == Media.MEDIA_STALL_START);
+                if (media.bufferingCallback) {
+                    media.bufferingCallback(media._buffered, media._stalled);
+                }
+                break;
+            case Media.MEDIA_LOOP :
+                media._loops = value;
+                if (media.loopCallback) {
+                    media.loopCallback(value);
+                }
+                break;
+            case Media.MEDIA_STOLEN :
+                if (media.stolenCallback) {
+                    media.stolenCallback(value == 1);
+                }
+                break;
             default :
                 if (console.error) {
                     console.error("Unhandled Media.onStatus :: " + msgType);
@@ -239,9 +666,57 @@ Media.onStatus = function(id, msgType, value) {
 
 module.exports = Media;
 
-function onMessageFromNative(msg) {
+function onTranscodeEvent(job) {
+    if (Media.onTranscode) {
+        Media.onTranscode(job);
+    }
+    var callbacks = transcodeJobs[job.id];
+    if (!callbacks) {
+        return;
+    }
+    if (job.state == 'running') {
+        if (callbacks.progress) {
+            callbacks.progress(job.progress);
+        }
+    } else if (job.state == 'done') {
+        delete transcodeJobs[job.id];
+        if (callbacks.success) {
+            callbacks.success(job);
+        }
+    } else if (job.state == 'failed' || job.state == 'cancelled') {
+        delete transcodeJobs[job.id];
+        if (callbacks.fail) {
+            callbacks.fail(job.message || job.state);
+        }
+    }
+}
+
+function onMessageFromNative(msg, data) {
     if (msg.action == 'status') {
         Media.onStatus(msg.status.id, msg.status.msgType, msg.status.value);
+    } else if (msg.action == 'trim') {
+        if (Media.onTrimMemory) {
+            Media.onTrimMemory(msg.trim);
+        }
+    } else if (msg.action == 'chunk') {
+        Media.onChunk(msg.chunk, data);
+    } else if (msg.action == 'timeline') {
+        var media = mediaObjects[msg.timeline.id];
+        if (media && media.timelineCallback) {
+            media.timelineCallback(msg.timeline);
+        }
+    } else if (msg.action == 'sprite') {
+        var spriteMedia = mediaObjects[msg.sprite.id];
+        if (spriteMedia && spriteMedia.spriteCallback) {
+            spriteMedia.spriteCallback(msg.sprite.name, msg.sprite.event);
+        }
+    } else if (msg.action == 'spectrum') {
+        var spectrumMedia = mediaObjects[msg.spectrum.id];
+        if (spectrumMedia && spectrumMedia.spectrumCallback) {
+            spectrumMedia.spectrumCallback(new Uint8Array(data), msg.spectrum);
+        }
+    } else if (msg.action == 'transcode') {
+        onTranscodeEvent(msg.transcode);
     } else {
         throw new Error('Unknown media action' + msg.action);
     }